@@ -74,10 +74,13 @@ import javax.security.enterprise.identitystore.IdentityStoreHandler;
 import javax.security.enterprise.identitystore.LdapIdentityStoreDefinition;
 
 import org.glassfish.soteria.SecurityContextImpl;
+import org.glassfish.soteria.identitystores.BulkGroupsIdentityStore;
 import org.glassfish.soteria.identitystores.DatabaseIdentityStore;
 import org.glassfish.soteria.identitystores.EmbeddedIdentityStore;
 import org.glassfish.soteria.identitystores.LdapIdentityStore;
+import org.glassfish.soteria.identitystores.annotation.DatabaseIdentityStoreOptions;
 import org.glassfish.soteria.identitystores.annotation.EmbeddedIdentityStoreDefinition;
+import org.glassfish.soteria.identitystores.annotation.LdapIdentityStoreOptions;
 import org.glassfish.soteria.identitystores.hash.Pbkdf2PasswordHashImpl;
 import org.glassfish.soteria.mechanisms.BasicAuthenticationMechanism;
 import org.glassfish.soteria.mechanisms.CustomFormAuthenticationMechanism;
@@ -119,7 +122,7 @@ public class CdiExtension implements Extension {
             identityStoreBeans.add(new CdiProducer<IdentityStore>()
                     .scope(ApplicationScoped.class)
                     .beanClass(IdentityStore.class)
-                    .types(Object.class, IdentityStore.class, EmbeddedIdentityStore.class)
+                    .types(Object.class, IdentityStore.class, BulkGroupsIdentityStore.class, EmbeddedIdentityStore.class)
                     .addToId(EmbeddedIdentityStoreDefinition.class)
                     .create(e -> new EmbeddedIdentityStore(embeddedIdentityStoreDefinition))
             );
@@ -129,14 +132,22 @@ public class CdiExtension implements Extension {
         optionalDBStore.ifPresent(dataBaseIdentityStoreDefinition -> {
             logActivatedIdentityStore(DatabaseIdentityStoreDefinition.class, beanClass);
 
+            Optional<DatabaseIdentityStoreOptions> optionalDBStoreOptions = getAnnotation(beanManager, event.getAnnotated(), DatabaseIdentityStoreOptions.class);
+
             identityStoreBeans.add(new CdiProducer<IdentityStore>()
                     .scope(ApplicationScoped.class)
                     .beanClass(IdentityStore.class)
-                    .types(Object.class, IdentityStore.class, DatabaseIdentityStore.class)
+                    .types(Object.class, IdentityStore.class, BulkGroupsIdentityStore.class, DatabaseIdentityStore.class)
                     .addToId(DatabaseIdentityStoreDefinition.class)
-                    .create(e -> new DatabaseIdentityStore(
-                        DatabaseIdentityStoreDefinitionAnnotationLiteral.eval(
-                            dataBaseIdentityStoreDefinition)))
+                    .create(e -> {
+                        DatabaseIdentityStoreDefinition evaluatedDefinition =
+                            DatabaseIdentityStoreDefinitionAnnotationLiteral.eval(dataBaseIdentityStoreDefinition);
+
+                        return optionalDBStoreOptions
+                                .map(options -> new DatabaseIdentityStore(evaluatedDefinition, options))
+                                .orElseGet(() -> new DatabaseIdentityStore(evaluatedDefinition));
+                    })
+                    .destroy(e -> ((DatabaseIdentityStore) e).close())
             );
         });
 
@@ -144,14 +155,22 @@ public class CdiExtension implements Extension {
         optionalLdapStore.ifPresent(ldapIdentityStoreDefinition -> {
             logActivatedIdentityStore(LdapIdentityStoreDefinition.class, beanClass);
 
+            Optional<LdapIdentityStoreOptions> optionalLdapStoreOptions = getAnnotation(beanManager, event.getAnnotated(), LdapIdentityStoreOptions.class);
+
             identityStoreBeans.add(new CdiProducer<IdentityStore>()
                     .scope(ApplicationScoped.class)
                     .beanClass(IdentityStore.class)
-                    .types(Object.class, IdentityStore.class, LdapIdentityStore.class)
+                    .types(Object.class, IdentityStore.class, BulkGroupsIdentityStore.class, LdapIdentityStore.class)
                     .addToId(LdapIdentityStoreDefinition.class)
-                    .create(e -> new LdapIdentityStore(
-                        LdapIdentityStoreDefinitionAnnotationLiteral.eval(
-                            ldapIdentityStoreDefinition)))
+                    .create(e -> {
+                        LdapIdentityStoreDefinition evaluatedDefinition =
+                            LdapIdentityStoreDefinitionAnnotationLiteral.eval(ldapIdentityStoreDefinition);
+
+                        return optionalLdapStoreOptions
+                                .map(options -> new LdapIdentityStore(evaluatedDefinition, options))
+                                .orElseGet(() -> new LdapIdentityStore(evaluatedDefinition));
+                    })
+                    .destroy(e -> ((LdapIdentityStore) e).close())
             );
         });
 
@@ -232,7 +251,7 @@ public class CdiExtension implements Extension {
                 new CdiProducer<IdentityStoreHandler>()
                         .scope(ApplicationScoped.class)
                         .beanClass(IdentityStoreHandler.class)
-                        .types(Object.class, IdentityStoreHandler.class)
+                        .types(Object.class, IdentityStoreHandler.class, DefaultIdentityStoreHandler.class)
                         .addToId(IdentityStoreHandler.class)
                         .create(e -> {
                             DefaultIdentityStoreHandler defaultIdentityStoreHandler = new DefaultIdentityStoreHandler();
@@ -49,6 +49,7 @@ import java.lang.annotation.Annotation;
 import java.lang.reflect.Type;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.function.Consumer;
 import java.util.function.Function;
 
 import javax.enterprise.context.Dependent;
@@ -68,6 +69,7 @@ public class CdiProducer<T> implements Bean<T>, PassivationCapable {
     private Set<Annotation> qualifiers = unmodifiableSet(asSet(new DefaultAnnotationLiteral(), new AnyAnnotationLiteral()));
     private Class<? extends Annotation> scope = Dependent.class;
     private Function<CreationalContext<T>, T> create;
+    private Consumer<T> destroy = instance -> {};
     
     @Override
     public String getId() {
@@ -106,6 +108,7 @@ public class CdiProducer<T> implements Bean<T>, PassivationCapable {
     
     @Override
     public void destroy(T instance, CreationalContext<T> creationalContext) {
+        destroy.accept(instance);
     }
     
     @Override
@@ -142,6 +145,11 @@ public class CdiProducer<T> implements Bean<T>, PassivationCapable {
         return this;
     }
     
+    protected CdiProducer<T> destroy(Consumer<T> destroy) {
+        this.destroy = destroy;
+        return this;
+    }
+    
     protected CdiProducer<T> beanClass(Class<?> beanClass) {
         this.beanClass = beanClass;
         return this;
@@ -45,6 +45,7 @@ import javax.security.enterprise.credential.Credential;
 import javax.security.enterprise.identitystore.CredentialValidationResult;
 import javax.security.enterprise.identitystore.IdentityStore;
 import javax.security.enterprise.identitystore.IdentityStoreHandler;
+import javax.security.enterprise.identitystore.IdentityStorePermission;
 
 import static java.util.Comparator.comparing;
 import static java.util.stream.Collectors.toList;
@@ -58,10 +59,15 @@ import static org.glassfish.soteria.cdi.CdiUtils.getBeanReferencesByType;
 
 import java.security.AccessController;
 import java.security.PrivilegedAction;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+import org.glassfish.soteria.identitystores.BulkGroupsIdentityStore;
+
 
 /**
  *
@@ -70,10 +76,13 @@ public class DefaultIdentityStoreHandler implements IdentityStoreHandler {
 
     private List<IdentityStore> authenticationIdentityStores;
     private List<IdentityStore> authorizationIdentityStores;
+    private List<IdentityStore> groupIdentityStores;
 
     public void init() {
-    	List<IdentityStore> identityStores = getBeanReferencesByType(IdentityStore.class, false);
+    	init(getBeanReferencesByType(IdentityStore.class, false));
+    }
 
+    void init(List<IdentityStore> identityStores) {
     	authenticationIdentityStores = identityStores.stream()
     												 .filter(i -> i.validationTypes().contains(VALIDATE))
     												 .sorted(comparing(IdentityStore::priority))
@@ -83,6 +92,11 @@ public class DefaultIdentityStoreHandler implements IdentityStoreHandler {
 				 									.filter(i -> i.validationTypes().contains(PROVIDE_GROUPS) && !i.validationTypes().contains(VALIDATE))
 		 											.sorted(comparing(IdentityStore::priority))
 	 												.collect(toList());
+
+    	groupIdentityStores = identityStores.stream()
+    										.filter(i -> i.validationTypes().contains(PROVIDE_GROUPS))
+    										.sorted(comparing(IdentityStore::priority))
+    										.collect(toList());
     }
 
     @Override
@@ -143,4 +157,53 @@ public class DefaultIdentityStoreHandler implements IdentityStoreHandler {
                 groups);
     }
 
+    /**
+     * Returns the groups of each of the given callers, as provided by all identity stores that
+     * are set to provide groups. Stores that can look up the groups of many callers at once
+     * are asked once for all callers, other stores are asked per caller.
+     * 
+     * <p>
+     * The caller of this method needs the {@link IdentityStorePermission} "getGroups"
+     * when a security manager is installed.
+     * 
+     * @param callerNames the names of the callers
+     * @return map from every given caller name to the set of groups of that caller
+     */
+    public Map<String, Set<String>> getCallerGroups(Collection<String> callerNames) {
+
+        SecurityManager securityManager = System.getSecurityManager();
+        if (securityManager != null) {
+            securityManager.checkPermission(new IdentityStorePermission("getGroups"));
+        }
+
+        Map<String, Set<String>> groups = new HashMap<>();
+        for (String callerName : callerNames) {
+            groups.put(callerName, new HashSet<>());
+        }
+
+        AccessController.doPrivileged(new PrivilegedAction<Void>() {
+            public Void run() {
+                for (IdentityStore groupIdentityStore : groupIdentityStores) {
+                    if (groupIdentityStore instanceof BulkGroupsIdentityStore) {
+                        ((BulkGroupsIdentityStore) groupIdentityStore).getCallerGroups(groups.keySet())
+                            .forEach((callerName, callerGroups) -> {
+                                // Ignore callers that weren't asked for, e.g. a name in another case
+                                Set<String> requestedCallerGroups = groups.get(callerName);
+                                if (requestedCallerGroups != null && callerGroups != null) {
+                                    requestedCallerGroups.addAll(callerGroups);
+                                }
+                            });
+                    }
+                    else {
+                        groups.forEach((callerName, callerGroups) -> 
+                            callerGroups.addAll(groupIdentityStore.getCallerGroups(new CredentialValidationResult(callerName))));
+                    }
+                }
+                return null;
+            }
+        });
+
+        return groups;
+    }
+
 }
@@ -0,0 +1,122 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015-2017 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://oss.oracle.com/licenses/CDDL+GPL-1.1
+ * or LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.soteria.identitystores;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Limits the number of operations that run against a backing store at the same time. An
+ * operation that can't start within the maximum wait time is rejected, so that callers fail
+ * fast instead of all blocking on a backing store that has slowed down.
+ *
+ */
+class Bulkhead {
+
+    private final Semaphore permits;
+    private final long maxWait;
+    private final String name;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Creates a bulkhead.
+     * 
+     * @param maxConcurrent the maximum number of concurrent operations, or 0 for no limit
+     * @param maxWait the maximum time in milliseconds to wait for an operation to start
+     * @param name the name of the backing store, used in messages
+     */
+    Bulkhead(int maxConcurrent, long maxWait, String name) {
+        this.permits = maxConcurrent > 0 ? new Semaphore(maxConcurrent) : null;
+        this.maxWait = maxWait;
+        this.name = name;
+    }
+
+    /**
+     * Runs the given operation when fewer than the maximum number of operations are running.
+     * 
+     * @param operation the operation to run
+     * @return the result of the operation
+     * @throws IdentityStoreUnavailableException if the operation could not start within the maximum wait time
+     */
+    <T> T execute(Supplier<T> operation) {
+        if (permits != null && !acquire()) {
+            rejected.increment();
+            throw new IdentityStoreUnavailableException(
+                "Too many concurrent operations on " + name + ", rejected after waiting " + maxWait + " ms");
+        }
+
+        inFlight.incrementAndGet();
+        try {
+            return operation.get();
+        }
+        finally {
+            inFlight.decrementAndGet();
+            if (permits != null) {
+                permits.release();
+            }
+        }
+    }
+
+    int getInFlightCount() {
+        return inFlight.get();
+    }
+
+    long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    private boolean acquire() {
+        try {
+            return permits.tryAcquire(maxWait, MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+}
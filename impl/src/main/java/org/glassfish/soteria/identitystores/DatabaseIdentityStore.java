@@ -42,7 +42,13 @@ package org.glassfish.soteria.identitystores;
 
 import static java.util.Arrays.asList;
 import static java.util.Arrays.stream;
+import static java.lang.Math.min;
+import static java.lang.String.join;
+import static java.util.Collections.emptyList;
 import static java.util.Collections.emptySet;
+import static java.util.Collections.nCopies;
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonList;
 import static java.util.Collections.unmodifiableMap;
 import static java.util.Collections.unmodifiableSet;
 import static java.util.stream.Collectors.toMap;
@@ -56,10 +62,20 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.stream.Stream;
 
 import javax.security.enterprise.CallerPrincipal;
@@ -67,32 +83,107 @@ import javax.security.enterprise.credential.Credential;
 import javax.security.enterprise.credential.UsernamePasswordCredential;
 import javax.security.enterprise.identitystore.CredentialValidationResult;
 import javax.security.enterprise.identitystore.DatabaseIdentityStoreDefinition;
-import javax.security.enterprise.identitystore.IdentityStore;
 import javax.security.enterprise.identitystore.IdentityStorePermission;
 import javax.security.enterprise.identitystore.PasswordHash;
 import javax.sql.DataSource;
 
-public class DatabaseIdentityStore implements IdentityStore {
+import org.glassfish.soteria.identitystores.annotation.DatabaseIdentityStoreOptions;
+import org.glassfish.soteria.identitystores.annotation.DatabaseIdentityStoreOptions.OverloadResult;
+
+public class DatabaseIdentityStore implements BulkGroupsIdentityStore {
+
+    @DatabaseIdentityStoreOptions
+    private static final class DefaultOptions {
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(DatabaseIdentityStore.class.getName());
+
+    // Replaced in the bulk groups query by a parameter marker for every caller of a chunk
+    private static final String CALLER_NAMES_MARKER = "(?)";
+    private static final String PARALLEL_BLOCKS_PARAMETER = "Pbkdf2PasswordHash.ParallelBlocks";
 
     private final DatabaseIdentityStoreDefinition dataBaseIdentityStoreDefinition;
 
     private final Set<ValidationType> validationTypes;
     private final PasswordHash hashAlgorithm; // Note: effectively application scoped, no support for @PreDestroy now
+    private final GroupCache groupCache;
+    private final VerifiedCredentialCache verifiedCredentialCache;
+    private final String callerAndGroupsQuery;
+    private final int groupsFetchSize;
+    private final String bulkGroupsQuery;
+    private final int bulkGroupsChunkSize;
+    private final DatabaseReplicaSet replicas;
+    private final Bulkhead bulkhead;
+    private final int queryTimeout;
+    private final LongAdder timedOutQueries = new LongAdder();
+    private final HashingExecutor hashingExecutor;
+    private final OverloadResult hashingOverloadResult;
+    private final Function<String, DataSource> dataSourceLookup;
+    private final String backgroundExecutorName;
+    private final Executor backgroundExecutor;
+
+    // Resolved on first use, and resolved again after a failure
+    private volatile DataSource dataSource;
 
     public DatabaseIdentityStore(DatabaseIdentityStoreDefinition dataBaseIdentityStoreDefinition) {
+        this(dataBaseIdentityStoreDefinition, DefaultOptions.class.getAnnotation(DatabaseIdentityStoreOptions.class));
+    }
+
+    public DatabaseIdentityStore(DatabaseIdentityStoreDefinition dataBaseIdentityStoreDefinition, DatabaseIdentityStoreOptions dataBaseIdentityStoreOptions) {
+        this(
+            dataBaseIdentityStoreDefinition,
+            dataBaseIdentityStoreOptions,
+            getBeanReference(dataBaseIdentityStoreDefinition.hashAlgorithm()),
+            DatabaseIdentityStore::lookupDataSource);
+    }
+
+    /**
+     * Creates the store with the given password hash, and with the given function to look up
+     * data sources by their JNDI name.
+     */
+    DatabaseIdentityStore(DatabaseIdentityStoreDefinition dataBaseIdentityStoreDefinition, DatabaseIdentityStoreOptions dataBaseIdentityStoreOptions,
+            PasswordHash hashAlgorithm, Function<String, DataSource> dataSourceLookup) {
         this.dataBaseIdentityStoreDefinition = dataBaseIdentityStoreDefinition;
+        this.dataSourceLookup = dataSourceLookup;
+        backgroundExecutorName = dataBaseIdentityStoreOptions.backgroundExecutor();
+        backgroundExecutor = IdentityStoreExecutors.getBackgroundExecutor(
+            backgroundExecutorName, "Database identity store " + dataBaseIdentityStoreDefinition.dataSourceLookup());
+        groupCache = GroupCache.create(dataBaseIdentityStoreOptions.groupCache(), backgroundExecutor);
+        verifiedCredentialCache = VerifiedCredentialCache.create(dataBaseIdentityStoreOptions.verifiedCredentialCache());
+        callerAndGroupsQuery = dataBaseIdentityStoreOptions.callerAndGroupsQuery();
+        groupsFetchSize = dataBaseIdentityStoreOptions.groupsFetchSize();
+        bulkGroupsChunkSize = dataBaseIdentityStoreOptions.bulkGroupsChunkSize();
+        bulkGroupsQuery = createBulkGroupsQuery(dataBaseIdentityStoreOptions.bulkGroupsQuery(), bulkGroupsChunkSize);
+        replicas = new DatabaseReplicaSet(dataBaseIdentityStoreOptions.replicas(), dataSourceLookup);
+        bulkhead = new Bulkhead(
+            dataBaseIdentityStoreOptions.maxConcurrentQueries(),
+            dataBaseIdentityStoreOptions.maxQueryWait(),
+            dataBaseIdentityStoreDefinition.dataSourceLookup());
+        queryTimeout = dataBaseIdentityStoreOptions.queryTimeout();
+        hashingExecutor = dataBaseIdentityStoreOptions.hashingParallelism() > 0 ?
+            new HashingExecutor(dataBaseIdentityStoreOptions.hashingParallelism(), dataBaseIdentityStoreOptions.hashingQueueDepth()) : null;
+        hashingOverloadResult = dataBaseIdentityStoreOptions.hashingOverloadResult();
         
         validationTypes = unmodifiableSet(new HashSet<>(asList(dataBaseIdentityStoreDefinition.useFor())));
-        hashAlgorithm = getBeanReference(dataBaseIdentityStoreDefinition.hashAlgorithm());
-        hashAlgorithm.initialize(
-            unmodifiableMap(
+        this.hashAlgorithm = hashAlgorithm;
+        Map<String, String> hashAlgorithmParameters = new HashMap<>(
                     stream(
                         dataBaseIdentityStoreDefinition.hashAlgorithmParameters())
                     .flatMap(s -> toStream(evalImmediate(s, (Object)s)))
                     .collect(toMap(
                         s -> s.substring(0, s.indexOf('=')) , 
                         s -> evalImmediate(s.substring(s.indexOf('=') + 1))
-                    ))));
+                    )));
+        if (hashingExecutor != null && Boolean.parseBoolean(hashAlgorithmParameters.get(PARALLEL_BLOCKS_PARAMETER))) {
+            // A verification holds a single thread of the hashing pool, so its key blocks are derived on that thread
+            LOGGER.log(Level.INFO, PARALLEL_BLOCKS_PARAMETER + " is ignored, since passwords are verified by a hashing pool");
+            hashAlgorithmParameters.put(PARALLEL_BLOCKS_PARAMETER, "false");
+        }
+        hashAlgorithm.initialize(unmodifiableMap(hashAlgorithmParameters));
+
+        if (dataBaseIdentityStoreOptions.eagerDataSourceLookup()) {
+            getDataSource();
+        }
     }
 
     @Override
@@ -105,31 +196,136 @@ public class DatabaseIdentityStore implements IdentityStore {
     }
 
     public CredentialValidationResult validate(UsernamePasswordCredential usernamePasswordCredential) {
+        try {
+            if (!callerAndGroupsQuery.isEmpty() && validationTypes.contains(ValidationType.PROVIDE_GROUPS)) {
+                return validateWithGroups(usernamePasswordCredential);
+            }
 
-        DataSource dataSource = getDataSource();
+            return validateWithCallerQuery(usernamePasswordCredential);
+        }
+        catch (IdentityStoreUnavailableException e) {
+            // Shed the load, leaving the caller to other identity stores if any
+            return NOT_VALIDATED_RESULT;
+        }
+    }
+
+    /**
+     * Validates the caller with the caller query. Unless the caller's groups are cached, the
+     * groups query runs right after it on the same connection, before the password is verified,
+     * so that the connection is given back before the verification, which may take a while. The
+     * groups are dropped again if the password turns out to be wrong.
+     */
+    private CredentialValidationResult validateWithCallerQuery(UsernamePasswordCredential usernamePasswordCredential) {
+        String callerName = usernamePasswordCredential.getCaller();
+        boolean provideGroups = validationTypes.contains(ValidationType.PROVIDE_GROUPS);
+        boolean queryGroups = provideGroups && (groupCache == null || groupCache.getIfPresent(callerName) == null);
+
+        List<String> passwords = new ArrayList<>(1);
+        Set<String> groups = new HashSet<>();
+
+        withQueryConnection(singleton(callerName), queryConnection -> {
+            // The queries are executed again on the primary if a replica fails
+            passwords.clear();
+            groups.clear();
+
+            passwords.addAll(queryConnection.executeQuery(dataBaseIdentityStoreDefinition.callerQuery(), callerName, 0));
+            if (queryGroups && !passwords.isEmpty()) {
+                groups.addAll(queryConnection.executeQuery(dataBaseIdentityStoreDefinition.groupsQuery(), callerName, groupsFetchSize));
+            }
+            return null;
+        });
 
-        List<String> passwords = executeQuery(
-            dataSource, 
-            dataBaseIdentityStoreDefinition.callerQuery(),
-            usernamePasswordCredential.getCaller()
-        );
-        
         if (passwords.isEmpty()) {
             return INVALID_RESULT;
         }
-        
-        if (hashAlgorithm.verify(usernamePasswordCredential.getPassword().getValue(), passwords.get(0))) {
-            Set<String> groups = emptySet();
-            if (validationTypes.contains(ValidationType.PROVIDE_GROUPS)) {
-                groups = new HashSet<>(executeQuery(dataSource, dataBaseIdentityStoreDefinition.groupsQuery(), usernamePasswordCredential.getCaller()));
+
+        if (verifyPassword(usernamePasswordCredential, passwords.get(0))) {
+            if (!provideGroups) {
+                return new CredentialValidationResult(new CallerPrincipal(callerName), emptySet());
+            }
+
+            if (!queryGroups) {
+                return new CredentialValidationResult(new CallerPrincipal(callerName), retrieveGroups(callerName));
             }
 
-            return new CredentialValidationResult(new CallerPrincipal(usernamePasswordCredential.getCaller()), groups);
+            if (groupCache != null) {
+                groupCache.put(callerName, groups);
+            }
+
+            return new CredentialValidationResult(new CallerPrincipal(callerName), groups);
         }
 
         return INVALID_RESULT;
     }
-    
+
+    /**
+     * Validates the caller and retrieves the caller's groups with the single combined query,
+     * which returns the password in the first column and a group in the second column of
+     * every row.
+     */
+    private CredentialValidationResult validateWithGroups(UsernamePasswordCredential usernamePasswordCredential) {
+        String callerName = usernamePasswordCredential.getCaller();
+        List<String> passwords = new ArrayList<>(1);
+        Set<String> groups = new HashSet<>();
+
+        withQueryConnection(singleton(callerName), queryConnection -> {
+            // The query is executed again on the primary if a replica fails
+            passwords.clear();
+            groups.clear();
+
+            queryConnection.executeQuery(callerAndGroupsQuery, callerName, groupsFetchSize, resultSet -> {
+                if (passwords.isEmpty()) {
+                    passwords.add(resultSet.getString(1));
+                }
+                String group = resultSet.getString(2);
+                if (group != null) {
+                    groups.add(group);
+                }
+            });
+            return null;
+        });
+
+        if (passwords.isEmpty() || passwords.get(0) == null) {
+            return INVALID_RESULT;
+        }
+
+        if (verifyPassword(usernamePasswordCredential, passwords.get(0))) {
+            if (groupCache != null) {
+                // The groups were read anyway, so bring the cache up to date
+                groupCache.put(callerName, groups);
+            }
+
+            return new CredentialValidationResult(new CallerPrincipal(callerName), groups);
+        }
+
+        return INVALID_RESULT;
+    }
+
+    private boolean verifyPassword(UsernamePasswordCredential usernamePasswordCredential, String storedHash) {
+        if (verifiedCredentialCache != null) {
+            return verifiedCredentialCache.verify(
+                usernamePasswordCredential.getCaller(), usernamePasswordCredential.getPassword().getValue(), storedHash, this::verifyHash);
+        }
+
+        return verifyHash(usernamePasswordCredential.getPassword().getValue(), storedHash);
+    }
+
+    private boolean verifyHash(char[] password, String storedHash) {
+        if (hashingExecutor == null) {
+            return hashAlgorithm.verify(password, storedHash);
+        }
+
+        try {
+            return hashingExecutor.execute(() -> hashAlgorithm.verify(password, storedHash));
+        }
+        catch (IdentityStoreUnavailableException e) {
+            if (hashingOverloadResult == OverloadResult.INVALID) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
     @Override
     public Set<String> getCallerGroups(CredentialValidationResult validationResult) {
 
@@ -138,32 +334,312 @@ public class DatabaseIdentityStore implements IdentityStore {
             securityManager.checkPermission(new IdentityStorePermission("getGroups"));
         }
 
-        DataSource dataSource = getDataSource();
+        return retrieveGroups(validationResult.getCallerPrincipal().getName());
+    }
+
+    @Override
+    public Map<String, Set<String>> getCallerGroups(Collection<String> callerNames) {
+
+        SecurityManager securityManager = System.getSecurityManager();
+        if (securityManager != null) {
+            securityManager.checkPermission(new IdentityStorePermission("getGroups"));
+        }
+
+        Map<String, Set<String>> groups = new HashMap<>();
+        Map<String, Set<String>> uncachedGroups = new HashMap<>();
+        for (String callerName : callerNames) {
+            Set<String> cachedGroups = groupCache != null ? groupCache.getIfPresent(callerName) : null;
+            if (cachedGroups != null) {
+                groups.put(callerName, cachedGroups);
+            }
+            else {
+                Set<String> callerGroups = new HashSet<>();
+                groups.put(callerName, callerGroups);
+                uncachedGroups.put(callerName, callerGroups);
+            }
+        }
+
+        if (uncachedGroups.isEmpty()) {
+            return groups;
+        }
+
+        // The database may compare names ignoring case, and return them as stored
+        Map<String, List<Set<String>>> groupsIgnoringCase = new HashMap<>();
+        for (Map.Entry<String, Set<String>> callerGroups : uncachedGroups.entrySet()) {
+            groupsIgnoringCase.computeIfAbsent(toNameKey(callerGroups.getKey()), key -> new ArrayList<>()).add(callerGroups.getValue());
+        }
+
+        return withQueryConnection(uncachedGroups.keySet(), queryConnection -> {
+            if (bulkGroupsQuery == null) {
+                for (Map.Entry<String, Set<String>> callerGroups : uncachedGroups.entrySet()) {
+                    callerGroups.getValue().addAll(retrieveGroups(queryConnection, callerGroups.getKey()));
+                }
+                return groups;
+            }
+
+            List<String> callers = new ArrayList<>(uncachedGroups.keySet());
+            for (int i = 0; i < callers.size(); i += bulkGroupsChunkSize) {
+                List<String> chunk = new ArrayList<>(callers.subList(i, min(i + bulkGroupsChunkSize, callers.size())));
+                while (chunk.size() < bulkGroupsChunkSize) {
+                    chunk.add(chunk.get(0));
+                }
+
+                queryConnection.executeQuery(bulkGroupsQuery, chunk, groupsFetchSize, resultSet -> {
+                    String callerName = resultSet.getString(1);
+                    String group = resultSet.getString(2);
+                    if (callerName == null || group == null) {
+                        return;
+                    }
+
+                    // The row can't tell which of the names that are equal ignoring case it was meant for
+                    for (Set<String> groupsOfName : groupsIgnoringCase.getOrDefault(toNameKey(callerName), emptyList())) {
+                        groupsOfName.add(group);
+                    }
+                });
+            }
+
+            if (groupCache != null) {
+                for (Map.Entry<String, Set<String>> callerGroups : uncachedGroups.entrySet()) {
+                    groupCache.put(callerGroups.getKey(), callerGroups.getValue());
+                }
+            }
+
+            return groups;
+        });
+    }
+
+    private static String toNameKey(String callerName) {
+        return callerName.toLowerCase(Locale.ROOT);
+    }
+
+    private static String createBulkGroupsQuery(String query, int chunkSize) {
+        if (query.isEmpty()) {
+            return null;
+        }
+
+        if (chunkSize < 1) {
+            throw new IdentityStoreConfigurationException("bulkGroupsChunkSize must be at least 1, but is " + chunkSize);
+        }
+
+        int marker = query.indexOf(CALLER_NAMES_MARKER);
+        if (marker < 0 || query.indexOf(CALLER_NAMES_MARKER, marker + 1) >= 0) {
+            throw new IdentityStoreConfigurationException(
+                "bulkGroupsQuery must contain " + CALLER_NAMES_MARKER + " exactly once, but is " + query);
+        }
 
-        return new HashSet<>(executeQuery(
-            dataSource,
-            dataBaseIdentityStoreDefinition.groupsQuery(),
-            validationResult.getCallerPrincipal().getName())
-        );
+        return
+            query.substring(0, marker) +
+            "(" + join(",", nCopies(chunkSize, "?")) + ")" +
+            query.substring(marker + CALLER_NAMES_MARKER.length());
+    }
+
+    /**
+     * Tells the store that the password or groups of the given caller changed. The cached groups
+     * and verified password of the caller are removed, and when replicas are used, the caller is
+     * read from the primary for as long as configured.
+     * 
+     * @param callerName the name of the caller
+     */
+    public void callerChanged(String callerName) {
+        replicas.callerChanged(callerName);
+        invalidateCallerGroups(callerName);
+        if (verifiedCredentialCache != null) {
+            verifiedCredentialCache.invalidate(callerName);
+        }
     }
 
-    private List<String> executeQuery(DataSource dataSource, String query, String parameter) {
-        List<String> result = new ArrayList<>();
+    /**
+     * Removes the cached groups of the given caller, if groups are cached.
+     * 
+     * @param callerName the name of the caller
+     */
+    public void invalidateCallerGroups(String callerName) {
+        if (groupCache != null) {
+            groupCache.invalidate(callerName);
+        }
+    }
+
+    /**
+     * Removes the cached groups of all callers, if groups are cached.
+     */
+    public void invalidateAllCallerGroups() {
+        if (groupCache != null) {
+            groupCache.invalidateAll();
+        }
+    }
+
+    /**
+     * Shuts down the background executor, if it was created by the store.
+     */
+    public void close() {
+        IdentityStoreExecutors.shutdown(backgroundExecutor, backgroundExecutorName);
+    }
+
+    /**
+     * @return the number of callers currently querying the database
+     */
+    public int getInFlightQueryCount() {
+        return bulkhead.getInFlightCount();
+    }
+
+    /**
+     * @return the number of callers that were rejected because too many callers were querying the database
+     */
+    public long getRejectedQueryCount() {
+        return bulkhead.getRejectedCount();
+    }
+
+    /**
+     * @return the number of password verifications that were rejected because password hashing was overloaded
+     */
+    public long getRejectedHashCount() {
+        return hashingExecutor != null ? hashingExecutor.getRejectedCount() : 0;
+    }
+
+    /**
+     * @return the number of queries that were cancelled because they exceeded the query timeout
+     */
+    public long getTimedOutQueryCount() {
+        return timedOutQueries.sum();
+    }
+
+    private Set<String> retrieveGroups(String callerName) {
+        if (groupCache != null) {
+            return groupCache.get(callerName, this::queryGroups, this::queryGroups);
+        }
+
+        return queryGroups(callerName);
+    }
+
+    private Set<String> retrieveGroups(QueryConnection queryConnection, String callerName) {
+        Function<String, Set<String>> loader = caller -> new HashSet<>(
+            queryConnection.executeQuery(dataBaseIdentityStoreDefinition.groupsQuery(), caller, groupsFetchSize));
+
+        if (groupCache != null) {
+            // A refresh happens in the background, after the connection has been given back
+            return groupCache.get(callerName, loader, this::queryGroups);
+        }
+
+        return loader.apply(callerName);
+    }
+
+    private Set<String> queryGroups(String callerName) {
+        return withQueryConnection(singleton(callerName), queryConnection -> 
+            new HashSet<>(queryConnection.executeQuery(dataBaseIdentityStoreDefinition.groupsQuery(), callerName, groupsFetchSize)));
+    }
 
-        try (Connection connection = dataSource.getConnection()) {
-            try (PreparedStatement statement = connection.prepareStatement(query)) {
-                statement.setString(1, parameter);
+    private <T> T withQueryConnection(Collection<String> callerNames, Function<QueryConnection, T> operation) {
+        return bulkhead.execute(() -> replicas.execute(callerNames, this::getDataSource, dataSource -> {
+            try (QueryConnection queryConnection = new QueryConnection(dataSource)) {
+                return operation.apply(queryConnection);
+            }
+        }));
+    }
+
+    /**
+     * A connection that is taken from the data source when the first query is executed, and
+     * on which every query is only prepared once.
+     */
+    private final class QueryConnection implements AutoCloseable {
+
+        private final DataSource dataSource;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+        private Connection connection;
+
+        QueryConnection(DataSource dataSource) {
+            this.dataSource = dataSource;
+        }
+
+        void executeQuery(String query, String parameter, int fetchSize, RowHandler rowHandler) {
+            executeQuery(query, singletonList(parameter), fetchSize, rowHandler);
+        }
+
+        List<String> executeQuery(String query, String parameter, int fetchSize) {
+            List<String> result = new ArrayList<>();
+            executeQuery(query, parameter, fetchSize, resultSet -> result.add(resultSet.getString(1)));
+            return result;
+        }
+
+        void executeQuery(String query, List<String> parameters, int fetchSize, RowHandler rowHandler) {
+            try {
+                PreparedStatement statement = prepareStatement(query);
+                for (int i = 0; i < parameters.size(); i++) {
+                    statement.setString(i + 1, parameters.get(i));
+                }
+                if (fetchSize > 0) {
+                    statement.setFetchSize(fetchSize);
+                }
                 try (ResultSet resultSet = statement.executeQuery()) {
                     while (resultSet.next()) {
-                        result.add(resultSet.getString(1));
+                        rowHandler.handle(resultSet);
+                    }
+                }
+            } catch (SQLTimeoutException e) {
+                timedOutQueries.increment();
+                throw new IdentityStoreRuntimeException("Query exceeded the timeout of " + queryTimeout + " seconds", e);
+            } catch (SQLException e) {
+                // The data source may have been redeployed, so look it up again next time
+                invalidateDataSource(dataSource);
+                throw new IdentityStoreConfigurationException(e.getMessage(), e);
+            }
+        }
+
+        private PreparedStatement prepareStatement(String query) throws SQLException {
+            PreparedStatement statement = statements.get(query);
+            if (statement == null) {
+                if (connection == null) {
+                    connection = dataSource.getConnection();
+                }
+                statement = connection.prepareStatement(query);
+                if (queryTimeout > 0) {
+                    statement.setQueryTimeout(queryTimeout);
+                }
+                statements.put(query, statement);
+            }
+            return statement;
+        }
+
+        @Override
+        public void close() {
+            SQLException failure = null;
+
+            // Every statement and the connection are closed even if closing one of them fails,
+            // so that the connection always goes back to the pool
+            try {
+                for (PreparedStatement statement : statements.values()) {
+                    try {
+                        statement.close();
+                    } catch (SQLException e) {
+                        failure = addFailure(failure, e);
+                    }
+                }
+            } finally {
+                if (connection != null) {
+                    try {
+                        connection.close();
+                    } catch (SQLException e) {
+                        failure = addFailure(failure, e);
                     }
                 }
             }
-        } catch (SQLException e) {
-            throw new IdentityStoreConfigurationException(e.getMessage(), e);
+
+            if (failure != null) {
+                throw new IdentityStoreRuntimeException(failure);
+            }
         }
 
-        return result;
+        private SQLException addFailure(SQLException failure, SQLException e) {
+            if (failure == null) {
+                return e;
+            }
+            failure.addSuppressed(e);
+            return failure;
+        }
+    }
+
+    @FunctionalInterface
+    private interface RowHandler {
+        void handle(ResultSet resultSet) throws SQLException;
     }
 
     @Override
@@ -189,17 +665,34 @@ public class DatabaseIdentityStore implements IdentityStore {
     }
 
     private DataSource getDataSource() {
-        DataSource dataSource = null;
+        DataSource dataSource = this.dataSource;
+        if (dataSource != null) {
+            return dataSource;
+        }
+
+        dataSource = dataSourceLookup.apply(dataBaseIdentityStoreDefinition.dataSourceLookup());
+
+        this.dataSource = dataSource;
+        return dataSource;
+    }
+
+    private static DataSource lookupDataSource(String dataSourceLookup) {
         try {
-            dataSource = jndiLookup(dataBaseIdentityStoreDefinition.dataSourceLookup());
+            DataSource dataSource = jndiLookup(dataSourceLookup);
             if (dataSource == null) {
-                throw new IdentityStoreConfigurationException("Jndi lookup failed for DataSource " + dataBaseIdentityStoreDefinition.dataSourceLookup());
+                throw new IdentityStoreConfigurationException("Jndi lookup failed for DataSource " + dataSourceLookup);
             }
+            return dataSource;
         } catch (IdentityStoreConfigurationException e) {
             throw e;
         } catch (Exception e) {
             throw new IdentityStoreRuntimeException(e);
         }
-        return dataSource;
+    }
+
+    private void invalidateDataSource(DataSource failedDataSource) {
+        if (dataSource == failedDataSource) {
+            dataSource = null;
+        }
     }
 }
@@ -0,0 +1,226 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015-2017 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://oss.oracle.com/licenses/CDDL+GPL-1.1
+ * or LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.soteria.identitystores;
+
+import static java.lang.Boolean.TRUE;
+import static java.lang.Math.floorMod;
+import static java.lang.System.currentTimeMillis;
+import static java.util.logging.Level.WARNING;
+
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import org.glassfish.soteria.identitystores.annotation.DatabaseReplicas;
+import org.glassfish.soteria.identitystores.annotation.DatabaseReplicas.Policy;
+
+/**
+ * The read replicas of a {@link DatabaseIdentityStore}. Every operation is run against a replica
+ * chosen according to the load balancing policy. A replica on which an operation fails is ejected
+ * for a while, and the operation is retried on the primary. An operation whose query timed out
+ * is not retried however, as it would likely time out on the primary as well, and the replica
+ * is not ejected for it. Operations for callers that changed recently are run against the
+ * primary right away.
+ *
+ */
+class DatabaseReplicaSet {
+
+    private static final Logger LOGGER = Logger.getLogger(DatabaseReplicaSet.class.getName());
+
+    private final List<Replica> replicas = new ArrayList<>();
+    private final Policy policy;
+    private final int ejectionTime;
+    private final ExpiringCache<String, Boolean> changedCallers;
+
+    private final AtomicInteger nextReplica = new AtomicInteger();
+
+    DatabaseReplicaSet(DatabaseReplicas databaseReplicas, Function<String, DataSource> dataSourceLookup) {
+        for (String lookup : databaseReplicas.dataSourceLookups()) {
+            replicas.add(new Replica(lookup, dataSourceLookup));
+        }
+
+        this.policy = databaseReplicas.policy();
+        this.ejectionTime = databaseReplicas.ejectionTime();
+        this.changedCallers = databaseReplicas.primaryReadsAfterChange() > 0 ?
+            new ExpiringCache<>(databaseReplicas.changedCallersMaxSize(), databaseReplicas.primaryReadsAfterChange()) : null;
+    }
+
+    /**
+     * Runs the given operation against one of the replicas. When there's no replica available,
+     * when one of the given callers changed recently, or when the operation fails on the
+     * replica other than by a query timeout, it's run against the primary. The operation should
+     * therefore only query, and leave other work such as verifying passwords to the caller.
+     * 
+     * @param callerNames the names of the callers the operation reads
+     * @param primary supplies the data source of the primary
+     * @param operation the operation to run
+     * @return the result of the operation
+     */
+    <T> T execute(Collection<String> callerNames, Supplier<DataSource> primary, Function<DataSource, T> operation) {
+        Replica replica = isChanged(callerNames) ? null : select();
+
+        if (replica != null) {
+            replica.outstandingRequests.incrementAndGet();
+            try {
+                return operation.apply(replica.getDataSource());
+            }
+            catch (IdentityStoreUnavailableException e) {
+                // Overload of the store itself, which says nothing about the replica
+                throw e;
+            }
+            catch (IdentityStoreException e) {
+                if (isQueryTimeout(e)) {
+                    throw e;
+                }
+                eject(replica, e);
+            }
+            finally {
+                replica.outstandingRequests.decrementAndGet();
+            }
+        }
+
+        return operation.apply(primary.get());
+    }
+
+    /**
+     * Makes the operations for the given caller run against the primary for a while, so that
+     * they see the change of the caller even if it hasn't reached the replicas yet.
+     * 
+     * @param callerName the name of the caller that changed
+     */
+    void callerChanged(String callerName) {
+        if (changedCallers != null && !replicas.isEmpty()) {
+            changedCallers.put(callerName, TRUE);
+        }
+    }
+
+    private boolean isChanged(Collection<String> callerNames) {
+        if (changedCallers == null) {
+            return false;
+        }
+
+        for (String callerName : callerNames) {
+            if (changedCallers.get(callerName) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Replica select() {
+        if (replicas.isEmpty()) {
+            return null;
+        }
+
+        long now = currentTimeMillis();
+        int start = floorMod(nextReplica.getAndIncrement(), replicas.size());
+
+        Replica selected = null;
+        for (int i = 0; i < replicas.size(); i++) {
+            Replica replica = replicas.get((start + i) % replicas.size());
+
+            if (replica.ejectedUntil > now) {
+                continue;
+            }
+
+            if (policy == Policy.ROUND_ROBIN) {
+                return replica;
+            }
+
+            if (selected == null || replica.outstandingRequests.get() < selected.outstandingRequests.get()) {
+                selected = replica;
+            }
+        }
+
+        return selected;
+    }
+
+    private static boolean isQueryTimeout(Throwable thrown) {
+        for (Throwable cause = thrown; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLTimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void eject(Replica replica, Throwable thrown) {
+        long now = currentTimeMillis();
+        if (replica.ejectedUntil <= now) {
+            LOGGER.log(WARNING, "Ejecting database replica " + replica.lookup + " for " + ejectionTime + " ms, a query on it failed", thrown);
+        }
+        replica.ejectedUntil = now + ejectionTime;
+
+        // The data source may have been redeployed, so look it up again next time
+        replica.dataSource = null;
+    }
+
+    private static final class Replica {
+
+        final String lookup;
+        final Function<String, DataSource> dataSourceLookup;
+        final AtomicInteger outstandingRequests = new AtomicInteger();
+        volatile long ejectedUntil;
+        volatile DataSource dataSource;
+
+        Replica(String lookup, Function<String, DataSource> dataSourceLookup) {
+            this.lookup = lookup;
+            this.dataSourceLookup = dataSourceLookup;
+        }
+
+        DataSource getDataSource() {
+            DataSource dataSource = this.dataSource;
+            if (dataSource == null) {
+                dataSource = dataSourceLookup.apply(lookup);
+                this.dataSource = dataSource;
+            }
+            return dataSource;
+        }
+    }
+
+}
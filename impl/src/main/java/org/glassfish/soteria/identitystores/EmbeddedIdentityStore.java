@@ -48,6 +48,8 @@ import static java.util.stream.Collectors.toMap;
 import static javax.security.enterprise.identitystore.CredentialValidationResult.INVALID_RESULT;
 import static javax.security.enterprise.identitystore.CredentialValidationResult.NOT_VALIDATED_RESULT;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
@@ -56,13 +58,12 @@ import javax.security.enterprise.CallerPrincipal;
 import javax.security.enterprise.credential.Credential;
 import javax.security.enterprise.credential.UsernamePasswordCredential;
 import javax.security.enterprise.identitystore.CredentialValidationResult;
-import javax.security.enterprise.identitystore.IdentityStore;
 import javax.security.enterprise.identitystore.IdentityStorePermission;
 
 import org.glassfish.soteria.identitystores.annotation.Credentials;
 import org.glassfish.soteria.identitystores.annotation.EmbeddedIdentityStoreDefinition;
 
-public class EmbeddedIdentityStore implements IdentityStore {
+public class EmbeddedIdentityStore implements BulkGroupsIdentityStore {
 
     private final EmbeddedIdentityStoreDefinition embeddedIdentityStoreDefinition;
     private final Map<String, Credentials> callerToCredentials;
@@ -113,6 +114,23 @@ public class EmbeddedIdentityStore implements IdentityStore {
         return credentials != null ? new HashSet<>(asList(credentials.groups())) : emptySet();
     }
 
+    @Override
+    public Map<String, Set<String>> getCallerGroups(Collection<String> callerNames) {
+
+        SecurityManager securityManager = System.getSecurityManager();
+        if (securityManager != null) {
+            securityManager.checkPermission(new IdentityStorePermission("getGroups"));
+        }
+
+        Map<String, Set<String>> groups = new HashMap<>();
+        for (String callerName : callerNames) {
+            Credentials credentials = callerToCredentials.get(callerName);
+            groups.put(callerName, credentials != null ? new HashSet<>(asList(credentials.groups())) : new HashSet<>());
+        }
+
+        return groups;
+    }
+
     public int priority() {
         return embeddedIdentityStoreDefinition.priority();
     }
@@ -0,0 +1,357 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015-2017 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://oss.oracle.com/licenses/CDDL+GPL-1.1
+ * or LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.soteria.identitystores;
+
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.logging.Level.FINE;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+import org.glassfish.soteria.identitystores.annotation.CachePolicy;
+
+/**
+ * A bounded cache of which the entries expire a fixed time after they have been added.
+ * 
+ * <p>
+ * When the cache is full, the least recently used entry is removed to make room for a new one.
+ * Hits and misses are counted, so that the effectiveness of the cache can be monitored.
+ * 
+ * <p>
+ * Optionally, the absence of a value (a <code>null</code> result of a load) can be cached as well,
+ * using a separate time to live. Entries that are about to expire can be reloaded in the
+ * background, so that frequently used keys never have to wait for a load.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+class ExpiringCache<K, V> {
+
+    private static final Logger LOGGER = Logger.getLogger(ExpiringCache.class.getName());
+
+    private final int maxSize;
+    private final long timeToLiveNanos;
+    private final long negativeTimeToLiveNanos;
+    private final long refreshAheadNanos;
+    private final Executor refreshExecutor;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    // Guarded by itself
+    private final Map<K, CacheEntry<V>> entries;
+
+    /**
+     * Creates a cache.
+     * 
+     * @param maxSize maximum number of entries the cache holds
+     * @param timeToLive time in milliseconds after which an entry expires
+     */
+    ExpiringCache(int maxSize, long timeToLive) {
+        this(maxSize, timeToLive, 0, 0, null);
+    }
+
+    /**
+     * Creates a cache.
+     * 
+     * @param maxSize maximum number of entries the cache holds
+     * @param timeToLive time in milliseconds after which an entry expires
+     * @param negativeTimeToLive time in milliseconds after which a cached absence of a value expires,
+     *        or 0 if absent values aren't cached
+     * @param refreshAhead time in milliseconds before expiry at which an entry is reloaded in the
+     *        background when it's looked up, or 0 if entries aren't reloaded ahead of expiry
+     * @param refreshExecutor the executor on which background reloads run
+     */
+    ExpiringCache(int maxSize, long timeToLive, long negativeTimeToLive, long refreshAhead, Executor refreshExecutor) {
+        if (maxSize < 1 || timeToLive < 1 || negativeTimeToLive < 0 || refreshAhead < 0 || refreshAhead >= timeToLive) {
+            throw new IllegalArgumentException(
+                "Bad cache settings, maxSize: " + maxSize + " timeToLive: " + timeToLive +
+                " negativeTimeToLive: " + negativeTimeToLive + " refreshAhead: " + refreshAhead);
+        }
+
+        this.maxSize = maxSize;
+        this.timeToLiveNanos = MILLISECONDS.toNanos(timeToLive);
+        this.negativeTimeToLiveNanos = MILLISECONDS.toNanos(negativeTimeToLive);
+        this.refreshAheadNanos = MILLISECONDS.toNanos(refreshAhead);
+        this.refreshExecutor = refreshExecutor;
+        this.entries = new LinkedHashMap<K, CacheEntry<V>>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, CacheEntry<V>> eldest) {
+                return size() > ExpiringCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * Creates a cache as defined by the given policy.
+     * 
+     * @param cachePolicy the policy defining the cache
+     * @param refreshExecutor the executor on which background reloads run, or null if the cache
+     *        has no loader to reload entries with, in which case entries aren't refreshed ahead
+     * @return the cache, or null if caching is disabled by the policy
+     * @throws IdentityStoreConfigurationException if the policy has invalid settings
+     */
+    static <K, V> ExpiringCache<K, V> create(CachePolicy cachePolicy, Executor refreshExecutor) {
+        if (!cachePolicy.enabled()) {
+            return null;
+        }
+
+        try {
+            return new ExpiringCache<>(
+                cachePolicy.maxSize(),
+                cachePolicy.timeToLive(),
+                cachePolicy.negativeTimeToLive(),
+                refreshExecutor != null ? cachePolicy.refreshAhead() : 0,
+                refreshExecutor);
+        }
+        catch (IllegalArgumentException e) {
+            throw new IdentityStoreConfigurationException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Returns the value for the given key, if it's present and not expired.
+     * 
+     * @param key the key to look up
+     * @return the value, or null if there's no value or a cached absent value for the key
+     */
+    V get(K key) {
+        CacheEntry<V> entry = getEntry(key);
+        return entry != null ? entry.value : null;
+    }
+
+    /**
+     * Returns the value for the given key, if it's present and not expired, telling a cached
+     * absent value apart from a key that isn't cached.
+     * 
+     * @param key the key to look up
+     * @param missing the value to return when the key isn't cached
+     * @return the value, null if there's a cached absent value, or <code>missing</code> if
+     *         there's no entry for the key
+     */
+    V getOrDefault(K key, V missing) {
+        CacheEntry<V> entry = getEntry(key);
+        return entry != null ? entry.value : missing;
+    }
+
+    /**
+     * Returns the value for the given key, loading it and adding it to the cache
+     * when it's not present. The loader is called without holding any lock, so
+     * concurrent callers may load the same key more than once. It also reloads
+     * entries in the background, so it must not use anything that belongs to the
+     * calling thread.
+     * 
+     * @param key the key to look up
+     * @param loader function that loads the value for a key
+     * @return the cached or loaded value
+     */
+    V get(K key, Function<? super K, ? extends V> loader) {
+        return get(key, loader, loader);
+    }
+
+    /**
+     * Returns the value for the given key, loading it and adding it to the cache
+     * when it's not present. If the entry for the key is about to expire, it's
+     * reloaded in the background using the given refresher.
+     * 
+     * @param key the key to look up
+     * @param loader function that loads the value for a key on the calling thread
+     * @param refresher function that reloads the value for a key in the background
+     * @return the cached or loaded value
+     */
+    V get(K key, Function<? super K, ? extends V> loader, Function<? super K, ? extends V> refresher) {
+        CacheEntry<V> entry = getEntry(key);
+        if (entry == null) {
+            V value = loader.apply(key);
+            put(key, value);
+            return value;
+        }
+
+        if (refreshAheadNanos > 0 && nanoTime() - (entry.expiresAt - refreshAheadNanos) >= 0 && entry.startRefresh()) {
+            refreshExecutor.execute(() -> refresh(key, entry, refresher));
+        }
+
+        return entry.value;
+    }
+
+    /**
+     * Adds a value to the cache, replacing any existing value for the key. A null value is
+     * only cached when absent values are cached, otherwise it removes any existing value.
+     * 
+     * @param key the key
+     * @param value the value
+     */
+    void put(K key, V value) {
+        if (value == null && negativeTimeToLiveNanos == 0) {
+            invalidate(key);
+            return;
+        }
+
+        CacheEntry<V> entry = new CacheEntry<>(value, nanoTime() + (value != null ? timeToLiveNanos : negativeTimeToLiveNanos));
+        synchronized (entries) {
+            entries.put(key, entry);
+        }
+    }
+
+    /**
+     * Replaces the given entry by the given value, unless the entry has been replaced or removed
+     * in the meantime, e.g. because it was invalidated while it was being reloaded.
+     */
+    private void replace(K key, CacheEntry<V> expected, V value) {
+        CacheEntry<V> entry = value != null || negativeTimeToLiveNanos > 0 ?
+            new CacheEntry<>(value, nanoTime() + (value != null ? timeToLiveNanos : negativeTimeToLiveNanos)) : null;
+
+        synchronized (entries) {
+            if (entries.get(key) != expected) {
+                return;
+            }
+            if (entry != null) {
+                entries.put(key, entry);
+            }
+            else {
+                entries.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Removes the value for the given key, if any.
+     * 
+     * @param key the key
+     */
+    void invalidate(K key) {
+        synchronized (entries) {
+            entries.remove(key);
+        }
+    }
+
+    /**
+     * Removes all values.
+     */
+    void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * @return the number of entries currently held, including expired ones that haven't been removed yet
+     */
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return the number of lookups that found a value
+     */
+    long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of lookups that didn't find a value
+     */
+    long getMissCount() {
+        return misses.sum();
+    }
+
+    private CacheEntry<V> getEntry(K key) {
+        CacheEntry<V> entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (entry != null && entry.isExpired(nanoTime())) {
+                entries.remove(key);
+                entry = null;
+            }
+        }
+
+        if (entry == null) {
+            misses.increment();
+        }
+        else {
+            hits.increment();
+        }
+
+        return entry;
+    }
+
+    private void refresh(K key, CacheEntry<V> refreshed, Function<? super K, ? extends V> refresher) {
+        try {
+            replace(key, refreshed, refresher.apply(key));
+        }
+        catch (RuntimeException e) {
+            // The existing entry just expires, and the next lookup loads it again
+            LOGGER.log(FINE, "Refreshing cache entry failed", e);
+        }
+    }
+
+    private static class CacheEntry<V> {
+
+        private final V value;
+        private final long expiresAt;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        CacheEntry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now) {
+            return now - expiresAt >= 0;
+        }
+
+        boolean startRefresh() {
+            return refreshing.compareAndSet(false, true);
+        }
+    }
+
+}
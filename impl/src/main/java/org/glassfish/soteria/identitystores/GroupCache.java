@@ -0,0 +1,139 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015-2017 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://oss.oracle.com/licenses/CDDL+GPL-1.1
+ * or LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.soteria.identitystores;
+
+import static java.util.Collections.unmodifiableSet;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+import org.glassfish.soteria.identitystores.annotation.CachePolicy;
+
+/**
+ * Cache of the groups that callers are in, for identity stores that look up groups
+ * in a backing store. Each identity store has its own cache, keyed by whatever
+ * identifies a caller in that store.
+ * 
+ * <p>
+ * A caller who is not in any group is cached as an absent value, so that it only
+ * stays in the cache if the policy allows caching of such results.
+ *
+ */
+class GroupCache {
+
+    // Returned by the cache for callers that aren't cached, compared by identity
+    private static final Set<String> NOT_CACHED = unmodifiableSet(new HashSet<>());
+
+    private final ExpiringCache<String, Set<String>> cache;
+
+    private GroupCache(ExpiringCache<String, Set<String>> cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Creates a group cache as defined by the given policy.
+     * 
+     * @param cachePolicy the policy defining the cache
+     * @param refreshExecutor the executor on which groups are reloaded ahead of their expiry
+     * @return the cache, or null if caching is disabled by the policy
+     */
+    static GroupCache create(CachePolicy cachePolicy, Executor refreshExecutor) {
+        ExpiringCache<String, Set<String>> cache = ExpiringCache.create(cachePolicy, refreshExecutor);
+        return cache != null ? new GroupCache(cache) : null;
+    }
+
+    /**
+     * Returns the groups of the given caller, loading them when they're not cached.
+     * 
+     * @param caller the key identifying the caller
+     * @param loader function that loads the groups of a caller on the calling thread
+     * @param refresher function that reloads the groups of a caller in the background
+     * @return a modifiable copy of the caller's groups
+     */
+    Set<String> get(String caller, Function<String, Set<String>> loader, Function<String, Set<String>> refresher) {
+        Set<String> groups = cache.get(
+            caller,
+            key -> toCacheValue(loader.apply(key)),
+            key -> toCacheValue(refresher.apply(key)));
+
+        return groups != null ? new HashSet<>(groups) : new HashSet<>();
+    }
+
+    /**
+     * Returns the groups of the given caller if they're cached, without loading them.
+     * 
+     * @param caller the key identifying the caller
+     * @return a modifiable copy of the caller's groups, or null if they're not cached
+     */
+    Set<String> getIfPresent(String caller) {
+        Set<String> groups = cache.getOrDefault(caller, NOT_CACHED);
+        if (groups == NOT_CACHED) {
+            return null;
+        }
+
+        return groups != null ? new HashSet<>(groups) : new HashSet<>();
+    }
+
+    /**
+     * Caches the given groups of the given caller, replacing any groups cached before.
+     * 
+     * @param caller the key identifying the caller
+     * @param groups the caller's groups
+     */
+    void put(String caller, Set<String> groups) {
+        cache.put(caller, toCacheValue(groups));
+    }
+
+    void invalidate(String caller) {
+        cache.invalidate(caller);
+    }
+
+    void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    private static Set<String> toCacheValue(Set<String> groups) {
+        return groups.isEmpty() ? null : unmodifiableSet(new HashSet<>(groups));
+    }
+
+}
@@ -0,0 +1,155 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015-2017 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://oss.oracle.com/licenses/CDDL+GPL-1.1
+ * or LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.soteria.identitystores;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * A bounded pool of threads that verify passwords against their stored hashes. The number of
+ * threads caps the processor time spent on password hashing, and a task that finds all threads
+ * busy and the queue full is rejected right away, rather than waiting for one.
+ *
+ */
+class HashingExecutor {
+
+    private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+
+    private final ThreadPoolExecutor executor;
+    private final Semaphore admitted;
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Creates a hashing executor. Its threads are only kept while there's work, so an idle
+     * executor doesn't need to be shut down.
+     * 
+     * @param parallelism the number of threads
+     * @param queueDepth the number of tasks that may wait for a thread
+     */
+    HashingExecutor(int parallelism, int queueDepth) {
+        if (parallelism < 1 || queueDepth < 0) {
+            throw new IdentityStoreConfigurationException(
+                "Bad hashing pool size, parallelism " + parallelism + " and queue depth " + queueDepth);
+        }
+
+        // Tasks are admitted here rather than by a bounded queue, since a thread that has just
+        // finished a task isn't ready yet to take the next one from a queue without capacity
+        admitted = new Semaphore(parallelism + queueDepth);
+
+        String namePrefix = "Password hashing " + POOL_NUMBER.incrementAndGet() + "-";
+        AtomicInteger threadNumber = new AtomicInteger();
+
+        executor = new ThreadPoolExecutor(parallelism, parallelism, 60, SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, namePrefix + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs the given task on the pool, and waits for its result.
+     * 
+     * @param task the task to run
+     * @return the result of the task
+     * @throws IdentityStoreUnavailableException if all threads are busy and the queue is full
+     */
+    <T> T execute(Supplier<T> task) {
+        if (!admitted.tryAcquire()) {
+            rejected.increment();
+            throw new IdentityStoreUnavailableException("Password hashing is overloaded");
+        }
+
+        CompletableFuture<T> future = new CompletableFuture<>();
+        executor.execute(() -> {
+            T result = null;
+            Throwable failure = null;
+
+            // Skipped when the caller stopped waiting before it ran
+            if (!future.isDone()) {
+                try {
+                    result = task.get();
+                }
+                catch (Throwable e) {
+                    failure = e;
+                }
+            }
+
+            // Released before the caller gets the result, so that its next task is admitted
+            admitted.release();
+
+            if (failure != null) {
+                future.completeExceptionally(failure);
+            }
+            else {
+                future.complete(result);
+            }
+        });
+
+        try {
+            return future.get();
+        }
+        catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IdentityStoreRuntimeException(e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IdentityStoreRuntimeException(e.getCause());
+        }
+    }
+
+    long getRejectedCount() {
+        return rejected.sum();
+    }
+
+}
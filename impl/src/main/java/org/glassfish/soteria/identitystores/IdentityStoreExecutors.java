@@ -0,0 +1,137 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015-2017 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://oss.oracle.com/licenses/CDDL+GPL-1.1
+ * or LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.soteria.identitystores;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.glassfish.soteria.cdi.CdiUtils.jndiLookup;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Provides the executors that identity stores run background work on.
+ *
+ */
+final class IdentityStoreExecutors {
+
+    // Background work is mostly waiting on the backing store, and is rare enough for a few threads
+    private static final int BACKGROUND_THREADS = 2;
+
+    private IdentityStoreExecutors() {
+    }
+
+    /**
+     * Looks up the executor with the given JNDI name, e.g. a managed executor service of the
+     * server. When no name is given, an executor that starts a virtual thread per task is
+     * created if the JVM supports virtual threads. Otherwise the common fork join pool is used.
+     * 
+     * @param jndiName the JNDI name of the executor, or an empty string for the default executor
+     * @return the executor
+     */
+    static Executor getExecutor(String jndiName) {
+        if (jndiName.isEmpty()) {
+            ExecutorService virtualThreadExecutor = newVirtualThreadPerTaskExecutor();
+            return virtualThreadExecutor != null ? virtualThreadExecutor : ForkJoinPool.commonPool();
+        }
+
+        Object executor = jndiLookup(jndiName);
+        if (!(executor instanceof Executor)) {
+            throw new IdentityStoreConfigurationException("No executor found at " + jndiName);
+        }
+        return (Executor) executor;
+    }
+
+    /**
+     * Looks up the executor with the given JNDI name for background work, such as refreshing
+     * cache entries ahead of their expiry. When no name is given, a small pool of daemon threads
+     * is created for the identity store, which should shut it down via {@link #shutdown(Executor, String)}.
+     * Such threads aren't managed by the server, so work on them can't look up <code>java:comp</code>
+     * names.
+     * 
+     * @param jndiName the JNDI name of the executor, or an empty string for a pool of the store's own
+     * @param storeName name of the identity store, used to name the threads
+     * @return the executor
+     */
+    static Executor getBackgroundExecutor(String jndiName, String storeName) {
+        if (!jndiName.isEmpty()) {
+            return getExecutor(jndiName);
+        }
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(BACKGROUND_THREADS, BACKGROUND_THREADS, 60, SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, storeName + " background " + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Shuts down the given executor if it was created by {@link #getExecutor(String)} or
+     * {@link #getBackgroundExecutor(String, String)}, rather
+     * than being shared.
+     * 
+     * @param executor the executor to shut down
+     * @param jndiName the JNDI name the executor was obtained with
+     */
+    static void shutdown(Executor executor, String jndiName) {
+        if (jndiName.isEmpty() && executor instanceof ExecutorService && executor != ForkJoinPool.commonPool()) {
+            ((ExecutorService) executor).shutdown();
+        }
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            // Only available on Java 21 and later
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+}
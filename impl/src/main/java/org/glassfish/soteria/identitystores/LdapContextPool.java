@@ -0,0 +1,393 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015-2017 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://oss.oracle.com/licenses/CDDL+GPL-1.1
+ * or LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.soteria.identitystores;
+
+import static java.lang.System.currentTimeMillis;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.logging.Level.FINE;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import javax.naming.NamingException;
+import javax.naming.ldap.LdapContext;
+
+import org.glassfish.soteria.identitystores.annotation.LdapConnectionPool;
+
+/**
+ * A bounded pool of LDAP contexts, which are all created by the same factory and are
+ * thus bound with the same credentials.
+ * 
+ * <p>
+ * Contexts are handed out for exclusive use by a single thread, and should be given back
+ * via {@link #release(LdapContext)} when the operation using them succeeded, or via
+ * {@link #invalidate(LdapContext)} when the operation failed in a way that may have left the
+ * context unusable.
+ * 
+ * <p>
+ * The most recently used context is handed out first, so that contexts which are not needed
+ * anymore remain idle and are closed after the configured maximum idle time. A context that has
+ * been idle for a while is checked for being alive before it's handed out.
+ * 
+ * <p>
+ * The pool is filled up to its minimum number of contexts via {@link #fill()}. Contexts that are
+ * closed because they were invalidated or found dead are then replaced in the background.
+ *
+ */
+class LdapContextPool {
+
+    private static final Logger LOGGER = Logger.getLogger(LdapContextPool.class.getName());
+
+    private static final String[] NO_ATTRIBUTES = { "1.1" };
+
+    private final Supplier<LdapContext> contextFactory;
+    private final Executor refillExecutor;
+
+    private final boolean enabled;
+    private final int minSize;
+    private final int maxIdleTime;
+    private final int borrowTimeout;
+    private final int validationInterval;
+
+    private final Semaphore permits;
+    private final AtomicBoolean filling = new AtomicBoolean();
+
+    // Guarded by this
+    private final Deque<IdleContext> idleContexts = new ArrayDeque<>();
+    private int openContexts;
+    private boolean closed;
+
+    LdapContextPool(Supplier<LdapContext> contextFactory, LdapConnectionPool connectionPool, Executor refillExecutor) {
+        if (connectionPool.minSize() < 0 || connectionPool.maxSize() < 1 || connectionPool.minSize() > connectionPool.maxSize()) {
+            throw new IdentityStoreConfigurationException(
+                "Bad LDAP connection pool size, min: " + connectionPool.minSize() + " max: " + connectionPool.maxSize());
+        }
+
+        this.contextFactory = contextFactory;
+        this.refillExecutor = refillExecutor;
+        this.enabled = connectionPool.enabled();
+        this.minSize = connectionPool.minSize();
+        this.maxIdleTime = connectionPool.maxIdleTime();
+        this.borrowTimeout = connectionPool.borrowTimeout();
+        this.validationInterval = connectionPool.validationInterval();
+        this.permits = new Semaphore(connectionPool.maxSize(), true);
+    }
+
+    /**
+     * Whether contexts are pooled. When they're not, every {@link #borrow()} creates
+     * a new context, which is closed again when given back.
+     * 
+     * @return true if contexts are pooled, false otherwise
+     */
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Opens new idle contexts until the pool holds its minimum number of contexts. Opening a
+     * context may fail, e.g. when the server is down, in which case the pool is topped up
+     * again when a context is next closed.
+     */
+    void fill() {
+        if (!enabled || minSize == 0) {
+            return;
+        }
+
+        while (true) {
+            synchronized (this) {
+                if (closed || openContexts >= minSize) {
+                    return;
+                }
+                // Counted up front, so that concurrent fills don't overshoot the minimum
+                openContexts++;
+            }
+
+            LdapContext context;
+            try {
+                context = contextFactory.get();
+            }
+            catch (RuntimeException e) {
+                synchronized (this) {
+                    openContexts--;
+                }
+                LOGGER.log(FINE, "Opening an LDAP connection to fill the pool failed", e);
+                return;
+            }
+
+            boolean added = false;
+            synchronized (this) {
+                if (!closed) {
+                    idleContexts.addLast(new IdleContext(context, currentTimeMillis()));
+                    added = true;
+                }
+                else {
+                    openContexts--;
+                }
+            }
+
+            if (!added) {
+                closeContext(context);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Takes a context from the pool, creating a new one if no idle context is available.
+     * 
+     * @return a context for the exclusive use of the caller
+     */
+    LdapContext borrow() {
+        if (!enabled) {
+            return contextFactory.get();
+        }
+
+        acquirePermit();
+        try {
+            LdapContext context = takeIdleContext();
+            if (context == null) {
+                context = contextFactory.get();
+                synchronized (this) {
+                    openContexts++;
+                }
+            }
+            return context;
+        }
+        catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Gives a context that was obtained via {@link #borrow()} back to the pool.
+     * 
+     * @param context the context to give back
+     */
+    void release(LdapContext context) {
+        if (!enabled) {
+            closeContext(context);
+            return;
+        }
+
+        boolean added = false;
+        synchronized (this) {
+            if (!closed) {
+                idleContexts.addFirst(new IdleContext(context, currentTimeMillis()));
+                added = true;
+            }
+            else {
+                openContexts--;
+            }
+        }
+
+        if (!added) {
+            closeContext(context);
+        }
+
+        permits.release();
+        evictIdleContexts();
+    }
+
+    /**
+     * Closes a context that was obtained via {@link #borrow()} and may not be usable anymore,
+     * making room in the pool for a fresh one.
+     * 
+     * @param context the context to discard
+     */
+    void invalidate(LdapContext context) {
+        closeContext(context);
+
+        if (enabled) {
+            synchronized (this) {
+                openContexts--;
+            }
+            permits.release();
+            refill();
+        }
+    }
+
+    /**
+     * Closes all idle contexts. Contexts that are in use at the moment are closed when they
+     * are given back.
+     */
+    void close() {
+        List<IdleContext> contextsToClose;
+        synchronized (this) {
+            closed = true;
+            contextsToClose = new ArrayList<>(idleContexts);
+            openContexts -= idleContexts.size();
+            idleContexts.clear();
+        }
+
+        for (IdleContext idleContext : contextsToClose) {
+            closeContext(idleContext.context);
+        }
+    }
+
+    private void acquirePermit() {
+        try {
+            if (!permits.tryAcquire(borrowTimeout, MILLISECONDS)) {
+                throw new IdentityStoreRuntimeException(
+                    "Timed out after " + borrowTimeout + " ms waiting for an LDAP connection to become available");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IdentityStoreRuntimeException(e);
+        }
+    }
+
+    private LdapContext takeIdleContext() {
+        while (true) {
+            IdleContext idleContext;
+            synchronized (this) {
+                idleContext = idleContexts.pollFirst();
+            }
+
+            if (idleContext == null) {
+                return null;
+            }
+
+            if (currentTimeMillis() - idleContext.idleSince < validationInterval || isAlive(idleContext.context)) {
+                return idleContext.context;
+            }
+
+            closeContext(idleContext.context);
+            synchronized (this) {
+                openContexts--;
+            }
+            refill();
+        }
+    }
+
+    /**
+     * @return the number of contexts that are open but not handed out
+     */
+    synchronized int getIdleCount() {
+        return idleContexts.size();
+    }
+
+    /**
+     * Replaces closed contexts in the background when the pool has dropped below its minimum
+     * number of contexts, so that the thread that closed them doesn't have to wait for that.
+     */
+    private void refill() {
+        synchronized (this) {
+            if (minSize == 0 || closed || openContexts >= minSize) {
+                return;
+            }
+        }
+
+        if (filling.compareAndSet(false, true)) {
+            refillExecutor.execute(() -> {
+                try {
+                    fill();
+                }
+                finally {
+                    filling.set(false);
+                }
+            });
+        }
+    }
+
+    private void evictIdleContexts() {
+        if (maxIdleTime <= 0) {
+            return;
+        }
+
+        List<IdleContext> contextsToClose = new ArrayList<>();
+        long now = currentTimeMillis();
+
+        synchronized (this) {
+            // Oldest idle contexts are at the end of the deque
+            while (openContexts > minSize && !idleContexts.isEmpty() && now - idleContexts.peekLast().idleSince > maxIdleTime) {
+                contextsToClose.add(idleContexts.pollLast());
+                openContexts--;
+            }
+        }
+
+        for (IdleContext idleContext : contextsToClose) {
+            closeContext(idleContext.context);
+        }
+    }
+
+    private static boolean isAlive(LdapContext context) {
+        try {
+            // Read the root DSE without requesting any attributes
+            context.getAttributes("", NO_ATTRIBUTES);
+            return true;
+        }
+        catch (NamingException e) {
+            // Whatever the reason, a connection that can't read the root DSE isn't handed out
+            return false;
+        }
+    }
+
+    private static void closeContext(LdapContext context) {
+        try {
+            if (context != null) {
+                context.close();
+            }
+        } catch (NamingException e) {
+            // We can silently ignore this, no?
+        }
+    }
+
+    private static class IdleContext {
+
+        private final LdapContext context;
+        private final long idleSince;
+
+        IdleContext(LdapContext context, long idleSince) {
+            this.context = context;
+            this.idleSince = idleSince;
+        }
+    }
+
+}
@@ -0,0 +1,168 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015-2017 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://oss.oracle.com/licenses/CDDL+GPL-1.1
+ * or LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.soteria.identitystores;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An LDAP search filter with <code>%s</code> placeholders, such as the caller and group search
+ * filters of the LDAP identity store. The template is parsed once, after which a filter is
+ * made by splicing in a value, which is escaped as described in RFC 4515. This makes sure a
+ * value like a caller name can't change the meaning of the filter, for instance by turning
+ * it into a wildcard search.
+ * <p>
+ * As with {@link String#format(String, Object...)}, <code>%%</code> stands for a single
+ * <code>%</code>. Every <code>%s</code> is replaced by the same value.
+ *
+ */
+class LdapFilterTemplate {
+
+    // Literal parts of the filter, with a placeholder between each two of them
+    private final String[] parts;
+    private final int literalLength;
+
+    LdapFilterTemplate(String template) {
+        List<String> partList = new ArrayList<>();
+        StringBuilder part = new StringBuilder();
+
+        for (int i = 0; i < template.length(); i++) {
+            char c = template.charAt(i);
+            if (c == '%' && i + 1 < template.length() && template.charAt(i + 1) == 's') {
+                partList.add(part.toString());
+                part.setLength(0);
+                i++;
+            }
+            else if (c == '%' && i + 1 < template.length() && template.charAt(i + 1) == '%') {
+                part.append('%');
+                i++;
+            }
+            else {
+                part.append(c);
+            }
+        }
+        partList.add(part.toString());
+
+        parts = partList.toArray(new String[partList.size()]);
+
+        int length = 0;
+        for (String literal : parts) {
+            length += literal.length();
+        }
+        literalLength = length;
+    }
+
+    /**
+     * Makes a filter from this template, with the given value escaped.
+     * 
+     * @param value the value for the placeholders
+     * @return the filter
+     */
+    String format(String value) {
+        // Leave some room for escapes
+        StringBuilder filter = new StringBuilder(literalLength + (parts.length - 1) * (value.length() + 8));
+
+        filter.append(parts[0]);
+        for (int i = 1; i < parts.length; i++) {
+            appendEscaped(filter, value);
+            filter.append(parts[i]);
+        }
+
+        return filter.toString();
+    }
+
+    /**
+     * Makes a filter from this template, with the given value spliced in as-is. This is
+     * meant for values that are part of the filter syntax, such as a <code>*</code> to
+     * match all entries.
+     * 
+     * @param value the value for the placeholders
+     * @return the filter
+     */
+    String formatUnescaped(String value) {
+        return String.join(value, parts);
+    }
+
+    /**
+     * Whether the filters made from this template select entries by the value of the given
+     * attribute, i.e. every placeholder is the value of an equality match on the attribute.
+     * 
+     * @param attribute the name of the attribute
+     * @return true if the placeholders are values of the attribute, false otherwise
+     */
+    boolean isEqualityMatchOn(String attribute) {
+        String prefix = "(" + attribute + "=";
+        for (int i = 0; i < parts.length - 1; i++) {
+            String before = parts[i];
+            if (!before.regionMatches(true, before.length() - prefix.length(), prefix, 0, prefix.length()) ||
+                    !parts[i + 1].startsWith(")")) {
+                return false;
+            }
+        }
+        return parts.length > 1;
+    }
+
+    private static void appendEscaped(StringBuilder filter, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '*':
+                    filter.append("\\2a");
+                    break;
+                case '(':
+                    filter.append("\\28");
+                    break;
+                case ')':
+                    filter.append("\\29");
+                    break;
+                case '\\':
+                    filter.append("\\5c");
+                    break;
+                case '\0':
+                    filter.append("\\00");
+                    break;
+                default:
+                    filter.append(c);
+            }
+        }
+    }
+
+}
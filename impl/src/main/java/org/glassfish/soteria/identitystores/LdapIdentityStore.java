@@ -49,45 +49,80 @@ import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.NamingSecurityException;
 import javax.naming.NameNotFoundException;
+import javax.naming.OperationNotSupportedException;
+import javax.naming.SizeLimitExceededException;
 import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
 import javax.naming.directory.InvalidSearchControlsException;
 import javax.naming.directory.InvalidSearchFilterException;
 import javax.naming.directory.NoSuchAttributeException;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
 import javax.naming.ldap.InitialLdapContext;
 import javax.naming.ldap.LdapContext;
 import javax.naming.ldap.LdapName;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
 import javax.naming.ldap.Rdn;
 import javax.security.enterprise.credential.Credential;
 import javax.security.enterprise.credential.UsernamePasswordCredential;
 import javax.security.enterprise.identitystore.CredentialValidationResult;
-import javax.security.enterprise.identitystore.IdentityStore;
 import javax.security.enterprise.identitystore.IdentityStorePermission;
 import javax.security.enterprise.identitystore.LdapIdentityStoreDefinition;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.glassfish.soteria.identitystores.annotation.LdapIdentityStoreOptions;
+import org.glassfish.soteria.identitystores.annotation.LdapLocalReplica;
+import org.glassfish.soteria.identitystores.annotation.LdapIdentityStoreOptions.NestedGroupStrategy;
+
 import static java.lang.String.format;
 import static java.util.Arrays.asList;
 import static java.util.Collections.*;
+import static java.util.concurrent.CompletableFuture.supplyAsync;
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.logging.Level.FINEST;
 import static javax.naming.Context.*;
 import static javax.naming.directory.SearchControls.ONELEVEL_SCOPE;
 import static javax.naming.directory.SearchControls.SUBTREE_SCOPE;
+import static javax.naming.ldap.Control.NONCRITICAL;
 import static javax.security.enterprise.identitystore.CredentialValidationResult.INVALID_RESULT;
 import static javax.security.enterprise.identitystore.CredentialValidationResult.NOT_VALIDATED_RESULT;
 import static javax.security.enterprise.identitystore.LdapIdentityStoreDefinition.LdapSearchScope;
 
-public class LdapIdentityStore implements IdentityStore {
+public class LdapIdentityStore implements BulkGroupsIdentityStore {
 
     private static final String DEFAULT_USER_FILTER = "(&(%s=%s)(|(objectclass=user)(objectclass=person)(objectclass=inetOrgPerson)(objectclass=organizationalPerson))(!(objectclass=computer)))";
     private static final String DEFAULT_GROUP_FILTER = "(&(%s=%s)(|(objectclass=group)(objectclass=groupofnames)(objectclass=groupofuniquenames)))";
 
+    private static final String CONNECT_TIMEOUT = "com.sun.jndi.ldap.connect.timeout";
+    private static final String READ_TIMEOUT = "com.sun.jndi.ldap.read.timeout";
+    private static final String LDAP_VERSION = "java.naming.ldap.version";
+
+    private static final String MATCHING_RULE_IN_CHAIN_OID = "1.2.840.113556.1.4.1941";
+
+    // Number of callers whose groups are searched for with a single OR-filter
+    private static final int BULK_GROUP_SEARCH_CHUNK_SIZE = 50;
+
     private static final Logger LOGGER = Logger.getLogger("LDAP_IDSTORE_DEBUG");
 
+    // Names of group DNs, shared by all stores since a group name only depends on the DN
+    private static final ExpiringCache<String, String> GROUP_NAMES = new ExpiringCache<>(10000, HOURS.toMillis(1));
+
 //    static {
 //        LOGGER.setLevel(FINEST);
 //    }
@@ -101,12 +136,122 @@ public class LdapIdentityStore implements IdentityStore {
         }
     }
 
+    @LdapIdentityStoreOptions
+    private static final class DefaultOptions {
+    }
+
     private final LdapIdentityStoreDefinition ldapIdentityStoreDefinition;
     private final Set<ValidationType> validationTypes;
+    private final LdapServerSet servers;
+    private final boolean fastBind;
+    private volatile boolean fastBindSupported = true;
+    private final ExpiringCache<String, String> callerDnCache;
+    private final GroupCache groupCache;
+    private final int groupSearchPageSize;
+    private final NestedGroupStrategy nestedGroups;
+    private final int nestedGroupMaxDepth;
+    private final ExpiringCache<String, Map<String, Set<String>>> groupGraphCache;
+    private final boolean memberOfInCallerSearch;
+    private final boolean minimalCallerSearch;
+    private final String groupLookupExecutorName;
+    private final String backgroundExecutorName;
+    private final Executor backgroundExecutor;
+    private final Executor groupLookupExecutor;
+    private final LdapReplica replica;
+    private final boolean replicaCallerLookup;
+    private final LdapFilterTemplate callerSearchFilter;
+    private final LdapFilterTemplate groupSearchFilter;
+    private final int connectTimeout;
+    private final int authenticationTimeout;
 
     public LdapIdentityStore(LdapIdentityStoreDefinition ldapIdentityStoreDefinition) {
+        this(ldapIdentityStoreDefinition, DefaultOptions.class.getAnnotation(LdapIdentityStoreOptions.class));
+    }
+
+    public LdapIdentityStore(LdapIdentityStoreDefinition ldapIdentityStoreDefinition, LdapIdentityStoreOptions ldapIdentityStoreOptions) {
         this.ldapIdentityStoreDefinition = ldapIdentityStoreDefinition;
         validationTypes = unmodifiableSet(new HashSet<>(asList(ldapIdentityStoreDefinition.useFor())));
+        backgroundExecutorName = ldapIdentityStoreOptions.backgroundExecutor();
+        backgroundExecutor = IdentityStoreExecutors.getBackgroundExecutor(backgroundExecutorName, "LDAP identity store " + ldapIdentityStoreDefinition.url());
+        servers = createServers(ldapIdentityStoreOptions);
+        fastBind = ldapIdentityStoreOptions.fastBind();
+        if (fastBind && !ldapIdentityStoreOptions.callerConnectionPool().enabled()) {
+            LOGGER.log(Level.WARNING, "Fast bind is only used with pooled caller connections, but the caller connection pool is disabled");
+        }
+        callerDnCache = ExpiringCache.create(ldapIdentityStoreOptions.callerDnCache(), backgroundExecutor);
+        groupCache = GroupCache.create(ldapIdentityStoreOptions.groupCache(), backgroundExecutor);
+        groupSearchPageSize = ldapIdentityStoreOptions.groupSearchPageSize();
+        nestedGroups = ldapIdentityStoreOptions.nestedGroups();
+        nestedGroupMaxDepth = ldapIdentityStoreOptions.nestedGroupMaxDepth();
+        groupGraphCache = nestedGroups == NestedGroupStrategy.GRAPH_WALK ? ExpiringCache.create(ldapIdentityStoreOptions.groupGraphCache(), backgroundExecutor) : null;
+        connectTimeout = ldapIdentityStoreOptions.connectTimeout();
+        authenticationTimeout = ldapIdentityStoreOptions.authenticationTimeout();
+        callerSearchFilter = createCallerSearchFilter();
+        groupSearchFilter = createGroupSearchFilter(nestedGroups == NestedGroupStrategy.MATCHING_RULE_IN_CHAIN);
+
+        minimalCallerSearch = ldapIdentityStoreOptions.minimalCallerSearch();
+        groupLookupExecutorName = ldapIdentityStoreOptions.groupLookupExecutor();
+        groupLookupExecutor = ldapIdentityStoreOptions.concurrentGroupLookup() ? IdentityStoreExecutors.getExecutor(groupLookupExecutorName) : null;
+        memberOfInCallerSearch = ldapIdentityStoreOptions.memberOfInCallerSearch() && isMemberOfMode() &&
+            nestedGroups == NestedGroupStrategy.NONE && validationTypes.contains(ValidationType.PROVIDE_GROUPS);
+
+        if (nestedGroups == NestedGroupStrategy.MATCHING_RULE_IN_CHAIN && isMemberOfMode()) {
+            throw new IdentityStoreConfigurationException("Nested groups via the in-chain matching rule require a groupSearchBase");
+        }
+
+        if (ldapIdentityStoreOptions.localReplica().enabled()) {
+            replica = createReplica(ldapIdentityStoreOptions.localReplica());
+            replica.start();
+
+            // The replica finds callers by their name attribute, which gives a different caller than
+            // searching does when the caller search filter matches on something else
+            replicaCallerLookup = callerSearchFilter.isEqualityMatchOn(ldapIdentityStoreDefinition.callerNameAttribute());
+            if (!replicaCallerLookup) {
+                LOGGER.log(Level.INFO, "The caller search filter doesn't match on the caller name attribute, " +
+                    "the local replica is only used for groups and callers are searched for");
+            }
+        }
+        else {
+            replica = null;
+            replicaCallerLookup = false;
+        }
+
+        // Only now are all settings that the connection factories use in place
+        servers.fill();
+    }
+
+    private LdapReplica createReplica(LdapLocalReplica localReplica) {
+        boolean callersSearched = !ldapIdentityStoreDefinition.callerSearchBase().isEmpty();
+
+        // The filters match all callers and groups when given a wildcard
+        return new LdapReplica(
+            // A persistent search waits for changes indefinitely, so it can't have a read timeout
+            () -> servers.execute(server -> createSearchLdapContext(server.getUrl(), 0)),
+            callersSearched ? ldapIdentityStoreDefinition.callerSearchBase() : ldapIdentityStoreDefinition.callerBaseDn(),
+            callerSearchFilter.formatUnescaped("*"),
+            callersSearched ? convertScopeValue(ldapIdentityStoreDefinition.callerSearchScope()) : ONELEVEL_SCOPE,
+            ldapIdentityStoreDefinition.callerNameAttribute(),
+            isMemberOfMode() ? ldapIdentityStoreDefinition.groupMemberOfAttribute() : null,
+            ldapIdentityStoreDefinition.groupSearchBase(),
+            createGroupSearchFilter(false).formatUnescaped("*"),
+            convertScopeValue(ldapIdentityStoreDefinition.groupSearchScope()),
+            ldapIdentityStoreDefinition.groupNameAttribute(),
+            ldapIdentityStoreDefinition.groupMemberAttribute(),
+            localReplica);
+    }
+
+    private LdapServerSet createServers(LdapIdentityStoreOptions ldapIdentityStoreOptions) {
+        List<LdapServer> serverList = new ArrayList<>();
+
+        // Like JNDI, accept a space separated list of URLs
+        for (String url : ldapIdentityStoreDefinition.url().trim().split("\\s+")) {
+            serverList.add(new LdapServer(
+                url,
+                new LdapContextPool(() -> createSearchLdapContext(url), ldapIdentityStoreOptions.searchConnectionPool(), backgroundExecutor),
+                new LdapContextPool(() -> createCallerBindLdapContext(url), ldapIdentityStoreOptions.callerConnectionPool(), backgroundExecutor)));
+        }
+
+        return new LdapServerSet(serverList, ldapIdentityStoreOptions.loadBalancing(), this::isAvailable);
     }
 
     @Override
@@ -118,18 +263,25 @@ public class LdapIdentityStore implements IdentityStore {
     }
 
     public CredentialValidationResult validate(UsernamePasswordCredential usernamePasswordCredential) {
+        long deadline = nanoTime() + MILLISECONDS.toNanos(authenticationTimeout);
 
-        LdapContext searchContext = createSearchLdapContext();
-        try {
-            String callerDn = getCallerDn(searchContext, usernamePasswordCredential.getCaller());
-            return validateCallerAndGetGroups(searchContext, callerDn, usernamePasswordCredential);
-        }
-        finally {
-            closeContext(searchContext);
-        }
+        return withSearchContext((server, searchContext) -> {
+            // Receives the caller's groups if they're read along with the caller's DN
+            AtomicReference<Attribute> callerMemberOf = new AtomicReference<>();
+
+            String callerDn = getCallerDn(searchContext, usernamePasswordCredential.getCaller(),
+                memberOfInCallerSearch ? callerMemberOf::set : null);
+            checkDeadline(deadline, "searching for the caller");
+
+            return validateCallerAndGetGroups(server, searchContext, callerDn, callerMemberOf.get(), usernamePasswordCredential, deadline);
+        });
     }
 
     private String getCallerDn(LdapContext searchContext, String callerName) {
+        return getCallerDn(searchContext, callerName, null);
+    }
+
+    private String getCallerDn(LdapContext searchContext, String callerName, Consumer<Attribute> memberOfConsumer) {
 
         String callerDn = null;
         if (!ldapIdentityStoreDefinition.callerBaseDn().isEmpty() &&
@@ -138,27 +290,68 @@ public class LdapIdentityStore implements IdentityStore {
                     callerName, ldapIdentityStoreDefinition.callerBaseDn());
         }
         else {
-            callerDn = searchCaller(searchContext, callerName);
+            if (replicaCallerLookup) {
+                callerDn = replica.getCallerDn(callerName);
+            }
+            if (callerDn == null && callerDnCache != null) {
+                // A background refresh can't use the search context of this request, which is given back by then
+                callerDn = callerDnCache.get(
+                    callerName,
+                    name -> searchCaller(searchContext, name, memberOfConsumer),
+                    name -> withSearchContext(context -> searchCaller(context, name, null)));
+            }
+            else if (callerDn == null) {
+                callerDn = searchCaller(searchContext, callerName, memberOfConsumer);
+            }
         }
         return callerDn;
     }
 
-    private CredentialValidationResult validateCallerAndGetGroups(LdapContext searchContext,
-            String callerDn, UsernamePasswordCredential usernamePasswordCredential) {
+    private CredentialValidationResult validateCallerAndGetGroups(LdapServer server, LdapContext searchContext,
+            String callerDn, Attribute callerMemberOf, UsernamePasswordCredential usernamePasswordCredential, long deadline) {
 
         if (callerDn == null) {
             return INVALID_RESULT;
         }
-        
-        LdapContext callerContext = createCallerLdapContext(callerDn, new String(usernamePasswordCredential.getPassword().getValue()));
-        if (callerContext == null) {
+
+        // Search for the groups while the password is checked, if enabled
+        CompletableFuture<Set<String>> concurrentGroups = null;
+        if (groupLookupExecutor != null && callerMemberOf == null && validationTypes().contains(ValidationType.PROVIDE_GROUPS)) {
+            concurrentGroups = supplyAsync(() -> retrieveGroupsForCallerDn(searchContext, callerDn), groupLookupExecutor);
+        }
+
+        boolean bound = false;
+        try {
+            bound = bindCaller(server, callerDn, new String(usernamePasswordCredential.getPassword().getValue()));
+        }
+        finally {
+            if (concurrentGroups != null && !bound) {
+                // The search context can't be given back while the group search still uses it
+                awaitGroups(concurrentGroups.handle((groups, exception) -> null), deadline);
+            }
+        }
+        checkDeadline(deadline, "checking the caller's password");
+
+        if (!bound) {
+            if (callerDnCache != null) {
+                // The DN may be a cached one that's no longer valid
+                callerDnCache.invalidate(usernamePasswordCredential.getCaller());
+            }
             return INVALID_RESULT;  // either bindDn or bindPassword was invalid
         }
-        closeContext(callerContext);
 
         Set<String> groups = null;
         if (validationTypes().contains(ValidationType.PROVIDE_GROUPS)) {
-            groups = retrieveGroupsForCallerDn(searchContext, callerDn);
+            if (concurrentGroups != null) {
+                groups = awaitGroups(concurrentGroups, deadline);
+            }
+            else if (callerMemberOf != null) {
+                groups = retrieveGroupsForCallerDn(searchContext, callerDn, dn -> getGroupNamesFromMemberOf(callerMemberOf));
+            }
+            else {
+                groups = retrieveGroupsForCallerDn(searchContext, callerDn);
+            }
+            checkDeadline(deadline, "retrieving the caller's groups");
         }
 
         return new CredentialValidationResult(
@@ -169,6 +362,40 @@ public class LdapIdentityStore implements IdentityStore {
                 groups);
     }
 
+    private Set<String> awaitGroups(CompletableFuture<Set<String>> groups, long deadline) {
+        try {
+            if (authenticationTimeout <= 0) {
+                return groups.get();
+            }
+            return groups.get(deadline - nanoTime(), NANOSECONDS);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IdentityStoreRuntimeException(e.getCause());
+        }
+        catch (TimeoutException e) {
+            // The search context is discarded, which also stops the group search
+            throw deadlineExceeded("retrieving the caller's groups");
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IdentityStoreRuntimeException(e);
+        }
+    }
+
+    private void checkDeadline(long deadline, String step) {
+        if (authenticationTimeout > 0 && nanoTime() - deadline > 0) {
+            throw deadlineExceeded(step);
+        }
+    }
+
+    private IdentityStoreRuntimeException deadlineExceeded(String step) {
+        return new IdentityStoreRuntimeException(
+            "LDAP authentication took longer than " + authenticationTimeout + " ms, timed out while " + step);
+    }
+
     @Override
     public Set<String> getCallerGroups(CredentialValidationResult validationResult) {
 
@@ -178,27 +405,290 @@ public class LdapIdentityStore implements IdentityStore {
             securityManager.checkPermission(new IdentityStorePermission("getGroups"));
         }
 
-        LdapContext searchContext = createSearchLdapContext();
-        try {
+        return withSearchContext(searchContext -> {
             String callerDn = validationResult.getCallerDn();
             if (callerDn == null || callerDn.isEmpty()) {
                 callerDn = getCallerDn(searchContext, validationResult.getCallerPrincipal().getName());
             }
             return retrieveGroupsForCallerDn(searchContext, callerDn);
+        });
+    }
+
+    /**
+     * Returns the groups of each of the given callers. When groups are searched for without
+     * nested groups or a local replica, with a group filter that matches on the group member
+     * attribute, the groups of many callers are found by a single search that ORs together the
+     * group filters of these callers. The found groups are attributed to the callers by their
+     * group member attribute. Otherwise the groups are retrieved per caller.
+     * 
+     * <p>
+     * The groups of a single caller are limited by <code>maxResults</code>, but those of many
+     * callers are not. The search for them is therefore paged, by the group search page size or,
+     * if that isn't set, by <code>maxResults</code>.
+     */
+    @Override
+    public Map<String, Set<String>> getCallerGroups(Collection<String> callerNames) {
+
+        // Make sure caller has permission to invoke this method
+        SecurityManager securityManager = System.getSecurityManager();
+        if (securityManager != null) {
+            securityManager.checkPermission(new IdentityStorePermission("getGroups"));
+        }
+
+        return withSearchContext(searchContext -> {
+            Map<String, Set<String>> groups = new HashMap<>();
+            Map<String, String> searchedCallerDns = new HashMap<>();
+            Map<LdapName, Set<String>> groupsByCallerDn = new LinkedHashMap<>();
+            boolean bulkGroupSearch = isBulkGroupSearch();
+
+            for (String callerName : callerNames) {
+                Set<String> callerGroups = new HashSet<>();
+                groups.put(callerName, callerGroups);
+
+                String callerDn = getCallerDn(searchContext, callerName);
+                if (callerDn == null) {
+                    continue;
+                }
+
+                if (!bulkGroupSearch) {
+                    callerGroups.addAll(retrieveGroupsForCallerDn(searchContext, callerDn));
+                    continue;
+                }
+
+                Set<String> cachedGroups = groupCache != null ? groupCache.getIfPresent(callerDn) : null;
+                if (cachedGroups != null) {
+                    callerGroups.addAll(cachedGroups);
+                }
+                else {
+                    searchedCallerDns.put(callerName, callerDn);
+                    groupsByCallerDn.putIfAbsent(toLdapName(callerDn), new HashSet<>());
+                }
+            }
+
+            List<LdapName> callerDns = new ArrayList<>(groupsByCallerDn.keySet());
+            for (int i = 0; i < callerDns.size(); i += BULK_GROUP_SEARCH_CHUNK_SIZE) {
+                searchGroupsOfCallers(searchContext, callerDns.subList(i, Math.min(i + BULK_GROUP_SEARCH_CHUNK_SIZE, callerDns.size())), groupsByCallerDn);
+            }
+
+            // Several names may resolve to the same caller
+            searchedCallerDns.forEach((callerName, callerDn) -> {
+                Set<String> callerGroups = groupsByCallerDn.get(toLdapName(callerDn));
+                groups.get(callerName).addAll(callerGroups);
+                if (groupCache != null) {
+                    groupCache.put(callerDn, callerGroups);
+                }
+            });
+
+            return groups;
+        });
+    }
+
+    private boolean isBulkGroupSearch() {
+        return nestedGroups == NestedGroupStrategy.NONE && replica == null && !isMemberOfMode() &&
+            groupSearchFilter.isEqualityMatchOn(ldapIdentityStoreDefinition.groupMemberAttribute());
+    }
+
+    private void searchGroupsOfCallers(LdapContext searchContext, List<LdapName> callerDns, Map<LdapName, Set<String>> groupsByCallerDn) {
+        StringBuilder filter = new StringBuilder("(|");
+        for (LdapName callerDn : callerDns) {
+            filter.append(groupSearchFilter.format(callerDn.toString()));
+        }
+        filter.append(')');
+
+        SearchControls controls = getGroupSearchControls();
+        controls.setCountLimit(0);
+        controls.setReturningAttributes(new String[] { ldapIdentityStoreDefinition.groupNameAttribute(), ldapIdentityStoreDefinition.groupMemberAttribute() });
+        int pageSize = groupSearchPageSize > 0 ? groupSearchPageSize : ldapIdentityStoreDefinition.maxResults();
+
+        search(searchContext, ldapIdentityStoreDefinition.groupSearchBase(), filter.toString(), controls, pageSize, searchResult -> {
+            Attribute memberAttribute = searchResult.getAttributes().get(ldapIdentityStoreDefinition.groupMemberAttribute());
+            if (memberAttribute == null) {
+                return;
+            }
+
+            Set<String> names = new HashSet<>();
+            addGroupNames(searchResult, names);
+
+            try {
+                for (Object member : list(memberAttribute.getAll())) {
+                    Set<String> callerGroups = member != null ? groupsByCallerDn.get(toLdapName(member.toString())) : null;
+                    if (callerGroups != null) {
+                        callerGroups.addAll(names);
+                    }
+                }
+            }
+            catch (NamingException e) {
+                throw new IdentityStoreRuntimeException(e);
+            }
+        });
+    }
+
+    private static LdapName toLdapName(String dn) {
+        try {
+            // LdapName equality ignores case and insignificant spaces, like the server does
+            return new LdapName(dn);
+        }
+        catch (InvalidNameException e) {
+            throw new IdentityStoreRuntimeException(e);
+        }
+    }
+
+    /**
+     * Closes the pooled search and caller connections of all servers. Connections that are in use are
+     * closed as soon as the operation using them completes. The local replica is stopped, and a group
+     * lookup executor and background executor that were created by the store are shut down as well.
+     */
+    public void close() {
+        if (replica != null) {
+            replica.close();
+        }
+        servers.close();
+        if (groupLookupExecutor != null) {
+            IdentityStoreExecutors.shutdown(groupLookupExecutor, groupLookupExecutorName);
+        }
+        IdentityStoreExecutors.shutdown(backgroundExecutor, backgroundExecutorName);
+    }
+
+    /**
+     * Removes the cached DN of the given caller, if caller DNs are cached.
+     * 
+     * @param callerName the name of the caller
+     */
+    public void invalidateCallerDn(String callerName) {
+        if (callerDnCache != null) {
+            callerDnCache.invalidate(callerName);
+        }
+    }
+
+    /**
+     * Removes all cached caller DNs, if caller DNs are cached.
+     */
+    public void invalidateAllCallerDns() {
+        if (callerDnCache != null) {
+            callerDnCache.invalidateAll();
+        }
+    }
+
+    /**
+     * Removes the cached groups of the given caller, if groups are cached.
+     * 
+     * @param callerDn the DN of the caller
+     */
+    public void invalidateCallerGroups(String callerDn) {
+        if (groupCache != null) {
+            groupCache.invalidate(callerDn);
+        }
+    }
+
+    /**
+     * Removes the cached groups of all callers, if groups are cached.
+     */
+    public void invalidateAllCallerGroups() {
+        if (groupCache != null) {
+            groupCache.invalidateAll();
+        }
+        if (groupGraphCache != null) {
+            groupGraphCache.invalidateAll();
+        }
+    }
+
+    /**
+     * @return true if the local replica is enabled and has been loaded, false otherwise
+     */
+    public boolean isLocalReplicaLoaded() {
+        return replica != null && replica.isLoaded();
+    }
+
+    /**
+     * @return the number of caller DN lookups that were answered from the cache
+     */
+    public long getCallerDnCacheHitCount() {
+        return callerDnCache != null ? callerDnCache.getHitCount() : 0;
+    }
+
+    /**
+     * @return the number of caller DN lookups that needed a search, because the DN wasn't cached
+     */
+    public long getCallerDnCacheMissCount() {
+        return callerDnCache != null ? callerDnCache.getMissCount() : 0;
+    }
+
+    private <T> T withSearchContext(Function<LdapContext, T> operation) {
+        return withSearchContext((server, searchContext) -> operation.apply(searchContext));
+    }
+
+    /**
+     * Runs the given operation with a search context taken from the pool of one of the servers.
+     * When the operation fails the context is discarded, since its connection may be broken.
+     */
+    private <T> T withSearchContext(BiFunction<LdapServer, LdapContext, T> operation) {
+        return servers.execute(server -> {
+            LdapContextPool searchContextPool = server.getSearchContextPool();
+            LdapContext searchContext = searchContextPool.borrow();
+            boolean success = false;
+            try {
+                T result = operation.apply(server, searchContext);
+                success = true;
+                return result;
+            }
+            finally {
+                if (success) {
+                    searchContextPool.release(searchContext);
+                }
+                else {
+                    searchContextPool.invalidate(searchContext);
+                }
+            }
+        });
+    }
+
+    private boolean isAvailable(LdapServer server) {
+        LdapContext ldapContext = createSearchLdapContext(server.getUrl());
+        try {
+            ldapContext.getAttributes("", new String[] { "1.1" });
+            return true;
+        }
+        catch (NamingException e) {
+            return false;
         }
         finally {
-            closeContext(searchContext);
+            closeContext(ldapContext);
         }
     }
 
     private Set<String> retrieveGroupsForCallerDn(LdapContext searchContext, String callerDn) {
+        return retrieveGroupsForCallerDn(searchContext, callerDn, dn -> lookupGroupsForCallerDn(searchContext, dn));
+    }
+
+    private Set<String> retrieveGroupsForCallerDn(LdapContext searchContext, String callerDn, Function<String, Set<String>> groupLookup) {
 
         if (callerDn == null || callerDn.isEmpty()) {
             return emptySet();
         }
 
-        if (ldapIdentityStoreDefinition.groupSearchBase().isEmpty() &&
-                !ldapIdentityStoreDefinition.groupMemberOfAttribute().isEmpty()) {
+        if (replica != null && nestedGroups == NestedGroupStrategy.NONE) {
+            Set<String> groups = replica.getCallerGroups(callerDn);
+            if (groups != null) {
+                return groups;
+            }
+        }
+
+        if (groupCache != null) {
+            return groupCache.get(
+                callerDn,
+                groupLookup,
+                dn -> withSearchContext(context -> lookupGroupsForCallerDn(context, dn)));
+        }
+
+        return groupLookup.apply(callerDn);
+    }
+
+    private Set<String> lookupGroupsForCallerDn(LdapContext searchContext, String callerDn) {
+        if (nestedGroups == NestedGroupStrategy.GRAPH_WALK) {
+            return retrieveNestedGroups(callerDn, searchContext);
+        }
+
+        if (isMemberOfMode()) {
             return retrieveGroupsFromCallerObject(callerDn, searchContext);
         }
         else {
@@ -206,19 +696,29 @@ public class LdapIdentityStore implements IdentityStore {
         }
     }
 
-    private Set<String> retrieveGroupsBySearching(String callerDn, LdapContext searchContext) {
+    private boolean isMemberOfMode() {
+        return ldapIdentityStoreDefinition.groupSearchBase().isEmpty() &&
+                !ldapIdentityStoreDefinition.groupMemberOfAttribute().isEmpty();
+    }
 
-        List<SearchResult> searchResults = searchGroups(searchContext, callerDn);
+    private Set<String> retrieveGroupsBySearching(String callerDn, LdapContext searchContext) {
 
         Set<String> groups = new HashSet<>();
+
+        // Group names are taken from each result as it comes in, so that with paging
+        // only a single page of results is held in memory
+        searchGroups(searchContext, callerDn, searchResult -> addGroupNames(searchResult, groups));
+
+        return groups;
+    }
+
+    private void addGroupNames(SearchResult searchResult, Collection<String> groups) {
         try {
-            for (SearchResult searchResult : searchResults) {
-                Attribute attribute = searchResult.getAttributes().get(ldapIdentityStoreDefinition.groupNameAttribute());
-                if (attribute != null) {
-                    for (Object group : list(attribute.getAll())) {
-                        if (group != null) {
-                            groups.add(group.toString());
-                        }
+            Attribute attribute = searchResult.getAttributes().get(ldapIdentityStoreDefinition.groupNameAttribute());
+            if (attribute != null) {
+                for (Object group : list(attribute.getAll())) {
+                    if (group != null) {
+                        groups.add(group.toString());
                     }
                 }
             }
@@ -226,14 +726,91 @@ public class LdapIdentityStore implements IdentityStore {
         catch (NamingException e) {
             throw new IdentityStoreRuntimeException(e);
         }
+    }
+
+    /**
+     * Retrieves the groups of the caller including the groups these groups are in, by
+     * walking up the group graph level by level. The parent groups of a group are the same
+     * for every caller, so they're memoized in the group graph cache.
+     */
+    private Set<String> retrieveNestedGroups(String callerDn, LdapContext searchContext) {
+        Set<String> groups = new HashSet<>();
+        Set<String> visitedGroupDns = new HashSet<>();
+
+        Map<String, Set<String>> level = retrieveParentGroups(searchContext, callerDn);
+        for (int depth = 0; !level.isEmpty(); depth++) {
+            Map<String, Set<String>> nextLevel = new HashMap<>();
+            for (Map.Entry<String, Set<String>> group : level.entrySet()) {
+                if (!visitedGroupDns.add(group.getKey())) {
+                    continue; // Already seen via another path, or a cycle
+                }
+
+                groups.addAll(group.getValue());
+
+                if (depth < nestedGroupMaxDepth) {
+                    nextLevel.putAll(groupGraphCache != null ?
+                        groupGraphCache.get(
+                            group.getKey(),
+                            groupDn -> retrieveParentGroups(searchContext, groupDn),
+                            groupDn -> withSearchContext(context -> retrieveParentGroups(context, groupDn))) :
+                        retrieveParentGroups(searchContext, group.getKey()));
+                }
+            }
+            level = nextLevel;
+        }
+
         return groups;
     }
 
+    /**
+     * Retrieves the groups that the given caller or group is directly a member of.
+     * 
+     * @return map from the DN of each group to its names
+     */
+    private Map<String, Set<String>> retrieveParentGroups(LdapContext searchContext, String memberDn) {
+        Map<String, Set<String>> parentGroups = new HashMap<>();
+
+        if (isMemberOfMode()) {
+            try {
+                Attribute memberOfAttribute = searchContext
+                    .getAttributes(memberDn, new String[] { ldapIdentityStoreDefinition.groupMemberOfAttribute() })
+                    .get(ldapIdentityStoreDefinition.groupMemberOfAttribute());
+
+                if (memberOfAttribute != null) {
+                    for (Object group : list(memberOfAttribute.getAll())) {
+                        if (group != null) {
+                            parentGroups.put(group.toString(), singleton(getGroupNameFromDn(group.toString(), ldapIdentityStoreDefinition.groupNameAttribute())));
+                        }
+                    }
+                }
+            }
+            catch (NamingException e) {
+                throw new IdentityStoreRuntimeException(e);
+            }
+        }
+        else {
+            searchGroups(searchContext, memberDn, searchResult -> {
+                Set<String> names = new HashSet<>();
+                addGroupNames(searchResult, names);
+                parentGroups.put(searchResult.getNameInNamespace(), names);
+            });
+        }
+
+        return unmodifiableMap(parentGroups);
+    }
+
     private Set<String> retrieveGroupsFromCallerObject(String callerDn, LdapContext searchContext) {
         try {
             Attributes attributes = searchContext.getAttributes(callerDn, new String[] { ldapIdentityStoreDefinition.groupMemberOfAttribute() });
-            Attribute memberOfAttribute = attributes.get(ldapIdentityStoreDefinition.groupMemberOfAttribute());
+            return getGroupNamesFromMemberOf(attributes.get(ldapIdentityStoreDefinition.groupMemberOfAttribute()));
+        }
+        catch (NamingException e) {
+            throw new IdentityStoreRuntimeException(e);
+        }
+    }
 
+    private Set<String> getGroupNamesFromMemberOf(Attribute memberOfAttribute) {
+        try {
             Set<String> groups = new HashSet<>();
             if (memberOfAttribute != null) {
                 for (Object group : list(memberOfAttribute.getAll())) {
@@ -252,7 +829,62 @@ public class LdapIdentityStore implements IdentityStore {
         }
     }
 
-    private static String getGroupNameFromDn(String dnString, String groupNameAttribute) throws NamingException {
+    static String getGroupNameFromDn(String dnString, String groupNameAttribute) throws NamingException {
+        // The same group DNs come up for many callers, so remember their names
+        String cacheKey = groupNameAttribute + ':' + dnString;
+        String groupName = GROUP_NAMES.get(cacheKey);
+        if (groupName == null) {
+            groupName = getLeadingRdnValue(dnString, groupNameAttribute);
+            if (groupName == null) {
+                groupName = parseGroupNameFromDn(dnString, groupNameAttribute);
+            }
+            GROUP_NAMES.put(cacheKey, groupName);
+        }
+        return groupName;
+    }
+
+    /**
+     * Gets the value of the given attribute from the leading RDN of a DN, without fully parsing
+     * the DN. Returns null when the leading RDN uses escapes, quotes or hex values, or doesn't
+     * have the attribute, in which case the DN needs to be parsed.
+     */
+    static String getLeadingRdnValue(String dn, String attributeType) {
+        int end = dn.length();
+        for (int i = 0; i < dn.length(); i++) {
+            char c = dn.charAt(i);
+            if (c == ',' || c == ';') {
+                end = i;
+                break;
+            }
+            if (c == '\\' || c == '"' || c == '#') {
+                return null;
+            }
+        }
+
+        // A multi-valued RDN has several type=value pairs separated by a +
+        int start = 0;
+        while (start < end) {
+            int pairEnd = dn.indexOf('+', start);
+            if (pairEnd < 0 || pairEnd > end) {
+                pairEnd = end;
+            }
+
+            int equals = dn.indexOf('=', start);
+            if (equals < 0 || equals > pairEnd) {
+                return null;
+            }
+
+            if (dn.substring(start, equals).trim().equalsIgnoreCase(attributeType)) {
+                return dn.substring(equals + 1, pairEnd).trim();
+            }
+
+            start = pairEnd + 1;
+        }
+
+        return null;
+    }
+
+    private static String parseGroupNameFromDn(String dnString, String groupNameAttribute) throws NamingException {
         LdapName dn = new LdapName(dnString);  // may throw InvalidNameException
         Attribute attribute = dn.getRdn(dn.size()-1).toAttributes().get(groupNameAttribute);
         if (attribute == null) {
@@ -262,26 +894,41 @@ public class LdapIdentityStore implements IdentityStore {
         return attribute.get(0).toString();
     }
 
-    private String searchCaller(LdapContext searchContext, String callerName) {
+    /**
+     * Searches for the DN of the caller. When a consumer for the caller's groups is given, the
+     * <code>groupMemberOfAttribute</code> of the caller is read by the same search and passed to it,
+     * saving a separate lookup of the caller's entry.
+     */
+    private String searchCaller(LdapContext searchContext, String callerName, Consumer<Attribute> memberOfConsumer) {
 
-        String filter = null;
-        if (ldapIdentityStoreDefinition.callerSearchFilter() != null &&
-                !ldapIdentityStoreDefinition.callerSearchFilter().trim().isEmpty()) {
-            // Filter should have exactly one "%s", where callerName will be substituted.
-            filter = format(ldapIdentityStoreDefinition.callerSearchFilter(), callerName);
-        }
-        else {
-            // Use groupMemberAttribute and callerDn to search for groups
-            filter = format(DEFAULT_USER_FILTER, ldapIdentityStoreDefinition.callerNameAttribute(), callerName);
+        String filter = callerSearchFilter.format(callerName);
+
+        SearchControls controls = getCallerSearchControls();
+        if (memberOfConsumer != null) {
+            controls.setReturningAttributes(new String[] { ldapIdentityStoreDefinition.groupMemberOfAttribute() });
         }
 
-        List <SearchResult> callerDn =
-                search(searchContext, ldapIdentityStoreDefinition.callerSearchBase(), filter, getCallerSearchControls());
+        List <SearchResult> callerDn = new ArrayList<>();
+        try {
+            search(searchContext, ldapIdentityStoreDefinition.callerSearchBase(), filter, controls, 0, callerDn::add);
+        }
+        catch (IdentityStoreRuntimeException e) {
+            if (!minimalCallerSearch || !(e.getCause() instanceof SizeLimitExceededException)) {
+                throw e;
+            }
+            // More than one caller matched, which the results read so far already show
+        }
 
         if (callerDn.size() > 1) {
             // TODO User is found in multiple organizations
         }
         if (callerDn.size() == 1) {
+            if (memberOfConsumer != null) {
+                // A caller who isn't in any group has no memberOf attribute at all
+                Attribute memberOfAttribute = callerDn.get(0).getAttributes().get(ldapIdentityStoreDefinition.groupMemberOfAttribute());
+                memberOfConsumer.accept(memberOfAttribute != null ? memberOfAttribute : new BasicAttribute(ldapIdentityStoreDefinition.groupMemberOfAttribute()));
+            }
+
             // get the fully qualified identification like uid=arjan,ou=caller,dc=jsr375,dc=net
             return callerDn.get(0).getNameInNamespace();
         }
@@ -289,25 +936,63 @@ public class LdapIdentityStore implements IdentityStore {
         return null;
     }
 
-    private List<SearchResult> searchGroups(LdapContext searchContext, String callerDn) {
+    private LdapFilterTemplate createCallerSearchFilter() {
+        if (ldapIdentityStoreDefinition.callerSearchFilter() != null &&
+                !ldapIdentityStoreDefinition.callerSearchFilter().trim().isEmpty()) {
+            // Filter should have exactly one "%s", where callerName will be substituted.
+            return new LdapFilterTemplate(ldapIdentityStoreDefinition.callerSearchFilter());
+        }
+
+        // Use callerNameAttribute and callerName to search for the caller
+        return new LdapFilterTemplate(format(DEFAULT_USER_FILTER, ldapIdentityStoreDefinition.callerNameAttribute(), "%s"));
+    }
+
+    private void searchGroups(LdapContext searchContext, String callerDn, Consumer<SearchResult> resultConsumer) {
+        String filter = groupSearchFilter.format(callerDn);
+        search(searchContext, ldapIdentityStoreDefinition.groupSearchBase(), filter, getGroupSearchControls(), groupSearchPageSize, resultConsumer);
+    }
 
-        String filter = null;
+    private LdapFilterTemplate createGroupSearchFilter(boolean inChain) {
         if (ldapIdentityStoreDefinition.groupSearchFilter() != null &&
                 !ldapIdentityStoreDefinition.groupSearchFilter().trim().isEmpty()) {
             // Filter should have exactly one "%s", where callerDn will be substituted.
-            filter = format(ldapIdentityStoreDefinition.groupSearchFilter(), callerDn);
+            return new LdapFilterTemplate(ldapIdentityStoreDefinition.groupSearchFilter());
         }
-        else {
-            // Use groupMemberAttribute and callerDn to search for groups
-            filter = format(DEFAULT_GROUP_FILTER, ldapIdentityStoreDefinition.groupMemberAttribute(), callerDn);
+
+        if (inChain) {
+            // Let the server find the groups the caller is directly or indirectly a member of
+            return new LdapFilterTemplate(format(DEFAULT_GROUP_FILTER, ldapIdentityStoreDefinition.groupMemberAttribute() + ":" + MATCHING_RULE_IN_CHAIN_OID + ":", "%s"));
         }
 
-        return search(searchContext, ldapIdentityStoreDefinition.groupSearchBase(), filter, getGroupSearchControls());
+        // Use groupMemberAttribute and callerDn to search for groups
+        return new LdapFilterTemplate(format(DEFAULT_GROUP_FILTER, ldapIdentityStoreDefinition.groupMemberAttribute(), "%s"));
     }
 
-    private static List<SearchResult> search(LdapContext searchContext, String searchBase, String searchFilter, SearchControls controls) {
+    /**
+     * Searches and hands every result to the given consumer. If a page size is given, the
+     * Simple Paged Results control is used to retrieve the results one page at a time.
+     */
+    static void search(LdapContext searchContext, String searchBase, String searchFilter, SearchControls controls,
+            int pageSize, Consumer<SearchResult> resultConsumer) {
         try {
-            return list(searchContext.search(searchBase, searchFilter, controls));
+            if (pageSize <= 0) {
+                consume(searchContext.search(searchBase, searchFilter, controls), resultConsumer);
+                return;
+            }
+
+            try {
+                byte[] cookie = null;
+                do {
+                    searchContext.setRequestControls(new Control[] { new PagedResultsControl(pageSize, cookie, NONCRITICAL) });
+                    consume(searchContext.search(searchBase, searchFilter, controls), resultConsumer);
+                    cookie = getPagedResultsCookie(searchContext.getResponseControls());
+                }
+                while (cookie != null && cookie.length > 0);
+            }
+            finally {
+                // The context may be pooled, so don't leave the paging control on it
+                searchContext.setRequestControls(null);
+            }
         }
         catch (NameNotFoundException e) {
             throw new IdentityStoreConfigurationException("Invalid searchBase", e);
@@ -323,18 +1008,45 @@ public class LdapIdentityStore implements IdentityStore {
         }
     }
 
+    private static void consume(NamingEnumeration<SearchResult> searchResults, Consumer<SearchResult> resultConsumer) throws NamingException {
+        try {
+            while (searchResults.hasMore()) {
+                resultConsumer.accept(searchResults.next());
+            }
+        }
+        finally {
+            searchResults.close();
+        }
+    }
+
+    private static byte[] getPagedResultsCookie(Control[] responseControls) {
+        if (responseControls != null) {
+            for (Control responseControl : responseControls) {
+                if (responseControl instanceof PagedResultsResponseControl) {
+                    return ((PagedResultsResponseControl) responseControl).getCookie();
+                }
+            }
+        }
+        return null;
+    }
+
     private SearchControls getCallerSearchControls() {
         SearchControls controls = new SearchControls();
         controls.setSearchScope(convertScopeValue(ldapIdentityStoreDefinition.callerSearchScope()));
-        controls.setCountLimit((long)ldapIdentityStoreDefinition.maxResults());
+        controls.setCountLimit(minimalCallerSearch ? 2 : (long)ldapIdentityStoreDefinition.maxResults());
         controls.setTimeLimit(ldapIdentityStoreDefinition.readTimeout());
+
+        // Only the DN of the caller is used, so don't have the server send any attributes
+        controls.setReturningAttributes(new String[0]);
         return controls;
     }
 
     private SearchControls getGroupSearchControls() {
         SearchControls controls = new SearchControls();
         controls.setSearchScope(convertScopeValue(ldapIdentityStoreDefinition.groupSearchScope()));
-        controls.setCountLimit((long)ldapIdentityStoreDefinition.maxResults());
+        if (groupSearchPageSize <= 0) {
+            controls.setCountLimit((long)ldapIdentityStoreDefinition.maxResults());
+        }
         controls.setTimeLimit(ldapIdentityStoreDefinition.readTimeout());
         controls.setReturningAttributes(new String[]{ldapIdentityStoreDefinition.groupNameAttribute()});
         return controls;
@@ -352,39 +1064,151 @@ public class LdapIdentityStore implements IdentityStore {
         }
     }
 
-    private LdapContext createSearchLdapContext() {
+    private LdapContext createSearchLdapContext(String url) {
+        return createSearchLdapContext(url, ldapIdentityStoreDefinition.readTimeout());
+    }
+
+    private LdapContext createSearchLdapContext(String url, int readTimeout) {
         try {
             return createLdapContext(
-                    ldapIdentityStoreDefinition.url(),
+                    url,
                     ldapIdentityStoreDefinition.bindDn(),
-                    ldapIdentityStoreDefinition.bindDnPassword());
+                    ldapIdentityStoreDefinition.bindDnPassword(),
+                    connectTimeout,
+                    readTimeout);
         }
         catch (AuthenticationException e) {
             throw new IdentityStoreConfigurationException("Bad bindDn or bindPassword for: " + ldapIdentityStoreDefinition.bindDn(), e);
         }
     }
 
-    private LdapContext createCallerLdapContext(String bindDn, String bindDnPassword) {
+    /**
+     * Checks the caller's password by binding with it. When caller connections are pooled the
+     * bind is done on an already open connection, which is then given back to the pool.
+     */
+    private boolean bindCaller(LdapServer server, String callerDn, String password) {
+        LdapContextPool callerContextPool = server.getCallerContextPool();
+        if (!callerContextPool.isEnabled()) {
+            LdapContext callerContext = createCallerLdapContext(server.getUrl(), callerDn, password);
+            closeContext(callerContext);
+            return callerContext != null;
+        }
+
+        LdapContext callerContext = callerContextPool.borrow();
+        boolean reusable = false;
+        try {
+            boolean bound = rebindLdapContext(callerContext, callerDn, password);
+            reusable = true;
+            return bound;
+        }
+        finally {
+            if (reusable) {
+                callerContextPool.release(callerContext);
+            }
+            else {
+                callerContextPool.invalidate(callerContext);
+            }
+        }
+    }
+
+    private static boolean rebindLdapContext(LdapContext ldapContext, String bindDn, String bindCredential) {
+        try {
+            // The context may not have been bound before
+            ldapContext.addToEnvironment(SECURITY_AUTHENTICATION, "simple");
+            ldapContext.addToEnvironment(SECURITY_PRINCIPAL, bindDn);
+            ldapContext.addToEnvironment(SECURITY_CREDENTIALS, bindCredential);
+
+            // Re-authenticates on the existing connection
+            ldapContext.reconnect(null);
+            return true;
+        }
+        catch (AuthenticationException e) {
+            return false;
+        }
+        catch (NamingException e) {
+            throw new IdentityStoreRuntimeException(e);
+        }
+        finally {
+            try {
+                // Don't keep the caller's password around in a pooled context
+                ldapContext.removeFromEnvironment(SECURITY_CREDENTIALS);
+            }
+            catch (NamingException e) {
+                // Only fails when the context is closed
+            }
+        }
+    }
+
+    /**
+     * Creates a context for the caller connection pool. The connection isn't bound yet, since
+     * the first caller whose password is checked binds it, and a server only accepts the fast
+     * bind request on a connection that hasn't been bound.
+     */
+    private LdapContext createCallerBindLdapContext(String url) {
+        LdapContext ldapContext;
+        try {
+            ldapContext = createLdapContext(url, null, null, connectTimeout, ldapIdentityStoreDefinition.readTimeout());
+        }
+        catch (AuthenticationException e) {
+            // Not possible without credentials
+            throw new IdentityStoreRuntimeException(e);
+        }
+
+        if (fastBind && fastBindSupported) {
+            try {
+                ldapContext.extendedOperation(new FastBindRequest());
+            }
+            catch (OperationNotSupportedException e) {
+                LOGGER.log(Level.WARNING, "LDAP server " + url + " doesn't support fast bind, using regular binds to check passwords", e);
+                fastBindSupported = false;
+            }
+            catch (NamingException e) {
+                closeContext(ldapContext);
+                throw new IdentityStoreRuntimeException(e);
+            }
+        }
+        return ldapContext;
+    }
+
+    private LdapContext createCallerLdapContext(String url, String bindDn, String bindDnPassword) {
         try {
             return createLdapContext(
-                    ldapIdentityStoreDefinition.url(),
+                    url,
                     bindDn,
-                    bindDnPassword);
+                    bindDnPassword,
+                    connectTimeout,
+                    ldapIdentityStoreDefinition.readTimeout());
         }
         catch (AuthenticationException e) {
             return null;
         }
     }
 
-    private static LdapContext createLdapContext(String url, String bindDn, String bindCredential) throws AuthenticationException {
+    private static LdapContext createLdapContext(String url, String bindDn, String bindCredential,
+            int connectTimeout, int readTimeout) throws AuthenticationException {
         Hashtable<String, String> environment = new Hashtable<>();
 
         environment.put(INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
         environment.put(PROVIDER_URL, url);
 
-        environment.put(SECURITY_AUTHENTICATION, "simple");
-        environment.put(SECURITY_PRINCIPAL, bindDn);
-        environment.put(SECURITY_CREDENTIALS, bindCredential);
+        // Don't let an unresponsive server block a thread indefinitely
+        if (connectTimeout > 0) {
+            environment.put(CONNECT_TIMEOUT, Integer.toString(connectTimeout));
+        }
+        if (readTimeout > 0) {
+            environment.put(READ_TIMEOUT, Integer.toString(readTimeout));
+        }
+
+        if (bindDn != null) {
+            environment.put(SECURITY_AUTHENTICATION, "simple");
+            environment.put(SECURITY_PRINCIPAL, bindDn);
+            environment.put(SECURITY_CREDENTIALS, bindCredential);
+        }
+        else {
+            // Only with version 3 alone does JNDI open the connection without an anonymous bind
+            environment.put(SECURITY_AUTHENTICATION, "none");
+            environment.put(LDAP_VERSION, "3");
+        }
 
         try {
             return new InitialLdapContext(environment, null);
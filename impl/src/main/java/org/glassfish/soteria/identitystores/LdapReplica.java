@@ -0,0 +1,576 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015-2017 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://oss.oracle.com/licenses/CDDL+GPL-1.1
+ * or LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.soteria.identitystores;
+
+import static java.util.Collections.emptySet;
+import static java.util.Collections.list;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+import static javax.naming.directory.SearchControls.OBJECT_SCOPE;
+import static org.glassfish.soteria.identitystores.PersistentSearchControl.CHANGE_DELETE;
+import static org.glassfish.soteria.identitystores.PersistentSearchControl.getEntryChange;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import javax.naming.InvalidNameException;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.OperationNotSupportedException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.LdapName;
+
+import org.glassfish.soteria.identitystores.PersistentSearchControl.EntryChange;
+import org.glassfish.soteria.identitystores.annotation.LdapLocalReplica;
+
+/**
+ * An in-memory copy of the callers and group memberships in the directory, used by
+ * {@link LdapIdentityStore} to find caller DNs and groups without going to the server.
+ * <p>
+ * All callers and groups are loaded in the background, and loaded again periodically.
+ * In between, changes are applied as they're reported by persistent searches, if the
+ * server supports these. Until the first load is done, nothing is answered from memory.
+ * <p>
+ * The persistent searches cover all entries below the caller and group bases, since a server
+ * doesn't report a change that makes an entry stop matching the search filter. Every changed
+ * entry is read again with the caller or group filter, and is removed when it doesn't match.
+ *
+ */
+class LdapReplica {
+
+    private static final Logger LOGGER = Logger.getLogger(LdapReplica.class.getName());
+
+    private static final int PERSISTENT_SEARCH_RETRY_DELAY = 5000;
+
+    private static final String ALL_ENTRIES_FILTER = "(objectClass=*)";
+    private static final String[] NO_ATTRIBUTES = { "1.1" };
+
+    private final Supplier<LdapContext> contextFactory;
+
+    private final String callerBase;
+    private final String callerFilter;
+    private final SearchControls callerControls;
+    private final String callerNameAttribute;
+    private final String groupMemberOfAttribute;
+
+    private final String groupBase;
+    private final String groupFilter;
+    private final SearchControls groupControls;
+    private final String groupNameAttribute;
+    private final String groupMemberAttribute;
+
+    private final boolean persistentSearch;
+    private final int reloadInterval;
+    private final int pageSize;
+
+    private final ScheduledExecutorService loader;
+    private final List<Thread> persistentSearchThreads = new ArrayList<>();
+    private final Set<LdapContext> persistentSearchContexts = ConcurrentHashMap.newKeySet();
+
+    private volatile Index index;
+    private volatile boolean closed;
+
+    // Changes reported while a load is in progress, to be applied to the newly loaded index. Guarded by this.
+    private List<Consumer<Index>> pendingChanges;
+
+    /**
+     * @param contextFactory creates the connections to load from, and to run persistent searches on
+     * @param callerBase the base DN of the callers
+     * @param callerFilter the filter matching all callers
+     * @param callerScope the search scope of the callers
+     * @param callerNameAttribute the attribute holding the caller name
+     * @param groupMemberOfAttribute the attribute of callers holding the DNs of their groups, or null
+     *        if groups are found by searching the groups instead
+     * @param groupBase the base DN of the groups
+     * @param groupFilter the filter matching all groups
+     * @param groupScope the search scope of the groups
+     * @param groupNameAttribute the attribute holding the group name
+     * @param groupMemberAttribute the attribute of groups holding the DNs of their members
+     * @param localReplica the replica settings
+     */
+    LdapReplica(Supplier<LdapContext> contextFactory,
+            String callerBase, String callerFilter, int callerScope, String callerNameAttribute, String groupMemberOfAttribute,
+            String groupBase, String groupFilter, int groupScope, String groupNameAttribute, String groupMemberAttribute,
+            LdapLocalReplica localReplica) {
+
+        this.contextFactory = contextFactory;
+
+        this.callerBase = callerBase;
+        this.callerFilter = callerFilter;
+        this.callerNameAttribute = callerNameAttribute;
+        this.groupMemberOfAttribute = groupMemberOfAttribute;
+        this.callerControls = searchControls(callerScope, groupMemberOfAttribute != null ?
+            new String[] { callerNameAttribute, groupMemberOfAttribute } : new String[] { callerNameAttribute });
+
+        this.groupBase = groupBase;
+        this.groupFilter = groupFilter;
+        this.groupNameAttribute = groupNameAttribute;
+        this.groupMemberAttribute = groupMemberAttribute;
+        this.groupControls = searchControls(groupScope, new String[] { groupNameAttribute, groupMemberAttribute });
+
+        this.persistentSearch = localReplica.persistentSearch();
+        this.reloadInterval = localReplica.reloadInterval();
+        this.pageSize = localReplica.pageSize();
+
+        this.loader = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "LDAP replica loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts loading all callers and groups in the background, and starts the persistent
+     * searches if enabled.
+     */
+    void start() {
+        if (persistentSearch) {
+            // Started before loading, so that no change between the load and the start of the searches is missed
+            startPersistentSearch(true);
+            if (!isMemberOfMode()) {
+                startPersistentSearch(false);
+            }
+        }
+
+        if (reloadInterval > 0) {
+            loader.scheduleWithFixedDelay(this::load, 0, reloadInterval, MILLISECONDS);
+        }
+        else {
+            loader.execute(this::load);
+        }
+    }
+
+    /**
+     * Stops the loads and persistent searches. Lookups aren't answered anymore afterwards.
+     */
+    void close() {
+        closed = true;
+        index = null;
+        loader.shutdownNow();
+
+        for (Thread thread : persistentSearchThreads) {
+            thread.interrupt();
+        }
+        for (LdapContext context : persistentSearchContexts) {
+            // Unblocks a persistent search waiting for changes
+            closeContext(context);
+        }
+    }
+
+    /**
+     * @return true when callers and groups have been loaded, false otherwise
+     */
+    boolean isLoaded() {
+        return index != null;
+    }
+
+    /**
+     * Gets the DN of the caller with the given name. Like the caller name attribute of most
+     * directories, the name is matched ignoring case.
+     * 
+     * @param callerName the value of the caller name attribute of the caller
+     * @return the DN of the caller, or null if not loaded or unknown
+     */
+    String getCallerDn(String callerName) {
+        Index currentIndex = index;
+        return currentIndex != null ? currentIndex.callerDnsByName.get(toNameKey(callerName)) : null;
+    }
+
+    /**
+     * Gets the names of the groups that the caller with the given DN is a direct member of.
+     * 
+     * @param callerDn the DN of the caller
+     * @return the group names, or null if not loaded or unknown
+     */
+    Set<String> getCallerGroups(String callerDn) {
+        Index currentIndex = index;
+        if (currentIndex == null) {
+            return null;
+        }
+
+        LdapName callerKey;
+        try {
+            callerKey = new LdapName(callerDn);
+        }
+        catch (InvalidNameException e) {
+            return null;
+        }
+
+        if (isMemberOfMode()) {
+            Set<String> groups = currentIndex.groupsByCallerDn.get(callerKey);
+            return groups != null ? new HashSet<>(groups) : null;
+        }
+
+        if (!currentIndex.callerNamesByDn.containsKey(callerKey)) {
+            return null;
+        }
+
+        Set<String> groups = new HashSet<>();
+        for (LdapName groupKey : currentIndex.groupDnsByMemberDn.getOrDefault(callerKey, emptySet())) {
+            groups.addAll(currentIndex.groupNamesByGroupDn.getOrDefault(groupKey, emptySet()));
+        }
+        return groups;
+    }
+
+    private boolean isMemberOfMode() {
+        return groupMemberOfAttribute != null;
+    }
+
+    private void load() {
+        Index newIndex = new Index();
+        synchronized (this) {
+            pendingChanges = new ArrayList<>();
+        }
+
+        try {
+            LdapContext context = contextFactory.get();
+            try {
+                LdapIdentityStore.search(context, callerBase, callerFilter, callerControls, pageSize,
+                    result -> newIndex.putCaller(result.getNameInNamespace(), result.getAttributes()));
+
+                if (!isMemberOfMode()) {
+                    LdapIdentityStore.search(context, groupBase, groupFilter, groupControls, pageSize,
+                        result -> newIndex.putGroup(result.getNameInNamespace(), result.getAttributes()));
+                }
+            }
+            finally {
+                closeContext(context);
+            }
+        }
+        catch (RuntimeException e) {
+            LOGGER.log(WARNING, "Loading callers and groups into the local replica failed", e);
+            synchronized (this) {
+                pendingChanges = null;
+            }
+            return;
+        }
+
+        synchronized (this) {
+            for (Consumer<Index> change : pendingChanges) {
+                change.accept(newIndex);
+            }
+            pendingChanges = null;
+            if (!closed) {
+                index = newIndex;
+            }
+        }
+    }
+
+    private synchronized void applyChange(Consumer<Index> change) {
+        if (index != null) {
+            change.accept(index);
+        }
+        if (pendingChanges != null) {
+            pendingChanges.add(change);
+        }
+    }
+
+    private void startPersistentSearch(boolean callers) {
+        Thread thread = new Thread(() -> runPersistentSearch(callers), "LDAP replica persistent search");
+        thread.setDaemon(true);
+        persistentSearchThreads.add(thread);
+        thread.start();
+    }
+
+    private void runPersistentSearch(boolean callers) {
+        SearchControls controls = searchControls(
+            callers ? callerControls.getSearchScope() : groupControls.getSearchScope(), NO_ATTRIBUTES);
+
+        while (!closed) {
+            LdapContext context = null;
+            LdapContext entryContext = null;
+            try {
+                context = contextFactory.get();
+                persistentSearchContexts.add(context);
+
+                // Shares the connection, but doesn't send the persistent search control with its searches
+                entryContext = context.newInstance(null);
+                context.setRequestControls(new Control[] { new PersistentSearchControl() });
+
+                NamingEnumeration<SearchResult> results = context.search(callers ? callerBase : groupBase, ALL_ENTRIES_FILTER, controls);
+                while (results.hasMore()) {
+                    applyEntryChange(entryContext, results.next(), callers);
+                }
+
+                LOGGER.log(FINE, "Persistent search ended, restarting");
+            }
+            catch (OperationNotSupportedException e) {
+                LOGGER.log(FINE, "Persistent search not supported by the server, the local replica is only reloaded periodically", e);
+                return;
+            }
+            catch (NamingException | RuntimeException e) {
+                if (closed) {
+                    return;
+                }
+                LOGGER.log(FINE, "Persistent search failed, retrying", e);
+            }
+            finally {
+                if (entryContext != null) {
+                    closeContext(entryContext);
+                }
+                if (context != null) {
+                    persistentSearchContexts.remove(context);
+                    closeContext(context);
+                }
+            }
+
+            try {
+                Thread.sleep(PERSISTENT_SEARCH_RETRY_DELAY);
+            }
+            catch (InterruptedException ie) {
+                return;
+            }
+
+            if (!closed) {
+                // Changes may have been missed while there was no persistent search
+                loader.execute(this::load);
+            }
+        }
+    }
+
+    private void applyEntryChange(LdapContext entryContext, SearchResult result, boolean callers) throws NamingException {
+        EntryChange entryChange = getEntryChange(result);
+        if (entryChange == null) {
+            return;
+        }
+
+        String dn = result.getNameInNamespace();
+
+        if (entryChange.getPreviousDn() != null) {
+            applyChange(replicaIndex -> replicaIndex.remove(entryChange.getPreviousDn(), callers));
+        }
+
+        Attributes attributes = entryChange.getChangeType() == CHANGE_DELETE ? null : readMatchingEntry(entryContext, dn, callers);
+        if (attributes == null) {
+            applyChange(replicaIndex -> replicaIndex.remove(dn, callers));
+        }
+        else if (callers) {
+            applyChange(replicaIndex -> replicaIndex.putCaller(dn, attributes));
+        }
+        else {
+            applyChange(replicaIndex -> replicaIndex.putGroup(dn, attributes));
+        }
+    }
+
+    /**
+     * Reads the attributes of the given entry if it matches the caller or group filter.
+     * 
+     * @return the attributes of the entry, or null if it doesn't match or doesn't exist anymore
+     */
+    private Attributes readMatchingEntry(LdapContext entryContext, String dn, boolean callers) throws NamingException {
+        SearchControls controls = callers ? callerControls : groupControls;
+        NamingEnumeration<SearchResult> results;
+        try {
+            results = entryContext.search(
+                toKey(dn), callers ? callerFilter : groupFilter, searchControls(OBJECT_SCOPE, controls.getReturningAttributes()));
+        }
+        catch (NameNotFoundException e) {
+            return null;
+        }
+
+        try {
+            return results.hasMore() ? results.next().getAttributes() : null;
+        }
+        finally {
+            results.close();
+        }
+    }
+
+    private static SearchControls searchControls(int scope, String[] returningAttributes) {
+        SearchControls controls = new SearchControls();
+        controls.setSearchScope(scope);
+        controls.setReturningAttributes(returningAttributes);
+        return controls;
+    }
+
+    private static String toNameKey(String callerName) {
+        return callerName.toLowerCase(Locale.ROOT);
+    }
+
+    private static LdapName toKey(String dn) {
+        try {
+            return new LdapName(dn);
+        }
+        catch (InvalidNameException e) {
+            throw new IdentityStoreRuntimeException(e);
+        }
+    }
+
+    private static Set<String> getValues(Attributes attributes, String attributeName) {
+        Set<String> values = new HashSet<>();
+        Attribute attribute = attributes.get(attributeName);
+        if (attribute != null) {
+            try {
+                for (Object value : list(attribute.getAll())) {
+                    if (value != null) {
+                        values.add(value.toString());
+                    }
+                }
+            }
+            catch (NamingException e) {
+                throw new IdentityStoreRuntimeException(e);
+            }
+        }
+        return values;
+    }
+
+    private static void closeContext(LdapContext context) {
+        try {
+            context.close();
+        }
+        catch (NamingException e) {
+            // Nothing to do, the context isn't used anymore
+        }
+    }
+
+    /**
+     * The callers and group memberships. An index is filled by one thread while loading, and
+     * afterwards only changed under the lock of the replica, while lookups may read it concurrently.
+     */
+    private final class Index {
+
+        // Keyed by the lower case caller name
+        final Map<String, String> callerDnsByName = new ConcurrentHashMap<>();
+        final Map<LdapName, Set<String>> callerNamesByDn = new ConcurrentHashMap<>();
+
+        // Used when groups are taken from the caller entries
+        final Map<LdapName, Set<String>> groupsByCallerDn = new ConcurrentHashMap<>();
+
+        // Used when groups are taken from the group entries
+        final Map<LdapName, Set<String>> groupNamesByGroupDn = new ConcurrentHashMap<>();
+        final Map<LdapName, Set<LdapName>> memberDnsByGroupDn = new ConcurrentHashMap<>();
+        final Map<LdapName, Set<LdapName>> groupDnsByMemberDn = new ConcurrentHashMap<>();
+
+        void putCaller(String dn, Attributes attributes) {
+            removeCaller(dn);
+
+            LdapName callerKey = toKey(dn);
+            Set<String> callerNames = getValues(attributes, callerNameAttribute);
+            for (String callerName : callerNames) {
+                callerDnsByName.put(toNameKey(callerName), dn);
+            }
+            callerNamesByDn.put(callerKey, callerNames);
+
+            if (isMemberOfMode()) {
+                Set<String> groups = new HashSet<>();
+                for (String groupDn : getValues(attributes, groupMemberOfAttribute)) {
+                    try {
+                        groups.add(LdapIdentityStore.getGroupNameFromDn(groupDn, groupNameAttribute));
+                    }
+                    catch (NamingException | IdentityStoreConfigurationException e) {
+                        // One odd value shouldn't keep all other callers from being loaded
+                        LOGGER.log(WARNING, "Skipping group " + groupDn + " of caller " + dn + ", its name can't be taken from its DN", e);
+                    }
+                }
+                groupsByCallerDn.put(callerKey, groups);
+            }
+        }
+
+        void putGroup(String dn, Attributes attributes) {
+            removeGroup(dn);
+
+            LdapName groupKey = toKey(dn);
+            Set<LdapName> memberKeys = new HashSet<>();
+            for (String memberDn : getValues(attributes, groupMemberAttribute)) {
+                memberKeys.add(toKey(memberDn));
+            }
+
+            groupNamesByGroupDn.put(groupKey, getValues(attributes, groupNameAttribute));
+            memberDnsByGroupDn.put(groupKey, memberKeys);
+            for (LdapName memberKey : memberKeys) {
+                groupDnsByMemberDn.computeIfAbsent(memberKey, key -> ConcurrentHashMap.newKeySet()).add(groupKey);
+            }
+        }
+
+        void remove(String dn, boolean caller) {
+            if (caller) {
+                removeCaller(dn);
+            }
+            else {
+                removeGroup(dn);
+            }
+        }
+
+        private void removeCaller(String dn) {
+            LdapName callerKey = toKey(dn);
+            Set<String> callerNames = callerNamesByDn.remove(callerKey);
+            if (callerNames != null) {
+                for (String callerName : callerNames) {
+                    // The name may have moved to another caller in the meantime
+                    callerDnsByName.computeIfPresent(toNameKey(callerName), (name, callerDn) -> callerKey.equals(toKey(callerDn)) ? null : callerDn);
+                }
+            }
+            groupsByCallerDn.remove(callerKey);
+        }
+
+        private void removeGroup(String dn) {
+            LdapName groupKey = toKey(dn);
+            groupNamesByGroupDn.remove(groupKey);
+            Set<LdapName> memberKeys = memberDnsByGroupDn.remove(groupKey);
+            if (memberKeys != null) {
+                for (LdapName memberKey : memberKeys) {
+                    groupDnsByMemberDn.computeIfPresent(memberKey, (key, groupKeys) -> {
+                        groupKeys.remove(groupKey);
+                        return groupKeys.isEmpty() ? null : groupKeys;
+                    });
+                }
+            }
+        }
+    }
+
+}
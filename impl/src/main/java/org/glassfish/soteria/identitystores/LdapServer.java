@@ -0,0 +1,120 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015-2017 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://oss.oracle.com/licenses/CDDL+GPL-1.1
+ * or LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.soteria.identitystores;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One of the LDAP servers of an {@link LdapIdentityStore}, with its own search and caller
+ * connection pools, and the state used by {@link LdapServerSet} to balance load over the servers.
+ *
+ */
+class LdapServer {
+
+    private final String url;
+    private final LdapContextPool searchContextPool;
+    private final LdapContextPool callerContextPool;
+
+    private final AtomicInteger outstandingRequests = new AtomicInteger();
+    private volatile long ejectedUntil;
+
+    LdapServer(String url, LdapContextPool searchContextPool, LdapContextPool callerContextPool) {
+        this.url = url;
+        this.searchContextPool = searchContextPool;
+        this.callerContextPool = callerContextPool;
+    }
+
+    String getUrl() {
+        return url;
+    }
+
+    LdapContextPool getSearchContextPool() {
+        return searchContextPool;
+    }
+
+    LdapContextPool getCallerContextPool() {
+        return callerContextPool;
+    }
+
+    int getOutstandingRequests() {
+        return outstandingRequests.get();
+    }
+
+    void startRequest() {
+        outstandingRequests.incrementAndGet();
+    }
+
+    void endRequest() {
+        outstandingRequests.decrementAndGet();
+    }
+
+    boolean isEjected(long now) {
+        return ejectedUntil > now;
+    }
+
+    long getEjectedUntil() {
+        return ejectedUntil;
+    }
+
+    void eject(long until) {
+        ejectedUntil = until;
+    }
+
+    void reinstate() {
+        ejectedUntil = 0;
+    }
+
+    void fill() {
+        searchContextPool.fill();
+        callerContextPool.fill();
+    }
+
+    void close() {
+        searchContextPool.close();
+        callerContextPool.close();
+    }
+
+    @Override
+    public String toString() {
+        return url;
+    }
+
+}
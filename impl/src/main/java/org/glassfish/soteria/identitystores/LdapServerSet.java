@@ -0,0 +1,262 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015-2017 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://oss.oracle.com/licenses/CDDL+GPL-1.1
+ * or LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.soteria.identitystores;
+
+import static java.lang.Math.floorMod;
+import static java.lang.System.currentTimeMillis;
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+
+import org.glassfish.soteria.identitystores.annotation.LdapLoadBalancing;
+import org.glassfish.soteria.identitystores.annotation.LdapLoadBalancing.Policy;
+
+/**
+ * The LDAP servers of an {@link LdapIdentityStore}. Every operation is run against a server
+ * chosen according to the load balancing policy. A server that can't be reached, doesn't respond
+ * within the read timeout, or responds too slowly to its health check, is ejected for a while, and
+ * an operation that failed because its server couldn't be reached or didn't respond is retried on
+ * another server.
+ *
+ */
+class LdapServerSet {
+
+    private static final Logger LOGGER = Logger.getLogger(LdapServerSet.class.getName());
+
+    private final List<LdapServer> servers;
+    private final Policy policy;
+    private final int ejectionTime;
+    private final long slowResponseNanos;
+    private final Predicate<LdapServer> healthCheck;
+
+    private final AtomicInteger nextServer = new AtomicInteger();
+    private final ScheduledExecutorService healthChecker;
+
+    LdapServerSet(List<LdapServer> servers, LdapLoadBalancing loadBalancing, Predicate<LdapServer> healthCheck) {
+        if (servers.isEmpty()) {
+            throw new IdentityStoreConfigurationException("No LDAP server URL");
+        }
+
+        this.servers = new ArrayList<>(servers);
+        this.policy = loadBalancing.policy();
+        this.ejectionTime = loadBalancing.ejectionTime();
+        this.slowResponseNanos = MILLISECONDS.toNanos(loadBalancing.slowResponseTime());
+        this.healthCheck = healthCheck;
+
+        if (servers.size() > 1 && loadBalancing.healthCheckInterval() > 0) {
+            healthChecker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "LDAP health check");
+                thread.setDaemon(true);
+                return thread;
+            });
+            healthChecker.scheduleWithFixedDelay(
+                this::checkHealth, loadBalancing.healthCheckInterval(), loadBalancing.healthCheckInterval(), MILLISECONDS);
+        }
+        else {
+            healthChecker = null;
+        }
+    }
+
+    /**
+     * Runs the given operation against one of the servers. When the operation fails because
+     * the server is unavailable, it's retried on the next server, until all servers have been
+     * tried.
+     * 
+     * @param operation the operation to run
+     * @return the result of the operation
+     */
+    <T> T execute(Function<LdapServer, T> operation) {
+        List<LdapServer> triedServers = new ArrayList<>(servers.size());
+        RuntimeException failure = null;
+
+        for (LdapServer server = select(triedServers); server != null; server = select(triedServers)) {
+            triedServers.add(server);
+            server.startRequest();
+            try {
+                return operation.apply(server);
+            }
+            catch (RuntimeException e) {
+                if (!isUnavailable(e)) {
+                    throw e;
+                }
+
+                eject(server, "could not be reached or did not respond in time", e);
+                failure = e;
+            }
+            finally {
+                server.endRequest();
+            }
+        }
+
+        throw failure;
+    }
+
+    /**
+     * Opens the minimum number of pooled connections of all servers.
+     */
+    void fill() {
+        for (LdapServer server : servers) {
+            server.fill();
+        }
+    }
+
+    /**
+     * Stops the health checks and closes the connection pools of all servers.
+     */
+    void close() {
+        if (healthChecker != null) {
+            healthChecker.shutdownNow();
+        }
+
+        for (LdapServer server : servers) {
+            server.close();
+        }
+    }
+
+    private LdapServer select(List<LdapServer> excludedServers) {
+        long now = currentTimeMillis();
+        int start = floorMod(nextServer.getAndIncrement(), servers.size());
+
+        LdapServer selected = null;
+        LdapServer firstEjected = null;
+
+        for (int i = 0; i < servers.size(); i++) {
+            LdapServer server = servers.get((start + i) % servers.size());
+
+            if (excludedServers.contains(server)) {
+                continue;
+            }
+
+            if (server.isEjected(now)) {
+                if (firstEjected == null || server.getEjectedUntil() < firstEjected.getEjectedUntil()) {
+                    firstEjected = server;
+                }
+                continue;
+            }
+
+            if (policy == Policy.ROUND_ROBIN) {
+                return server;
+            }
+
+            if (selected == null || server.getOutstandingRequests() < selected.getOutstandingRequests()) {
+                selected = server;
+            }
+        }
+
+        // When no server is available, rather try one that was ejected than fail right away
+        return selected != null ? selected : firstEjected;
+    }
+
+    private void eject(LdapServer server, String reason, Throwable thrown) {
+        long now = currentTimeMillis();
+        if (servers.size() > 1 && !server.isEjected(now)) {
+            LOGGER.log(WARNING, "Ejecting LDAP server " + server + " for " + ejectionTime + " ms, it " + reason, thrown);
+        }
+        server.eject(now + ejectionTime);
+    }
+
+    private void checkHealth() {
+        for (LdapServer server : servers) {
+            try {
+                // Operations aren't timed, since how long they take depends on how much they do,
+                // e.g. how many groups a caller has, while the health check is the same every time
+                long start = nanoTime();
+                boolean available = healthCheck.test(server);
+                long elapsed = nanoTime() - start;
+
+                if (available && slowResponseNanos > 0 && elapsed > slowResponseNanos) {
+                    eject(server, "responded to its health check in " + NANOSECONDS.toMillis(elapsed) + " ms", null);
+                }
+                else if (available) {
+                    if (server.isEjected(currentTimeMillis())) {
+                        LOGGER.log(FINE, "LDAP server {0} is available again", server);
+                        server.reinstate();
+                    }
+                }
+                else {
+                    eject(server, "failed its health check", null);
+                }
+            }
+            catch (RuntimeException e) {
+                eject(server, "failed its health check", e);
+            }
+        }
+    }
+
+    /**
+     * Whether the exception is JNDI's read timeout, which is a plain naming exception that can
+     * only be told apart by its message.
+     */
+    private static boolean isReadTimeout(NamingException exception) {
+        return
+            exception.getRootCause() instanceof SocketTimeoutException ||
+            exception.getMessage() != null && exception.getMessage().contains("read timed out");
+    }
+
+    private static boolean isUnavailable(Throwable exception) {
+        for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+            if (cause instanceof CommunicationException || cause instanceof ServiceUnavailableException) {
+                return true;
+            }
+            if (cause instanceof SocketTimeoutException || cause instanceof NamingException && isReadTimeout((NamingException) cause)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
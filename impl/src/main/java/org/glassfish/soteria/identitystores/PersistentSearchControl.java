@@ -0,0 +1,200 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015-2017 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://oss.oracle.com/licenses/CDDL+GPL-1.1
+ * or LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.soteria.identitystores;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.HasControls;
+
+/**
+ * The persistent search request control, which keeps a search open and has the server
+ * return every entry within its scope that is added, modified, renamed or deleted.
+ * Every returned entry carries an entry change notification control describing the change.
+ *
+ */
+class PersistentSearchControl extends BasicControl {
+
+    private static final long serialVersionUID = 1L;
+
+    static final String OID = "2.16.840.1.113730.3.4.3";
+
+    static final String ENTRY_CHANGE_NOTIFICATION_OID = "2.16.840.1.113730.3.4.7";
+
+    static final int CHANGE_ADD = 1;
+    static final int CHANGE_DELETE = 2;
+    static final int CHANGE_MODIFY = 4;
+    static final int CHANGE_MODDN = 8;
+
+    // SEQUENCE { changeTypes INTEGER (all), changesOnly BOOLEAN (true), returnECs BOOLEAN (true) }
+    private static final byte[] VALUE = {
+        0x30, 0x09,
+        0x02, 0x01, CHANGE_ADD | CHANGE_DELETE | CHANGE_MODIFY | CHANGE_MODDN,
+        0x01, 0x01, (byte) 0xFF,
+        0x01, 0x01, (byte) 0xFF
+    };
+
+    PersistentSearchControl() {
+        super(OID, CRITICAL, VALUE);
+    }
+
+    /**
+     * Gets the change from the entry change notification control of a result of a
+     * persistent search.
+     * 
+     * @param searchResult the result of the persistent search
+     * @return the change, or null if the result has no entry change notification
+     */
+    static EntryChange getEntryChange(SearchResult searchResult) {
+        if (!(searchResult instanceof HasControls)) {
+            return null;
+        }
+
+        try {
+            Control[] controls = ((HasControls) searchResult).getControls();
+            if (controls != null) {
+                for (Control control : controls) {
+                    if (ENTRY_CHANGE_NOTIFICATION_OID.equals(control.getID())) {
+                        return decodeEntryChange(control.getEncodedValue());
+                    }
+                }
+            }
+        }
+        catch (Exception e) {
+            throw new IdentityStoreRuntimeException("Bad entry change notification", e);
+        }
+
+        return null;
+    }
+
+    // SEQUENCE { changeType ENUMERATED, previousDN OCTET STRING OPTIONAL, changeNumber INTEGER OPTIONAL }
+    private static EntryChange decodeEntryChange(byte[] value) {
+        BerReader reader = new BerReader(value);
+
+        reader.readTag(0x30);
+        int end = reader.readLength() + reader.position;
+
+        reader.readTag(0x0A);
+        int changeType = (int) reader.readInteger(reader.readLength());
+
+        String previousDn = null;
+        if (reader.position < end && reader.peekTag() == 0x04) {
+            reader.readTag(0x04);
+            previousDn = reader.readString(reader.readLength());
+        }
+
+        return new EntryChange(changeType, previousDn);
+    }
+
+    /**
+     * A change reported by a persistent search.
+     */
+    static class EntryChange {
+
+        private final int changeType;
+        private final String previousDn;
+
+        EntryChange(int changeType, String previousDn) {
+            this.changeType = changeType;
+            this.previousDn = previousDn;
+        }
+
+        int getChangeType() {
+            return changeType;
+        }
+
+        String getPreviousDn() {
+            return previousDn;
+        }
+    }
+
+    private static class BerReader {
+
+        private final byte[] bytes;
+        private int position;
+
+        BerReader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        int peekTag() {
+            return bytes[position] & 0xFF;
+        }
+
+        void readTag(int expectedTag) {
+            int tag = bytes[position++] & 0xFF;
+            if (tag != expectedTag) {
+                throw new IllegalArgumentException("Expected BER tag " + expectedTag + " but found " + tag);
+            }
+        }
+
+        int readLength() {
+            int length = bytes[position++] & 0xFF;
+            if ((length & 0x80) == 0) {
+                return length;
+            }
+
+            int lengthBytes = length & 0x7F;
+            length = 0;
+            for (int i = 0; i < lengthBytes; i++) {
+                length = (length << 8) | (bytes[position++] & 0xFF);
+            }
+            return length;
+        }
+
+        long readInteger(int length) {
+            long integer = 0;
+            for (int i = 0; i < length; i++) {
+                integer = (integer << 8) | (bytes[position++] & 0xFF);
+            }
+            return integer;
+        }
+
+        String readString(int length) {
+            String string = new String(bytes, position, length, UTF_8);
+            position += length;
+            return string;
+        }
+    }
+
+}
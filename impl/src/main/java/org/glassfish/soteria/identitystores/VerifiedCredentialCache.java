@@ -0,0 +1,151 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015-2017 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://oss.oracle.com/licenses/CDDL+GPL-1.1
+ * or LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.soteria.identitystores;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.function.BiPredicate;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.glassfish.soteria.identitystores.annotation.CachePolicy;
+
+/**
+ * Cache of successful password verifications, so that a caller who presents the same password
+ * again, such as with every request using basic authentication, doesn't need the costly password
+ * hash to be computed again.
+ * 
+ * <p>
+ * For every caller the cache holds a MAC of the last verified password together with the stored
+ * password hash it was verified against, keyed with a random key that only exists in memory. A
+ * verification only hits the cache when both the presented password and the stored hash are the
+ * same as before, so a wrong password, or a password that changed in the backing store, is
+ * always verified by the password hash. Failed verifications are never cached.
+ *
+ */
+class VerifiedCredentialCache {
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    private final ExpiringCache<String, byte[]> cache;
+    private final SecretKeySpec key;
+
+    private VerifiedCredentialCache(ExpiringCache<String, byte[]> cache) {
+        this.cache = cache;
+
+        byte[] keyBytes = new byte[32];
+        new SecureRandom().nextBytes(keyBytes);
+        this.key = new SecretKeySpec(keyBytes, MAC_ALGORITHM);
+    }
+
+    /**
+     * Creates a verified credential cache as defined by the given policy.
+     * 
+     * @param cachePolicy the policy defining the cache
+     * @return the cache, or null if caching is disabled by the policy
+     */
+    static VerifiedCredentialCache create(CachePolicy cachePolicy) {
+        // A verification can't be reloaded without the password, so it's never refreshed ahead
+        ExpiringCache<String, byte[]> cache = ExpiringCache.create(cachePolicy, null);
+        return cache != null ? new VerifiedCredentialCache(cache) : null;
+    }
+
+    /**
+     * Verifies the given password against the stored password hash, skipping the password hash
+     * when the caller was verified with the same password and stored hash before.
+     * 
+     * @param caller the name of the caller
+     * @param password the password presented by the caller
+     * @param storedHash the password hash stored for the caller
+     * @param verifier verifies the password against the stored hash when there's no cached verification
+     * @return true if the password matches the stored hash, false otherwise
+     */
+    boolean verify(String caller, char[] password, String storedHash, BiPredicate<char[], String> verifier) {
+        byte[] mac = mac(password, storedHash);
+
+        byte[] cachedMac = cache.get(caller);
+        if (cachedMac != null && MessageDigest.isEqual(cachedMac, mac)) {
+            return true;
+        }
+
+        if (verifier.test(password, storedHash)) {
+            cache.put(caller, mac);
+            return true;
+        }
+
+        return false;
+    }
+
+    void invalidate(String caller) {
+        cache.invalidate(caller);
+    }
+
+    private byte[] mac(char[] password, String storedHash) {
+        ByteBuffer passwordBytes = UTF_8.encode(CharBuffer.wrap(password));
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(key);
+
+            // Prefix the password with its length, so that password and hash can't be shifted into each other
+            mac.update(ByteBuffer.allocate(4).putInt(passwordBytes.remaining()).array());
+            mac.update(passwordBytes);
+            mac.update(storedHash.getBytes(UTF_8));
+
+            return mac.doFinal();
+        }
+        catch (GeneralSecurityException e) {
+            throw new IdentityStoreRuntimeException(e);
+        }
+        finally {
+            if (passwordBytes.hasArray()) {
+                Arrays.fill(passwordBytes.array(), (byte) 0);
+            }
+        }
+    }
+
+}
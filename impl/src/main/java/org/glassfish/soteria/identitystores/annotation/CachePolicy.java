@@ -0,0 +1,105 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015-2017 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://oss.oracle.com/licenses/CDDL+GPL-1.1
+ * or LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.soteria.identitystores.annotation;
+
+import static java.lang.annotation.ElementType.FIELD;
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.PARAMETER;
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+/**
+ * <code>CachePolicy</code> defines if and how the results of an identity store
+ * lookup are cached.
+ * 
+ * <p>
+ * Caching is disabled by default, since a cached result may not reflect changes
+ * made in the backing store until it expires.
+ *
+ */
+@Retention(RUNTIME)
+@Target({ TYPE, METHOD, FIELD, PARAMETER })
+public @interface CachePolicy {
+
+    /**
+     * Whether results are cached at all.
+     * 
+     * @return true if results are cached, false otherwise
+     */
+    boolean enabled() default false;
+
+    /**
+     * Maximum number of results that are cached. When the cache is full, the
+     * least recently used result is removed.
+     * 
+     * @return maximum number of cached results
+     */
+    int maxSize() default 10000;
+
+    /**
+     * Time in milliseconds after which a cached result expires.
+     * 
+     * @return time to live of a cached result in milliseconds
+     */
+    int timeToLive() default 300000;
+
+    /**
+     * Time in milliseconds after which a cached "not found" result expires, such as for
+     * a caller who is not in any group. A value of 0 means such results aren't cached.
+     * 
+     * @return time to live of a cached "not found" result in milliseconds
+     */
+    int negativeTimeToLive() default 0;
+
+    /**
+     * Time in milliseconds before a cached result expires at which it's reloaded in the
+     * background when it's used, so that frequently used results are kept up to date
+     * without the caller having to wait for the reload. A value of 0 means results are
+     * only reloaded after they have expired.
+     * 
+     * @return time before expiry at which a result is reloaded in milliseconds
+     */
+    int refreshAhead() default 0;
+
+}
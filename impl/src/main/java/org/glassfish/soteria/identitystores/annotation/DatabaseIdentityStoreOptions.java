@@ -0,0 +1,269 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015-2017 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://oss.oracle.com/licenses/CDDL+GPL-1.1
+ * or LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.soteria.identitystores.annotation;
+
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import javax.security.enterprise.identitystore.DatabaseIdentityStoreDefinition;
+
+/**
+ * Annotation used to tune the container provided database identity store that is defined via
+ * {@link DatabaseIdentityStoreDefinition}. It's placed on the same class as that annotation, and
+ * is fully optional; when it's absent the defaults as given below are used.
+ * 
+ * <p>
+ * The following shows an example:
+ * 
+ * <pre>
+ * <code>
+ * {@literal @}DatabaseIdentityStoreDefinition(
+ *     dataSourceLookup = "${'java:global/MyDS'}",
+ *     callerQuery = "#{'select password from caller where name = ?'}",
+ *     groupsQuery = "select group_name from caller_groups where caller_name = ?")
+ * {@literal @}DatabaseIdentityStoreOptions(
+ *     groupCache = {@literal @}CachePolicy(enabled = true, timeToLive = 60000))
+ * </code>
+ * </pre>
+ *
+ */
+@Retention(RUNTIME)
+@Target(TYPE)
+public @interface DatabaseIdentityStoreOptions {
+
+    /**
+     * The cache of the groups that callers are in, keyed by caller name. When enabled, the
+     * groups query is only executed for callers who aren't in the cache yet.
+     * 
+     * @return the policy for caching caller groups
+     */
+    CachePolicy groupCache() default @CachePolicy;
+
+    /**
+     * The cache of successful password verifications, keyed by caller name. When enabled, a
+     * caller who presents the same password as before, against the same stored password hash,
+     * is validated without computing the password hash again. The caller query is still
+     * executed, so a changed password is noticed right away, and failed verifications are never
+     * cached. As the cache lets a password be checked without the cost of the password hash,
+     * it should be kept small and its time to live short, in the order of a minute.
+     * 
+     * @return the policy for caching successful password verifications
+     */
+    CachePolicy verifiedCredentialCache() default @CachePolicy;
+
+    /**
+     * A query that retrieves both the password and the groups of a caller, which is used instead
+     * of the <code>callerQuery</code> and <code>groupsQuery</code> when groups are needed. It
+     * takes the caller name as its single parameter, and returns the password in the first
+     * column and a group in the second column of every row. A caller without groups gets a
+     * single row with a null group, for instance by using an outer join:
+     * 
+     * <pre>
+     * <code>
+     * select c.password, g.group_name from caller c
+     *   left join caller_groups g on g.caller_name = c.name
+     *   where c.name = ?
+     * </code>
+     * </pre>
+     * 
+     * <p>
+     * This makes validating a caller a single round trip to the database. When empty, the
+     * separate queries are used.
+     * 
+     * @return the combined caller and groups query
+     */
+    String callerAndGroupsQuery() default "";
+
+    /**
+     * The number of rows the JDBC driver fetches at a time when reading the groups of a caller.
+     * With a fetch size, a long list of groups is streamed rather than fully buffered by the
+     * driver. A value of 0 leaves the fetch size to the driver.
+     * 
+     * @return the fetch size for groups queries
+     */
+    int groupsFetchSize() default 0;
+
+    /**
+     * A query that retrieves the groups of many callers at once, which is used when looking up
+     * the groups of a collection of callers. It returns the caller name in the first column and
+     * a group in the second column of every row. The query must contain <code>(?)</code> exactly
+     * once, which is replaced by a list of as many parameter markers as there are callers in a
+     * chunk:
+     * 
+     * <pre>
+     * <code>
+     * select caller_name, group_name from caller_groups where caller_name in (?)
+     * </code>
+     * </pre>
+     * 
+     * <p>
+     * Rows are matched to the requested callers by name ignoring case, so that databases that
+     * compare names ignoring case are supported. A group is thus given to every requested name
+     * that equals the returned caller name ignoring case.
+     * 
+     * <p>
+     * When groups are cached, only the callers whose groups aren't cached are queried, and
+     * their groups are cached afterwards.
+     * 
+     * <p>
+     * When empty, the <code>groupsQuery</code> is executed for each caller.
+     * 
+     * @return the bulk groups query
+     */
+    String bulkGroupsQuery() default "";
+
+    /**
+     * The number of callers whose groups are retrieved by a single execution of the
+     * <code>bulkGroupsQuery</code>. The last chunk is padded by repeating a caller name, so
+     * that every execution uses the same statement.
+     * 
+     * @return the number of callers per bulk groups query
+     */
+    int bulkGroupsChunkSize() default 100;
+
+    /**
+     * The maximum number of callers that query the database at the same time. Further callers
+     * wait for at most {@link #maxQueryWait()}, after which a validation returns
+     * <code>NOT_VALIDATED_RESULT</code> and a group lookup fails. This keeps request threads from
+     * all blocking on a database that has slowed down. A value of 0 means there's no limit.
+     * 
+     * @return the maximum number of concurrent callers of the database
+     */
+    int maxConcurrentQueries() default 0;
+
+    /**
+     * Time in milliseconds a caller waits to query the database when {@link #maxConcurrentQueries()}
+     * callers are already doing so.
+     * 
+     * @return the maximum time to wait for querying the database in milliseconds
+     */
+    int maxQueryWait() default 0;
+
+    /**
+     * Time in seconds after which the driver cancels a query, see
+     * {@link java.sql.Statement#setQueryTimeout(int)}. A value of 0 means no timeout.
+     * 
+     * @return the query timeout in seconds
+     */
+    int queryTimeout() default 0;
+
+    /**
+     * The read replicas that queries are spread over, instead of running them all against
+     * the data source of the identity store.
+     * 
+     * @return the read replicas of the database
+     */
+    DatabaseReplicas replicas() default @DatabaseReplicas;
+
+    /**
+     * Whether the data source is looked up in JNDI when the identity store is created. Otherwise
+     * it's looked up when first used. Either way the data source is only looked up again after
+     * a query against it has failed.
+     * 
+     * @return true if the data source is looked up when the store is created, false otherwise
+     */
+    boolean eagerDataSourceLookup() default false;
+
+    /**
+     * The maximum number of passwords that are verified against their stored hash at the same
+     * time. Verifications then run on a dedicated pool of at most this many threads, instead
+     * of on the threads of the callers, so that a burst of logins can't take all processors.
+     * A value of 0 means passwords are verified on the threads of the callers.
+     * 
+     * <p>
+     * Every verification runs on a single thread of the pool, so when a pool is used, the
+     * <code>Pbkdf2PasswordHash.ParallelBlocks</code> hash algorithm parameter is ignored.
+     * 
+     * @return the maximum number of concurrent password verifications
+     */
+    int hashingParallelism() default 0;
+
+    /**
+     * The number of password verifications that wait for a thread of the hashing pool when
+     * all its threads are busy. A verification that finds the queue full is rejected right
+     * away, with the result given by {@link #hashingOverloadResult()}.
+     * 
+     * @return the number of password verifications that may wait
+     */
+    int hashingQueueDepth() default 0;
+
+    /**
+     * The result of a validation whose password verification was rejected by the hashing pool.
+     * 
+     * @return the result of a validation when password hashing is overloaded
+     */
+    OverloadResult hashingOverloadResult() default OverloadResult.NOT_VALIDATED;
+
+    /**
+     * The JNDI name of the executor that background work of the identity store runs on, such as
+     * reloading cached results ahead of their expiry, for instance
+     * <code>java:comp/DefaultManagedExecutorService</code>. When empty, the identity store starts
+     * a few daemon threads of its own, which are stopped when the store is closed.
+     * 
+     * <p>
+     * Reloads look up the data source again after a failure, so a <code>java:comp</code> data source
+     * needs a managed executor of the server.
+     * 
+     * @return the JNDI name of the background executor
+     */
+    String backgroundExecutor() default "";
+
+    /**
+     * Results of a validation that was rejected because of overload.
+     */
+    enum OverloadResult {
+
+        /**
+         * The validation returns <code>NOT_VALIDATED_RESULT</code>, leaving the caller to other
+         * identity stores if any.
+         */
+        NOT_VALIDATED,
+
+        /**
+         * The validation returns <code>INVALID_RESULT</code>, as for a wrong password.
+         */
+        INVALID
+    }
+
+}
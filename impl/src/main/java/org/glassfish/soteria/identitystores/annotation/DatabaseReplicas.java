@@ -0,0 +1,125 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015-2017 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://oss.oracle.com/licenses/CDDL+GPL-1.1
+ * or LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.soteria.identitystores.annotation;
+
+import static java.lang.annotation.ElementType.FIELD;
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.PARAMETER;
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+/**
+ * <code>DatabaseReplicas</code> defines the read replicas of the database of an identity store
+ * for use with the {@link DatabaseIdentityStoreOptions} annotation.
+ * <p>
+ * The queries of the identity store only read, so they're run against a replica when replicas
+ * are given. The data source given by the <code>dataSourceLookup</code> of the
+ * <code>DatabaseIdentityStoreDefinition</code> is the primary, which is used when no replica
+ * is available or a query against a replica fails.
+ *
+ */
+@Retention(RUNTIME)
+@Target({ TYPE, METHOD, FIELD, PARAMETER })
+public @interface DatabaseReplicas {
+
+    /**
+     * The JNDI names of the data sources of the replicas. When empty, all queries are run
+     * against the primary.
+     * 
+     * @return the JNDI names of the replica data sources
+     */
+    String[] dataSourceLookups() default {};
+
+    /**
+     * How the replica for a query is chosen from the replicas that are not ejected.
+     * 
+     * @return the load balancing policy
+     */
+    Policy policy() default Policy.ROUND_ROBIN;
+
+    /**
+     * Time in milliseconds that a replica on which a query failed isn't used for new
+     * queries. When all replicas are ejected, the primary is used.
+     * 
+     * @return ejection time in milliseconds
+     */
+    int ejectionTime() default 30000;
+
+    /**
+     * Time in milliseconds after the identity store is told that a caller changed, during
+     * which the queries for that caller are run against the primary. This should cover the
+     * replication lag, so that a changed password or group is seen right away. A value of 0
+     * means queries are always run against the replicas.
+     * 
+     * @return time in milliseconds to read a changed caller from the primary
+     */
+    int primaryReadsAfterChange() default 0;
+
+    /**
+     * The maximum number of changed callers that are read from the primary, as set by
+     * {@link #primaryReadsAfterChange()}. When more callers change within that time, the ones
+     * that changed first are read from the replicas again early, so this should cover the number
+     * of callers that may change within the replication lag.
+     * 
+     * @return maximum number of changed callers that are read from the primary
+     */
+    int changedCallersMaxSize() default 10000;
+
+    /**
+     * Policies to choose a replica for a query.
+     */
+    enum Policy {
+
+        /**
+         * Replicas are used in turn.
+         */
+        ROUND_ROBIN,
+
+        /**
+         * The replica with the fewest queries in progress is used.
+         */
+        LEAST_OUTSTANDING_REQUESTS
+    }
+
+}
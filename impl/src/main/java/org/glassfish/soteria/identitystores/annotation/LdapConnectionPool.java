@@ -0,0 +1,119 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015-2017 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://oss.oracle.com/licenses/CDDL+GPL-1.1
+ * or LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.soteria.identitystores.annotation;
+
+import static java.lang.annotation.ElementType.FIELD;
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.PARAMETER;
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+/**
+ * <code>LdapConnectionPool</code> defines the settings of a pool of LDAP connections
+ * for use with the {@link LdapIdentityStoreOptions} annotation.
+ *
+ */
+@Retention(RUNTIME)
+@Target({ TYPE, METHOD, FIELD, PARAMETER })
+public @interface LdapConnectionPool {
+
+    /**
+     * Whether connections are pooled at all. If <code>false</code> a new connection
+     * is opened for every operation and closed directly afterwards, without any limit
+     * on the number of connections that are open at the same time.
+     * 
+     * <p>
+     * Pooling is disabled by default, since a pool limits the number of concurrent
+     * operations to {@link #maxSize()}, and makes operations beyond that wait for up to
+     * {@link #borrowTimeout()}. Enable it after sizing the pool for the expected load.
+     * 
+     * @return true if connections are pooled, false otherwise
+     */
+    boolean enabled() default false;
+
+    /**
+     * Number of connections that are kept open by the pool, even when they have been
+     * idle for longer than {@link #maxIdleTime()}. These connections are opened when the
+     * identity store is created, and connections that are closed because they failed are
+     * replaced in the background.
+     * 
+     * @return minimum number of pooled connections
+     */
+    int minSize() default 0;
+
+    /**
+     * Maximum number of connections, both idle and in use, that the pool will open.
+     * 
+     * @return maximum number of pooled connections
+     */
+    int maxSize() default 16;
+
+    /**
+     * Time in milliseconds after which an idle connection is closed, as long as
+     * more than {@link #minSize()} connections are open. A value of 0 means idle
+     * connections are never closed.
+     * 
+     * @return maximum idle time of a pooled connection in milliseconds
+     */
+    int maxIdleTime() default 300000;
+
+    /**
+     * Time in milliseconds to wait for a connection when {@link #maxSize()} connections
+     * are in use. When this time has elapsed without a connection becoming available,
+     * the operation fails.
+     * 
+     * @return maximum time to wait for a connection in milliseconds
+     */
+    int borrowTimeout() default 5000;
+
+    /**
+     * Time in milliseconds that a connection may be idle before it's checked for
+     * being still alive when it's taken from the pool. A value of 0 means connections
+     * are always checked.
+     * 
+     * @return idle time in milliseconds after which a connection is checked
+     */
+    int validationInterval() default 30000;
+
+}
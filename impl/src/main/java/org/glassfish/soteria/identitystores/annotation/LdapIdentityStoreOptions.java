@@ -0,0 +1,278 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015-2017 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://oss.oracle.com/licenses/CDDL+GPL-1.1
+ * or LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.soteria.identitystores.annotation;
+
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import javax.security.enterprise.identitystore.LdapIdentityStoreDefinition;
+
+/**
+ * Annotation used to tune the container provided LDAP identity store that is defined via
+ * {@link LdapIdentityStoreDefinition}. It's placed on the same class as that annotation, and
+ * is fully optional; when it's absent the defaults as given below are used.
+ * 
+ * <p>
+ * The following shows an example:
+ * 
+ * <pre>
+ * <code>
+ * {@literal @}LdapIdentityStoreDefinition(
+ *     url = "ldap://localhost:33389/",
+ *     callerBaseDn = "ou=caller,dc=jsr375,dc=net",
+ *     groupSearchBase = "ou=group,dc=jsr375,dc=net")
+ * {@literal @}LdapIdentityStoreOptions(
+ *     searchConnectionPool = {@literal @}LdapConnectionPool(enabled = true, minSize = 2, maxSize = 20))
+ * </code>
+ * </pre>
+ *
+ */
+@Retention(RUNTIME)
+@Target(TYPE)
+public @interface LdapIdentityStoreOptions {
+
+    /**
+     * The pool of connections that are bound with the <code>bindDn</code> of the
+     * identity store definition, and which are used to search for callers and groups.
+     * 
+     * @return the pool of search connections
+     */
+    LdapConnectionPool searchConnectionPool() default @LdapConnectionPool;
+
+    /**
+     * The pool of connections that are used to check the caller's credentials. A
+     * connection from this pool is re-authenticated in place with the caller's DN
+     * and password, and afterwards given back to the pool.
+     * 
+     * <p>
+     * This pool is disabled unless enabled explicitly, since not every server allows a
+     * connection to be re-authenticated as another user. When it's disabled, a new connection
+     * is opened for every credential check, which is closed directly after the bind.
+     * 
+     * @return the pool of caller connections
+     */
+    LdapConnectionPool callerConnectionPool() default @LdapConnectionPool(enabled = false);
+
+    /**
+     * Time in milliseconds to wait for a connection to a server to be established. A value
+     * of 0 means the operating system's TCP timeout applies. The <code>readTimeout</code> of
+     * the identity store definition limits the time to wait for a response on a connection.
+     * 
+     * @return the connect timeout in milliseconds
+     */
+    int connectTimeout() default 0;
+
+    /**
+     * Time in milliseconds that validating a caller may take as a whole, including the caller
+     * search, the bind and the group retrieval. When the time has passed, validation fails with
+     * an exception. The time is checked after each step, so a single step that hangs is only
+     * stopped by the connect and read timeouts. A value of 0 means there is no limit.
+     * 
+     * @return the authentication timeout in milliseconds
+     */
+    int authenticationTimeout() default 0;
+
+    /**
+     * How operations are spread over the servers, when the <code>url</code> of the identity
+     * store definition is a space separated list of URLs. Every server has its own search and
+     * caller connection pools.
+     * 
+     * @return the load balancing settings
+     */
+    LdapLoadBalancing loadBalancing() default @LdapLoadBalancing;
+
+    /**
+     * Whether caller connections are put in fast bind mode (also known as concurrent
+     * bind mode). In this mode the server only verifies the credentials given in a bind,
+     * without building a security context for the connection, which makes binds cheaper.
+     * 
+     * <p>
+     * This is only supported by some servers, such as Active Directory. When the server
+     * doesn't support fast binds, regular binds are used. Fast bind mode is only requested
+     * on pooled connections, so it requires the {@link #callerConnectionPool()} to be enabled.
+     * 
+     * @return true if fast bind mode should be requested, false otherwise
+     */
+    boolean fastBind() default false;
+
+    /**
+     * Whether the groups of a caller are searched for at the same time as the caller's password
+     * is checked, rather than after it. The groups are discarded when the password turns out
+     * to be wrong.
+     * 
+     * @return true if groups are looked up concurrently with the bind, false otherwise
+     */
+    boolean concurrentGroupLookup() default false;
+
+    /**
+     * The JNDI name of the executor that concurrent group lookups run on, for instance
+     * <code>java:comp/DefaultManagedExecutorService</code>. When empty, a virtual thread is
+     * started per lookup if the JVM supports this, and the common fork join pool is used otherwise.
+     * 
+     * @return the JNDI name of the group lookup executor
+     */
+    String groupLookupExecutor() default "";
+
+    /**
+     * The JNDI name of the executor that background work of the identity store runs on, such as
+     * reloading cached results ahead of their expiry and replacing pooled connections, for instance
+     * <code>java:comp/DefaultManagedExecutorService</code>. When empty, the identity store starts
+     * a few daemon threads of its own, which are stopped when the store is closed.
+     * 
+     * @return the JNDI name of the background executor
+     */
+    String backgroundExecutor() default "";
+
+    /**
+     * The cache of caller DNs that were found by searching for the caller name. When enabled,
+     * repeat callers don't need a search round trip before their credentials are checked.
+     * 
+     * <p>
+     * An entry is removed as soon as a bind with the cached DN fails, so that a caller
+     * who was moved in the directory is searched for again on the next attempt.
+     * 
+     * @return the policy for caching caller DNs
+     */
+    CachePolicy callerDnCache() default @CachePolicy;
+
+    /**
+     * The cache of the groups that callers are in, keyed by caller DN. When enabled, groups
+     * are only looked up in the directory for callers who aren't in the cache yet.
+     * 
+     * @return the policy for caching caller groups
+     */
+    CachePolicy groupCache() default @CachePolicy;
+
+    /**
+     * Number of groups requested per page when searching for the groups of a caller. When
+     * larger than 0, the Simple Paged Results control is used and results are processed one
+     * page at a time, so that callers in many groups don't need all results in memory at once.
+     * In that case <code>maxResults</code> of the identity store definition doesn't limit the
+     * number of groups. A value of 0 means groups are retrieved in a single search.
+     * 
+     * <p>
+     * Servers that don't support paging return all groups at once.
+     * 
+     * @return page size for group searches, or 0 for no paging
+     */
+    int groupSearchPageSize() default 0;
+
+    /**
+     * The in-memory copy of callers and group memberships, which answers caller DN and group
+     * lookups without going to the server. Nested groups are not resolved from memory.
+     * 
+     * @return the local replica settings
+     */
+    LdapLocalReplica localReplica() default @LdapLocalReplica;
+
+    /**
+     * Whether the groups of a caller are read by the same search that finds the caller's DN,
+     * when groups are taken from the <code>groupMemberOfAttribute</code> of the caller's entry.
+     * Validating a caller then takes a search and a bind, instead of also reading the caller's
+     * entry after the bind. This has no effect when the caller's DN isn't searched, when it's
+     * taken from the caller DN cache, or when nested groups are resolved.
+     * 
+     * @return true if groups are read along with the caller's DN, false otherwise
+     */
+    boolean memberOfInCallerSearch() default false;
+
+    /**
+     * Whether caller searches ask the server for at most two entries, rather than for
+     * <code>maxResults</code> entries. Two entries are enough to tell that a caller name is
+     * ambiguous, in which case the caller is not valid.
+     * 
+     * @return true if caller searches are limited to two entries, false otherwise
+     */
+    boolean minimalCallerSearch() default false;
+
+    /**
+     * How groups that a caller is only indirectly a member of, via other groups, are found.
+     * 
+     * @return the strategy for finding nested groups
+     */
+    NestedGroupStrategy nestedGroups() default NestedGroupStrategy.NONE;
+
+    /**
+     * Maximum number of levels of group nesting that are followed when nested groups are
+     * found via {@link NestedGroupStrategy#GRAPH_WALK}.
+     * 
+     * @return maximum nesting depth
+     */
+    int nestedGroupMaxDepth() default 10;
+
+    /**
+     * The cache of the parent groups of each group, which is used when nested groups are found
+     * via {@link NestedGroupStrategy#GRAPH_WALK}. Since the parents of a group are the same for
+     * every caller, the group graph is mostly walked in memory once the cache is warm.
+     * 
+     * @return the policy for caching the group graph
+     */
+    CachePolicy groupGraphCache() default @CachePolicy(enabled = true);
+
+    /**
+     * Strategies to find groups that a caller is indirectly a member of.
+     */
+    enum NestedGroupStrategy {
+
+        /**
+         * Only groups the caller is directly a member of are returned.
+         */
+        NONE,
+
+        /**
+         * The server finds the nested groups via the LDAP_MATCHING_RULE_IN_CHAIN matching rule,
+         * as supported by e.g. Active Directory. This requires a <code>groupSearchBase</code>. When
+         * a <code>groupSearchFilter</code> is defined, it's used as-is and should use the matching
+         * rule itself.
+         */
+        MATCHING_RULE_IN_CHAIN,
+
+        /**
+         * The identity store walks up the group graph, looking up the parent groups of every group
+         * found in the previous step, either by searching or via the <code>groupMemberOfAttribute</code>.
+         */
+        GRAPH_WALK
+    }
+
+}
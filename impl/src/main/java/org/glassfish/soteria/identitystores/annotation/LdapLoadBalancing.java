@@ -0,0 +1,117 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015-2017 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://oss.oracle.com/licenses/CDDL+GPL-1.1
+ * or LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.soteria.identitystores.annotation;
+
+import static java.lang.annotation.ElementType.FIELD;
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.PARAMETER;
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+/**
+ * <code>LdapLoadBalancing</code> defines how operations are spread over the LDAP servers
+ * of an identity store for use with the {@link LdapIdentityStoreOptions} annotation.
+ * <p>
+ * Several servers are configured by giving a space separated list of URLs as the
+ * <code>url</code> of the <code>LdapIdentityStoreDefinition</code>. All servers are
+ * expected to be replicas holding the same entries.
+ *
+ */
+@Retention(RUNTIME)
+@Target({ TYPE, METHOD, FIELD, PARAMETER })
+public @interface LdapLoadBalancing {
+
+    /**
+     * How the server for an operation is chosen from the servers that are not ejected.
+     * 
+     * @return the load balancing policy
+     */
+    Policy policy() default Policy.ROUND_ROBIN;
+
+    /**
+     * Time in milliseconds between two background checks of all servers. A server that
+     * doesn't respond is ejected, an ejected server that responds again is taken back.
+     * A value of 0 means servers are not checked in the background, in which case ejected
+     * servers are taken back after {@link #ejectionTime()}.
+     * 
+     * @return interval between health checks in milliseconds
+     */
+    int healthCheckInterval() default 10000;
+
+    /**
+     * Time in milliseconds that a server which could not be reached, or which responded
+     * too slowly, isn't used for new operations. When all servers are ejected, the one that
+     * was ejected first is used anyway.
+     * 
+     * @return ejection time in milliseconds
+     */
+    int ejectionTime() default 30000;
+
+    /**
+     * Time in milliseconds after which a health check is considered slow, causing the server
+     * to be ejected until a later health check is fast again. A health check connects to the
+     * server and reads its root entry. A value of 0 means servers are never ejected for
+     * being slow, as is the case when there are no health checks.
+     * 
+     * @return response time in milliseconds above which a server is ejected
+     */
+    int slowResponseTime() default 0;
+
+    /**
+     * Policies to choose a server for an operation.
+     */
+    enum Policy {
+
+        /**
+         * Servers are used in turn.
+         */
+        ROUND_ROBIN,
+
+        /**
+         * The server with the fewest operations in progress is used.
+         */
+        LEAST_OUTSTANDING_REQUESTS
+    }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015-2017 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://oss.oracle.com/licenses/CDDL+GPL-1.1
+ * or LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.soteria.identitystores.annotation;
+
+import static java.lang.annotation.ElementType.FIELD;
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.PARAMETER;
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+/**
+ * <code>LdapLocalReplica</code> defines the settings of an in-memory copy of the callers
+ * and group memberships in the directory, for use with the {@link LdapIdentityStoreOptions}
+ * annotation.
+ * <p>
+ * When enabled, all callers and groups are loaded in the background when the identity store
+ * is created. From then on caller DNs and groups are taken from memory, and only the bind that
+ * checks the caller's password goes to the server. Callers are indexed by the value of their
+ * <code>callerNameAttribute</code>, ignoring case. Callers that are not found in memory, for
+ * instance because they were just added, are still searched for in the directory. When the
+ * <code>callerSearchFilter</code> doesn't match callers on their <code>callerNameAttribute</code>,
+ * callers are always searched for, and only their groups are taken from memory.
+ *
+ */
+@Retention(RUNTIME)
+@Target({ TYPE, METHOD, FIELD, PARAMETER })
+public @interface LdapLocalReplica {
+
+    /**
+     * Whether callers and groups are kept in memory.
+     * 
+     * @return true if the local replica is enabled, false otherwise
+     */
+    boolean enabled() default false;
+
+    /**
+     * Whether the local replica is kept up to date via the persistent search control. When the
+     * server doesn't support persistent searches, changes are only picked up by the periodic
+     * reload.
+     * 
+     * @return true if persistent searches are used, false otherwise
+     */
+    boolean persistentSearch() default true;
+
+    /**
+     * Time in milliseconds after which all callers and groups are loaded again. This also picks
+     * up changes that a persistent search missed, and all changes when the server doesn't support
+     * persistent searches. A value of 0 means the replica is only loaded once.
+     * 
+     * @return the reload interval in milliseconds
+     */
+    int reloadInterval() default 900000;
+
+    /**
+     * Number of entries that is requested per page while loading callers and groups.
+     * 
+     * @return the page size
+     */
+    int pageSize() default 500;
+
+}
@@ -0,0 +1,611 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015-2017 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://oss.oracle.com/licenses/CDDL+GPL-1.1
+ * or LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.soteria.identitystores.hash;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.CompletableFuture.allOf;
+import static java.util.concurrent.CompletableFuture.runAsync;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * PBKDF2 (RFC 8018) with HMAC-SHA-224, -256, -384 and -512, giving the same results as the
+ * <code>PBKDF2WithHmacSHA*</code> algorithms of the JCE.
+ * <p>
+ * The HMAC key is the password, which is the same for all iterations. So the SHA-2 states after
+ * hashing the inner and outer padded key blocks are computed once, and every iteration only hashes
+ * the single block holding the previous result, on each of these states. The iterations work on
+ * the words of the SHA-2 state directly, and don't allocate.
+ *
+ */
+final class Pbkdf2Engine {
+
+    private Pbkdf2Engine() {
+    }
+
+    /**
+     * Derives a key from the given password.
+     * 
+     * @param algorithm one of <code>PBKDF2WithHmacSHA224</code>, <code>PBKDF2WithHmacSHA256</code>,
+     * <code>PBKDF2WithHmacSHA384</code> or <code>PBKDF2WithHmacSHA512</code>
+     * @param password the password, which is encoded as UTF-8 like the JCE does
+     * @param salt the salt
+     * @param iterations the number of iterations
+     * @param keySizeBytes the size of the derived key in bytes
+     * @return the derived key
+     * @throws IllegalArgumentException if the algorithm isn't supported, or a parameter is invalid
+     */
+    static byte[] derive(String algorithm, char[] password, byte[] salt, int iterations, int keySizeBytes) {
+        return derive(algorithm, password, salt, iterations, keySizeBytes, null);
+    }
+
+    /**
+     * Derives a key from the given password. When the key is larger than the output of the
+     * HMAC, the blocks of the key are independent of each other, and all but the first are
+     * derived on the given executor while the calling thread derives the first.
+     * 
+     * @param algorithm one of <code>PBKDF2WithHmacSHA224</code>, <code>PBKDF2WithHmacSHA256</code>,
+     * <code>PBKDF2WithHmacSHA384</code> or <code>PBKDF2WithHmacSHA512</code>
+     * @param password the password, which is encoded as UTF-8 like the JCE does
+     * @param salt the salt
+     * @param iterations the number of iterations
+     * @param keySizeBytes the size of the derived key in bytes
+     * @param executor the executor to derive blocks on, or null to derive all blocks on the calling thread
+     * @return the derived key
+     * @throws IllegalArgumentException if the algorithm isn't supported, or a parameter is invalid
+     */
+    static byte[] derive(String algorithm, char[] password, byte[] salt, int iterations, int keySizeBytes, Executor executor) {
+        if (salt.length == 0) {
+            throw new IllegalArgumentException("The salt must be non-empty");
+        }
+        if (iterations <= 0) {
+            throw new IllegalArgumentException("Invalid iteration count: " + iterations);
+        }
+        if (keySizeBytes <= 0) {
+            throw new IllegalArgumentException("Invalid key size: " + keySizeBytes);
+        }
+
+        Hmac hmac = createHmac(algorithm, password);
+        byte[] derivedKey = new byte[keySizeBytes];
+        int blocks = (keySizeBytes + hmac.digestSize - 1) / hmac.digestSize;
+
+        if (executor == null || blocks == 1) {
+            for (int blockIndex = 1; blockIndex <= blocks; blockIndex++) {
+                hmac.deriveBlock(salt, iterations, blockIndex, derivedKey);
+            }
+            return derivedKey;
+        }
+
+        // Each block gets its own copy of the precomputed states, the blocks write to distinct parts of the key
+        CompletableFuture<?>[] otherBlocks = new CompletableFuture<?>[blocks - 1];
+        for (int blockIndex = 2; blockIndex <= blocks; blockIndex++) {
+            Hmac blockHmac = hmac.copy();
+            int index = blockIndex;
+            otherBlocks[blockIndex - 2] = runAsync(() -> blockHmac.deriveBlock(salt, iterations, index, derivedKey), executor);
+        }
+
+        hmac.deriveBlock(salt, iterations, 1, derivedKey);
+
+        try {
+            allOf(otherBlocks).join();
+        }
+        catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+
+        return derivedKey;
+    }
+
+    private static Hmac createHmac(String algorithm, char[] password) {
+        byte[] key = getPasswordBytes(password);
+        try {
+            switch (algorithm) {
+                case "PBKDF2WithHmacSHA224":
+                    return new Sha256Hmac(key, Sha256Hmac.IV_224, 28, "SHA-224");
+                case "PBKDF2WithHmacSHA256":
+                    return new Sha256Hmac(key, Sha256Hmac.IV_256, 32, "SHA-256");
+                case "PBKDF2WithHmacSHA384":
+                    return new Sha512Hmac(key, Sha512Hmac.IV_384, 48, "SHA-384");
+                case "PBKDF2WithHmacSHA512":
+                    return new Sha512Hmac(key, Sha512Hmac.IV_512, 64, "SHA-512");
+                default:
+                    throw new IllegalArgumentException("Unsupported algorithm: " + algorithm);
+            }
+        }
+        finally {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    private static byte[] getPasswordBytes(char[] password) {
+        ByteBuffer buffer = UTF_8.encode(CharBuffer.wrap(password));
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        if (buffer.hasArray()) {
+            Arrays.fill(buffer.array(), (byte) 0);
+        }
+        return bytes;
+    }
+
+    private static byte[] prepareKey(byte[] key, int blockSize, String digestAlgorithm) {
+        byte[] hashedKey = key;
+        if (key.length > blockSize) {
+            try {
+                hashedKey = MessageDigest.getInstance(digestAlgorithm).digest(key);
+            }
+            catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return Arrays.copyOf(hashedKey, blockSize);
+    }
+
+    private static byte[] saltWithBlockIndex(byte[] salt, int blockIndex) {
+        byte[] message = Arrays.copyOf(salt, salt.length + 4);
+        message[salt.length] = (byte) (blockIndex >>> 24);
+        message[salt.length + 1] = (byte) (blockIndex >>> 16);
+        message[salt.length + 2] = (byte) (blockIndex >>> 8);
+        message[salt.length + 3] = (byte) blockIndex;
+        return message;
+    }
+
+    /**
+     * HMAC keyed with the password, computing the blocks of the derived key.
+     */
+    private abstract static class Hmac {
+
+        final int digestSize;
+
+        Hmac(int digestSize) {
+            this.digestSize = digestSize;
+        }
+
+        /**
+         * Computes block T_i of the derived key, and puts it at its place in the derived key.
+         */
+        abstract void deriveBlock(byte[] salt, int iterations, int blockIndex, byte[] derivedKey);
+
+        /**
+         * Returns an HMAC with the same key, that can be used on another thread.
+         */
+        abstract Hmac copy();
+    }
+
+    /**
+     * HMAC with SHA-224 or SHA-256, which share the compression function on 32-bit words.
+     */
+    private static final class Sha256Hmac extends Hmac {
+
+        private static final int[] IV_224 = {
+            0xc1059ed8, 0x367cd507, 0x3070dd17, 0xf70e5939,
+            0xffc00b31, 0x68581511, 0x64f98fa7, 0xbefa4fa4
+        };
+
+        private static final int[] IV_256 = {
+            0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a,
+            0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+        };
+
+        private static final int[] K_256 = {
+            0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+            0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+            0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+            0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+            0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+            0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+            0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+            0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+        };
+
+        private static final int BLOCK_SIZE = 64;
+
+        private final int digestWords;
+
+        private final int[] innerState = new int[8];
+        private final int[] outerState = new int[8];
+        private final int[] block = new int[16];
+        private final int[] schedule = new int[64];
+
+        Sha256Hmac(byte[] key, int[] iv, int digestSize, String digestAlgorithm) {
+            super(digestSize);
+            this.digestWords = digestSize / 4;
+
+            byte[] paddedKey = prepareKey(key, BLOCK_SIZE, digestAlgorithm);
+            try {
+                initState(paddedKey, (byte) 0x36, iv, innerState);
+                initState(paddedKey, (byte) 0x5c, iv, outerState);
+            }
+            finally {
+                Arrays.fill(paddedKey, (byte) 0);
+                Arrays.fill(block, 0);
+            }
+        }
+
+        private Sha256Hmac(Sha256Hmac hmac) {
+            super(hmac.digestSize);
+            this.digestWords = hmac.digestWords;
+            System.arraycopy(hmac.innerState, 0, innerState, 0, 8);
+            System.arraycopy(hmac.outerState, 0, outerState, 0, 8);
+        }
+
+        @Override
+        Hmac copy() {
+            return new Sha256Hmac(this);
+        }
+
+        @Override
+        void deriveBlock(byte[] salt, int iterations, int blockIndex, byte[] derivedKey) {
+            int[] u = new int[8];
+            int[] t = new int[8];
+
+            hmac(saltWithBlockIndex(salt, blockIndex), u);
+            System.arraycopy(u, 0, t, 0, digestWords);
+
+            for (int i = 1; i < iterations; i++) {
+                hmacOfDigest(u);
+                for (int j = 0; j < digestWords; j++) {
+                    t[j] ^= u[j];
+                }
+            }
+
+            int offset = (blockIndex - 1) * digestSize;
+            for (int i = 0; i < digestSize && offset + i < derivedKey.length; i++) {
+                derivedKey[offset + i] = (byte) (t[i >>> 2] >>> (24 - 8 * (i & 3)));
+            }
+        }
+
+        private void initState(byte[] paddedKey, byte pad, int[] iv, int[] state) {
+            for (int i = 0; i < 16; i++) {
+                block[i] = ((paddedKey[4 * i] ^ pad) & 0xff) << 24 |
+                           ((paddedKey[4 * i + 1] ^ pad) & 0xff) << 16 |
+                           ((paddedKey[4 * i + 2] ^ pad) & 0xff) << 8 |
+                           ((paddedKey[4 * i + 3] ^ pad) & 0xff);
+            }
+            compress(iv, state);
+        }
+
+        /**
+         * Computes the HMAC of a message of any length.
+         */
+        private void hmac(byte[] message, int[] result) {
+            int paddedLength = (message.length + 9 + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+            byte[] padded = Arrays.copyOf(message, paddedLength);
+            padded[message.length] = (byte) 0x80;
+            long bitLength = (BLOCK_SIZE + message.length) * 8L;
+            for (int i = 0; i < 8; i++) {
+                padded[paddedLength - 1 - i] = (byte) (bitLength >>> (8 * i));
+            }
+
+            System.arraycopy(innerState, 0, result, 0, 8);
+            for (int offset = 0; offset < paddedLength; offset += BLOCK_SIZE) {
+                for (int i = 0; i < 16; i++) {
+                    int index = offset + 4 * i;
+                    block[i] = (padded[index] & 0xff) << 24 | (padded[index + 1] & 0xff) << 16 |
+                               (padded[index + 2] & 0xff) << 8 | (padded[index + 3] & 0xff);
+                }
+                compress(result, result);
+            }
+
+            digestBlock(result);
+            compress(outerState, result);
+        }
+
+        /**
+         * Replaces the given HMAC result by the HMAC of that result, which takes a single
+         * block on both the inner and the outer state.
+         */
+        private void hmacOfDigest(int[] digest) {
+            digestBlock(digest);
+            compress(innerState, digest);
+            digestBlock(digest);
+            compress(outerState, digest);
+        }
+
+        private void digestBlock(int[] digest) {
+            System.arraycopy(digest, 0, block, 0, digestWords);
+            block[digestWords] = 0x80000000;
+            for (int i = digestWords + 1; i < 15; i++) {
+                block[i] = 0;
+            }
+            block[15] = (BLOCK_SIZE + digestSize) * 8;
+        }
+
+        /**
+         * Runs the compression function on the current block, starting from the given state.
+         * The input and output state may be the same array.
+         */
+        private void compress(int[] state, int[] result) {
+            int[] w = schedule;
+            System.arraycopy(block, 0, w, 0, 16);
+            for (int i = 16; i < 64; i++) {
+                int s0 = Integer.rotateRight(w[i - 15], 7) ^ Integer.rotateRight(w[i - 15], 18) ^ (w[i - 15] >>> 3);
+                int s1 = Integer.rotateRight(w[i - 2], 17) ^ Integer.rotateRight(w[i - 2], 19) ^ (w[i - 2] >>> 10);
+                w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+            }
+
+            int a = state[0];
+            int b = state[1];
+            int c = state[2];
+            int d = state[3];
+            int e = state[4];
+            int f = state[5];
+            int g = state[6];
+            int h = state[7];
+
+            for (int i = 0; i < 64; i++) {
+                int t1 = h + (Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25)) +
+                         ((e & f) ^ (~e & g)) + K_256[i] + w[i];
+                int t2 = (Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22)) +
+                         ((a & b) ^ (a & c) ^ (b & c));
+                h = g;
+                g = f;
+                f = e;
+                e = d + t1;
+                d = c;
+                c = b;
+                b = a;
+                a = t1 + t2;
+            }
+
+            result[0] = state[0] + a;
+            result[1] = state[1] + b;
+            result[2] = state[2] + c;
+            result[3] = state[3] + d;
+            result[4] = state[4] + e;
+            result[5] = state[5] + f;
+            result[6] = state[6] + g;
+            result[7] = state[7] + h;
+        }
+    }
+
+    /**
+     * HMAC with SHA-384 or SHA-512, which share the compression function on 64-bit words.
+     */
+    private static final class Sha512Hmac extends Hmac {
+
+        private static final long[] IV_384 = {
+            0xcbbb9d5dc1059ed8L, 0x629a292a367cd507L, 0x9159015a3070dd17L, 0x152fecd8f70e5939L,
+            0x67332667ffc00b31L, 0x8eb44a8768581511L, 0xdb0c2e0d64f98fa7L, 0x47b5481dbefa4fa4L
+        };
+
+        private static final long[] IV_512 = {
+            0x6a09e667f3bcc908L, 0xbb67ae8584caa73bL, 0x3c6ef372fe94f82bL, 0xa54ff53a5f1d36f1L,
+            0x510e527fade682d1L, 0x9b05688c2b3e6c1fL, 0x1f83d9abfb41bd6bL, 0x5be0cd19137e2179L
+        };
+
+        private static final long[] K_512 = {
+            0x428a2f98d728ae22L, 0x7137449123ef65cdL, 0xb5c0fbcfec4d3b2fL, 0xe9b5dba58189dbbcL,
+            0x3956c25bf348b538L, 0x59f111f1b605d019L, 0x923f82a4af194f9bL, 0xab1c5ed5da6d8118L,
+            0xd807aa98a3030242L, 0x12835b0145706fbeL, 0x243185be4ee4b28cL, 0x550c7dc3d5ffb4e2L,
+            0x72be5d74f27b896fL, 0x80deb1fe3b1696b1L, 0x9bdc06a725c71235L, 0xc19bf174cf692694L,
+            0xe49b69c19ef14ad2L, 0xefbe4786384f25e3L, 0x0fc19dc68b8cd5b5L, 0x240ca1cc77ac9c65L,
+            0x2de92c6f592b0275L, 0x4a7484aa6ea6e483L, 0x5cb0a9dcbd41fbd4L, 0x76f988da831153b5L,
+            0x983e5152ee66dfabL, 0xa831c66d2db43210L, 0xb00327c898fb213fL, 0xbf597fc7beef0ee4L,
+            0xc6e00bf33da88fc2L, 0xd5a79147930aa725L, 0x06ca6351e003826fL, 0x142929670a0e6e70L,
+            0x27b70a8546d22ffcL, 0x2e1b21385c26c926L, 0x4d2c6dfc5ac42aedL, 0x53380d139d95b3dfL,
+            0x650a73548baf63deL, 0x766a0abb3c77b2a8L, 0x81c2c92e47edaee6L, 0x92722c851482353bL,
+            0xa2bfe8a14cf10364L, 0xa81a664bbc423001L, 0xc24b8b70d0f89791L, 0xc76c51a30654be30L,
+            0xd192e819d6ef5218L, 0xd69906245565a910L, 0xf40e35855771202aL, 0x106aa07032bbd1b8L,
+            0x19a4c116b8d2d0c8L, 0x1e376c085141ab53L, 0x2748774cdf8eeb99L, 0x34b0bcb5e19b48a8L,
+            0x391c0cb3c5c95a63L, 0x4ed8aa4ae3418acbL, 0x5b9cca4f7763e373L, 0x682e6ff3d6b2b8a3L,
+            0x748f82ee5defb2fcL, 0x78a5636f43172f60L, 0x84c87814a1f0ab72L, 0x8cc702081a6439ecL,
+            0x90befffa23631e28L, 0xa4506cebde82bde9L, 0xbef9a3f7b2c67915L, 0xc67178f2e372532bL,
+            0xca273eceea26619cL, 0xd186b8c721c0c207L, 0xeada7dd6cde0eb1eL, 0xf57d4f7fee6ed178L,
+            0x06f067aa72176fbaL, 0x0a637dc5a2c898a6L, 0x113f9804bef90daeL, 0x1b710b35131c471bL,
+            0x28db77f523047d84L, 0x32caab7b40c72493L, 0x3c9ebe0a15c9bebcL, 0x431d67c49c100d4cL,
+            0x4cc5d4becb3e42b6L, 0x597f299cfc657e2aL, 0x5fcb6fab3ad6faecL, 0x6c44198c4a475817L
+        };
+
+        private static final int BLOCK_SIZE = 128;
+
+        private final int digestWords;
+
+        private final long[] innerState = new long[8];
+        private final long[] outerState = new long[8];
+        private final long[] block = new long[16];
+        private final long[] schedule = new long[80];
+
+        Sha512Hmac(byte[] key, long[] iv, int digestSize, String digestAlgorithm) {
+            super(digestSize);
+            this.digestWords = digestSize / 8;
+
+            byte[] paddedKey = prepareKey(key, BLOCK_SIZE, digestAlgorithm);
+            try {
+                initState(paddedKey, (byte) 0x36, iv, innerState);
+                initState(paddedKey, (byte) 0x5c, iv, outerState);
+            }
+            finally {
+                Arrays.fill(paddedKey, (byte) 0);
+                Arrays.fill(block, 0);
+            }
+        }
+
+        private Sha512Hmac(Sha512Hmac hmac) {
+            super(hmac.digestSize);
+            this.digestWords = hmac.digestWords;
+            System.arraycopy(hmac.innerState, 0, innerState, 0, 8);
+            System.arraycopy(hmac.outerState, 0, outerState, 0, 8);
+        }
+
+        @Override
+        Hmac copy() {
+            return new Sha512Hmac(this);
+        }
+
+        @Override
+        void deriveBlock(byte[] salt, int iterations, int blockIndex, byte[] derivedKey) {
+            long[] u = new long[8];
+            long[] t = new long[8];
+
+            hmac(saltWithBlockIndex(salt, blockIndex), u);
+            System.arraycopy(u, 0, t, 0, digestWords);
+
+            for (int i = 1; i < iterations; i++) {
+                hmacOfDigest(u);
+                for (int j = 0; j < digestWords; j++) {
+                    t[j] ^= u[j];
+                }
+            }
+
+            int offset = (blockIndex - 1) * digestSize;
+            for (int i = 0; i < digestSize && offset + i < derivedKey.length; i++) {
+                derivedKey[offset + i] = (byte) (t[i >>> 3] >>> (56 - 8 * (i & 7)));
+            }
+        }
+
+        private void initState(byte[] paddedKey, byte pad, long[] iv, long[] state) {
+            for (int i = 0; i < 16; i++) {
+                long word = 0;
+                for (int j = 0; j < 8; j++) {
+                    word = word << 8 | ((paddedKey[8 * i + j] ^ pad) & 0xff);
+                }
+                block[i] = word;
+            }
+            compress(iv, state);
+        }
+
+        /**
+         * Computes the HMAC of a message of any length.
+         */
+        private void hmac(byte[] message, long[] result) {
+            int paddedLength = (message.length + 17 + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+            byte[] padded = Arrays.copyOf(message, paddedLength);
+            padded[message.length] = (byte) 0x80;
+            long bitLength = (BLOCK_SIZE + message.length) * 8L;
+            for (int i = 0; i < 8; i++) {
+                padded[paddedLength - 1 - i] = (byte) (bitLength >>> (8 * i));
+            }
+
+            System.arraycopy(innerState, 0, result, 0, 8);
+            for (int offset = 0; offset < paddedLength; offset += BLOCK_SIZE) {
+                for (int i = 0; i < 16; i++) {
+                    long word = 0;
+                    for (int j = 0; j < 8; j++) {
+                        word = word << 8 | (padded[offset + 8 * i + j] & 0xff);
+                    }
+                    block[i] = word;
+                }
+                compress(result, result);
+            }
+
+            digestBlock(result);
+            compress(outerState, result);
+        }
+
+        /**
+         * Replaces the given HMAC result by the HMAC of that result, which takes a single
+         * block on both the inner and the outer state.
+         */
+        private void hmacOfDigest(long[] digest) {
+            digestBlock(digest);
+            compress(innerState, digest);
+            digestBlock(digest);
+            compress(outerState, digest);
+        }
+
+        private void digestBlock(long[] digest) {
+            System.arraycopy(digest, 0, block, 0, digestWords);
+            block[digestWords] = 0x8000000000000000L;
+            for (int i = digestWords + 1; i < 15; i++) {
+                block[i] = 0;
+            }
+            block[15] = (BLOCK_SIZE + digestSize) * 8;
+        }
+
+        /**
+         * Runs the compression function on the current block, starting from the given state.
+         * The input and output state may be the same array.
+         */
+        private void compress(long[] state, long[] result) {
+            long[] w = schedule;
+            System.arraycopy(block, 0, w, 0, 16);
+            for (int i = 16; i < 80; i++) {
+                long s0 = Long.rotateRight(w[i - 15], 1) ^ Long.rotateRight(w[i - 15], 8) ^ (w[i - 15] >>> 7);
+                long s1 = Long.rotateRight(w[i - 2], 19) ^ Long.rotateRight(w[i - 2], 61) ^ (w[i - 2] >>> 6);
+                w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+            }
+
+            long a = state[0];
+            long b = state[1];
+            long c = state[2];
+            long d = state[3];
+            long e = state[4];
+            long f = state[5];
+            long g = state[6];
+            long h = state[7];
+
+            for (int i = 0; i < 80; i++) {
+                long t1 = h + (Long.rotateRight(e, 14) ^ Long.rotateRight(e, 18) ^ Long.rotateRight(e, 41)) +
+                          ((e & f) ^ (~e & g)) + K_512[i] + w[i];
+                long t2 = (Long.rotateRight(a, 28) ^ Long.rotateRight(a, 34) ^ Long.rotateRight(a, 39)) +
+                          ((a & b) ^ (a & c) ^ (b & c));
+                h = g;
+                g = f;
+                f = e;
+                e = d + t1;
+                d = c;
+                c = b;
+                b = a;
+                a = t1 + t2;
+            }
+
+            result[0] = state[0] + a;
+            result[1] = state[1] + b;
+            result[2] = state[2] + c;
+            result[3] = state[3] + d;
+            result[4] = state[4] + e;
+            result[5] = state[5] + f;
+            result[6] = state[6] + g;
+            result[7] = state[7] + h;
+        }
+    }
+
+}
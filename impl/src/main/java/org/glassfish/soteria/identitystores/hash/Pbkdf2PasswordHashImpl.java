@@ -45,10 +45,17 @@ import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
 import static java.util.Arrays.asList;
 import java.util.Base64;
+import static java.util.Collections.synchronizedMap;
 import static java.util.Collections.unmodifiableSet;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
@@ -67,10 +74,15 @@ public class Pbkdf2PasswordHashImpl implements Pbkdf2PasswordHash {
 
     private static final String DEFAULT_ALGORITHM = "PBKDF2WithHmacSHA256";
 
+    private static final String ENGINE_JCE      = "JCE";       // PBKDF2 of the JCE provider
+    private static final String ENGINE_INTERNAL = "Internal";  // Pbkdf2Engine, with precomputed HMAC states
+
     private static final int DEFAULT_ITERATIONS = 2048;
     private static final int DEFAULT_SALT_SIZE  = 32;         // 32-byte/256-bit salt
     private static final int DEFAULT_KEY_SIZE   = 32;         // 32-byte/256-bit key/hash
 
+    private static final int DEFAULT_PARSED_HASH_CACHE_SIZE = 1000;
+
     private static final int MIN_ITERATIONS = 1024;
     private static final int MIN_SALT_SIZE  = 16;             // 16-byte/128-bit minimum salt
     private static final int MIN_KEY_SIZE   = 16;             // 16-byte/128-bit minimum key/hash
@@ -79,12 +91,20 @@ public class Pbkdf2PasswordHashImpl implements Pbkdf2PasswordHash {
     private static final String PROPERTY_ITERATIONS = "Pbkdf2PasswordHash.Iterations";
     private static final String PROPERTY_SALTSIZE   = "Pbkdf2PasswordHash.SaltSizeBytes";
     private static final String PROPERTY_KEYSIZE    = "Pbkdf2PasswordHash.KeySizeBytes";
+    private static final String PROPERTY_ENGINE     = "Pbkdf2PasswordHash.Engine";
+    private static final String PROPERTY_PARALLEL_BLOCKS = "Pbkdf2PasswordHash.ParallelBlocks";
+    private static final String PROPERTY_PARSED_HASH_CACHE_SIZE = "Pbkdf2PasswordHash.ParsedHashCacheSize";
 
     private String configuredAlgorithm  = DEFAULT_ALGORITHM;   // PBKDF2 algorithm to use
     private int configuredIterations    = DEFAULT_ITERATIONS;  // number of iterations
     private int configuredSaltSizeBytes = DEFAULT_SALT_SIZE;   // salt size in bytes
     private int configuredKeySizeBytes  = DEFAULT_KEY_SIZE;    // derived key (i.e., password hash) size in bytes
+    private boolean internalEngine      = false;               // whether Pbkdf2Engine is used instead of the JCE
+    private boolean parallelBlocks      = false;               // whether key blocks are derived concurrently
     
+    // Decoded stored hashes, so that verifying the same caller again doesn't decode the stored hash again
+    private Map<String, EncodedPasswordHash> parsedHashes = newParsedHashCache(DEFAULT_PARSED_HASH_CACHE_SIZE);
+
     private final SecureRandom random = new SecureRandom();
 
     @Override
@@ -129,10 +149,45 @@ public class Pbkdf2PasswordHashImpl implements Pbkdf2PasswordHash {
                     throw new IllegalArgumentException("Bad KeySizeBytes parameter: " + entry.getValue());
                 }
             }
+            else if (entry.getKey().equals(PROPERTY_ENGINE)) {
+                if (entry.getValue().equals(ENGINE_INTERNAL)) {
+                    internalEngine = true;
+                }
+                else if (entry.getValue().equals(ENGINE_JCE)) {
+                    internalEngine = false;
+                }
+                else {
+                    throw new IllegalArgumentException("Bad Engine parameter: " + entry.getValue());
+                }
+            }
+            else if (entry.getKey().equals(PROPERTY_PARALLEL_BLOCKS)) {
+                if (!entry.getValue().equals("true") && !entry.getValue().equals("false")) {
+                    throw new IllegalArgumentException("Bad ParallelBlocks parameter: " + entry.getValue());
+                }
+                parallelBlocks = Boolean.parseBoolean(entry.getValue());
+            }
+            else if (entry.getKey().equals(PROPERTY_PARSED_HASH_CACHE_SIZE)) {
+                int parsedHashCacheSize;
+                try {
+                    parsedHashCacheSize = Integer.parseInt(entry.getValue());
+                }
+                catch (Exception e) {
+                    throw new IllegalArgumentException("Bad ParsedHashCacheSize parameter: " + entry.getValue());
+                }
+                if (parsedHashCacheSize < 0) {
+                    throw new IllegalArgumentException("Bad ParsedHashCacheSize parameter: " + entry.getValue());
+                }
+                parsedHashes = parsedHashCacheSize > 0 ? newParsedHashCache(parsedHashCacheSize) : null;
+            }
             else {
                 throw new IllegalArgumentException("Unrecognized parameter for Pbkdf2PasswordHash");
             }
         }
+
+        // The JCE derives the key as a whole, so only the internal engine can derive blocks concurrently
+        if (parallelBlocks && !internalEngine) {
+            throw new IllegalArgumentException("ParallelBlocks parameter requires the " + ENGINE_INTERNAL + " Engine");
+        }
     }
 
     @Override
@@ -144,7 +199,13 @@ public class Pbkdf2PasswordHashImpl implements Pbkdf2PasswordHash {
 
     @Override
     public boolean verify(char[] password, String hashedPassword) {
-        EncodedPasswordHash encodedPasswordHash = new EncodedPasswordHash(hashedPassword);
+        EncodedPasswordHash encodedPasswordHash = parsedHashes != null ? parsedHashes.get(hashedPassword) : null;
+        if (encodedPasswordHash == null) {
+            encodedPasswordHash = new EncodedPasswordHash(hashedPassword);
+            if (parsedHashes != null) {
+                parsedHashes.put(hashedPassword, encodedPasswordHash);
+            }
+        }
         byte[] hashToVerify = pbkdf2(
                 password,
                 encodedPasswordHash.getSalt(),
@@ -155,6 +216,10 @@ public class Pbkdf2PasswordHashImpl implements Pbkdf2PasswordHash {
     }
 
     private byte[] pbkdf2(char[] password, byte[] salt, String algorithm, int iterations, int keySizeBytes) {
+        if (internalEngine) {
+            return Pbkdf2Engine.derive(algorithm, password, salt, iterations, keySizeBytes, parallelBlocks ? BlockExecutor.INSTANCE : null);
+        }
+
         try {
             return SecretKeyFactory.getInstance(algorithm).generateSecret(
                     new PBEKeySpec(password, salt, iterations, keySizeBytes * 8)).getEncoded();
@@ -163,6 +228,43 @@ public class Pbkdf2PasswordHashImpl implements Pbkdf2PasswordHash {
         }
     }
 
+    private static Map<String, EncodedPasswordHash> newParsedHashCache(int maxSize) {
+        // A decoded hash never changes, so the least recently used one is only dropped to bound the size
+        return synchronizedMap(new LinkedHashMap<String, EncodedPasswordHash>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, EncodedPasswordHash> eldest) {
+                return size() > maxSize;
+            }
+        });
+    }
+
+    /**
+     * The threads that derive key blocks in parallel, shared by all instances and started on first use.
+     * Both the threads and the queue are bounded. When they're all taken, the calling thread derives
+     * the block itself, so that hashing neither queues up without bound nor waits for threads of other
+     * work, as it would on the common fork join pool.
+     */
+    private static final class BlockExecutor {
+
+        static final Executor INSTANCE = create();
+
+        private static Executor create() {
+            int threads = Runtime.getRuntime().availableProcessors();
+            AtomicInteger threadNumber = new AtomicInteger();
+
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, SECONDS, new ArrayBlockingQueue<>(threads * 4), runnable -> {
+                Thread thread = new Thread(runnable, "PBKDF2 block " + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+    }
+
     private synchronized byte[] getRandomSalt(byte[] salt) {
         random.nextBytes(salt);
         return salt;
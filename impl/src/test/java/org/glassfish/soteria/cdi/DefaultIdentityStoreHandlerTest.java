@@ -0,0 +1,125 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015-2017 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://oss.oracle.com/licenses/CDDL+GPL-1.1
+ * or LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.soteria.cdi;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singleton;
+import static javax.security.enterprise.identitystore.IdentityStore.ValidationType.PROVIDE_GROUPS;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.security.enterprise.identitystore.CredentialValidationResult;
+import javax.security.enterprise.identitystore.IdentityStore;
+
+import org.glassfish.soteria.identitystores.BulkGroupsIdentityStore;
+import org.glassfish.soteria.identitystores.EmbeddedIdentityStore;
+import org.glassfish.soteria.identitystores.annotation.Credentials;
+import org.glassfish.soteria.identitystores.annotation.EmbeddedIdentityStoreDefinition;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DefaultIdentityStoreHandlerTest {
+
+    @EmbeddedIdentityStoreDefinition({
+        @Credentials(callerName = "reza", password = "secret1", groups = { "foo", "bar" }),
+        @Credentials(callerName = "alex", password = "secret2", groups = { "foo" })
+    })
+    private static final class Store {
+    }
+
+    /**
+     * A store that, like a database comparing names ignoring case, returns groups for a caller
+     * name that wasn't asked for, and no set at all for another caller.
+     */
+    private static final class IgnoringCaseStore implements BulkGroupsIdentityStore {
+
+        @Override
+        public Map<String, Set<String>> getCallerGroups(Collection<String> callerNames) {
+            Map<String, Set<String>> groups = new HashMap<>();
+            groups.put("reza", new HashSet<>(asList("qux")));
+            groups.put("REZA", new HashSet<>(asList("quux")));
+            groups.put("alex", null);
+            return groups;
+        }
+
+        @Override
+        public Set<ValidationType> validationTypes() {
+            return singleton(PROVIDE_GROUPS);
+        }
+    }
+
+    /**
+     * A store that can only look up the groups of one caller at a time.
+     */
+    private static final class SingleCallerStore implements IdentityStore {
+
+        @Override
+        public Set<String> getCallerGroups(CredentialValidationResult validationResult) {
+            return singleton("member-" + validationResult.getCallerPrincipal().getName());
+        }
+
+        @Override
+        public Set<ValidationType> validationTypes() {
+            return singleton(PROVIDE_GROUPS);
+        }
+    }
+
+    @Test
+    public void getCallerGroups_mergesStores() {
+        DefaultIdentityStoreHandler handler = new DefaultIdentityStoreHandler();
+        handler.init(asList(
+            new EmbeddedIdentityStore(Store.class.getAnnotation(EmbeddedIdentityStoreDefinition.class)),
+            new IgnoringCaseStore(),
+            new SingleCallerStore()));
+
+        Map<String, Set<String>> groups = handler.getCallerGroups(asList("reza", "alex", "romo"));
+
+        Assert.assertEquals(3, groups.size());
+        Assert.assertEquals(new HashSet<>(asList("foo", "bar", "qux", "member-reza")), groups.get("reza"));
+        Assert.assertEquals(new HashSet<>(asList("foo", "member-alex")), groups.get("alex"));
+        Assert.assertEquals(new HashSet<>(asList("member-romo")), groups.get("romo"));
+    }
+
+}
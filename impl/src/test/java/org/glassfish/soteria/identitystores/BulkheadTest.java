@@ -0,0 +1,107 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015-2017 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://oss.oracle.com/licenses/CDDL+GPL-1.1
+ * or LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.soteria.identitystores;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BulkheadTest {
+
+    @Test
+    public void execute() {
+        Bulkhead bulkhead = new Bulkhead(1, 0, "test");
+
+        Assert.assertEquals("result", bulkhead.execute(() -> "result"));
+        Assert.assertEquals("result", bulkhead.execute(() -> "result"));
+        Assert.assertEquals(0, bulkhead.getInFlightCount());
+        Assert.assertEquals(0, bulkhead.getRejectedCount());
+    }
+
+    @Test
+    public void execute_rejectsWhenSaturated() throws InterruptedException {
+        Bulkhead bulkhead = new Bulkhead(1, 50, "test");
+
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread thread = new Thread(() -> bulkhead.execute(() -> {
+            started.countDown();
+            try {
+                return release.await(10, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                return false;
+            }
+        }));
+        thread.start();
+        try {
+            started.await();
+            Assert.assertEquals(1, bulkhead.getInFlightCount());
+
+            try {
+                bulkhead.execute(() -> "result");
+                Assert.fail("Expected rejection");
+            }
+            catch (IdentityStoreUnavailableException e) {
+                // Expected
+            }
+            Assert.assertEquals(1, bulkhead.getRejectedCount());
+        }
+        finally {
+            release.countDown();
+            thread.join();
+        }
+
+        Assert.assertEquals("result", bulkhead.execute(() -> "result"));
+        Assert.assertEquals(0, bulkhead.getInFlightCount());
+    }
+
+    @Test
+    public void execute_unlimited() {
+        Bulkhead bulkhead = new Bulkhead(0, 0, "test");
+
+        Assert.assertEquals("result", bulkhead.execute(() -> bulkhead.execute(() -> "result")));
+        Assert.assertEquals(0, bulkhead.getRejectedCount());
+    }
+
+}
@@ -0,0 +1,762 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015-2017 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://oss.oracle.com/licenses/CDDL+GPL-1.1
+ * or LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.soteria.identitystores;
+
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static javax.security.enterprise.identitystore.CredentialValidationResult.Status.INVALID;
+import static javax.security.enterprise.identitystore.CredentialValidationResult.Status.NOT_VALIDATED;
+import static javax.security.enterprise.identitystore.CredentialValidationResult.Status.VALID;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.enterprise.credential.UsernamePasswordCredential;
+import javax.security.enterprise.identitystore.CredentialValidationResult;
+import javax.security.enterprise.identitystore.DatabaseIdentityStoreDefinition;
+import javax.security.enterprise.identitystore.PasswordHash;
+import javax.sql.DataSource;
+
+import org.glassfish.soteria.identitystores.annotation.CachePolicy;
+import org.glassfish.soteria.identitystores.annotation.DatabaseIdentityStoreOptions;
+import org.glassfish.soteria.identitystores.annotation.DatabaseReplicas;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the database identity store against stub data sources, which answer the queries
+ * of the store from memory and record how they're used.
+ *
+ */
+public class DatabaseIdentityStoreTest {
+
+    private static final String CALLER_QUERY = "select password from caller where name = ?";
+    private static final String GROUPS_QUERY = "select group_name from caller_groups where caller_name = ?";
+    private static final String BULK_GROUPS_QUERY = "select caller_name, group_name from caller_groups where caller_name in (?,?)";
+    private static final String CALLER_AND_GROUPS_QUERY =
+        "select c.password, g.group_name from caller c left join caller_groups g on g.caller_name = c.name where c.name = ?";
+
+    @DatabaseIdentityStoreDefinition(
+        dataSourceLookup = "primary",
+        callerQuery = CALLER_QUERY,
+        groupsQuery = GROUPS_QUERY
+    )
+    @DatabaseIdentityStoreOptions
+    private static final class Store {
+    }
+
+    @DatabaseIdentityStoreDefinition(
+        dataSourceLookup = "primary",
+        callerQuery = CALLER_QUERY,
+        groupsQuery = GROUPS_QUERY,
+        hashAlgorithmParameters = "Pbkdf2PasswordHash.ParallelBlocks=true"
+    )
+    private static final class ParallelBlocksStore {
+    }
+
+    @DatabaseIdentityStoreOptions(
+        hashingParallelism = 2
+    )
+    private static final class HashingPool {
+    }
+
+    @DatabaseIdentityStoreOptions(
+        eagerDataSourceLookup = true
+    )
+    private static final class EagerDataSourceLookup {
+    }
+
+    @DatabaseIdentityStoreOptions(
+        maxConcurrentQueries = 1,
+        groupsFetchSize = 50
+    )
+    private static final class SingleQuery {
+    }
+
+    @DatabaseIdentityStoreOptions(
+        callerAndGroupsQuery = CALLER_AND_GROUPS_QUERY,
+        groupCache = @CachePolicy(enabled = true)
+    )
+    private static final class CallerAndGroupsQuery {
+    }
+
+    @DatabaseIdentityStoreOptions(
+        bulkGroupsQuery = "select caller_name, group_name from caller_groups where caller_name in (?)",
+        bulkGroupsChunkSize = 2
+    )
+    private static final class BulkGroupsQuery {
+    }
+
+    @DatabaseIdentityStoreOptions(
+        bulkGroupsQuery = "select caller_name, group_name from caller_groups where caller_name in (%s)"
+    )
+    private static final class BulkGroupsQueryWithoutMarker {
+    }
+
+    @DatabaseIdentityStoreOptions(
+        replicas = @DatabaseReplicas(dataSourceLookups = "replica")
+    )
+    private static final class Replica {
+    }
+
+    @DatabaseIdentityStoreOptions(
+        queryTimeout = 5
+    )
+    private static final class QueryTimeout {
+    }
+
+    @DatabaseIdentityStoreOptions(
+        maxConcurrentQueries = 1,
+        maxQueryWait = 0
+    )
+    private static final class NoQueryWait {
+    }
+
+    @DatabaseIdentityStoreOptions(
+        groupCache = @CachePolicy(enabled = true)
+    )
+    private static final class CachedGroups {
+    }
+
+    @DatabaseIdentityStoreOptions(
+        bulkGroupsQuery = "select caller_name, group_name from caller_groups where caller_name in (?)",
+        bulkGroupsChunkSize = 2,
+        groupCache = @CachePolicy(enabled = true)
+    )
+    private static final class CachedBulkGroupsQuery {
+    }
+
+    private final Map<String, StubDatabase> databases = new HashMap<>();
+    private final List<String> lookups = new CopyOnWriteArrayList<>();
+    private final PlainTextHash passwordHash = new PlainTextHash();
+
+    @Test
+    public void validate() {
+        DatabaseIdentityStore identityStore = identityStore(Store.class, Store.class);
+
+        CredentialValidationResult result = identityStore.validate(new UsernamePasswordCredential("reza", "secret1"));
+
+        Assert.assertEquals(VALID, result.getStatus());
+        Assert.assertEquals("reza", result.getCallerPrincipal().getName());
+        Assert.assertEquals(new HashSet<>(asList("foo", "bar")), result.getCallerGroups());
+
+        Assert.assertEquals(INVALID, identityStore.validate(new UsernamePasswordCredential("reza", "wrongpassword")).getStatus());
+        Assert.assertEquals(INVALID, identityStore.validate(new UsernamePasswordCredential("romo", "secret1")).getStatus());
+
+        // Every connection has been given back
+        Assert.assertEquals(0, database("primary").openConnections.get());
+    }
+
+    @Test
+    public void validate_cachesDataSource() {
+        DatabaseIdentityStore identityStore = identityStore(Store.class, Store.class);
+
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(VALID, identityStore.validate(new UsernamePasswordCredential("reza", "secret1")).getStatus());
+        }
+
+        Assert.assertEquals(asList("primary"), lookups);
+    }
+
+    @Test
+    public void validate_eagerDataSourceLookup() {
+        DatabaseIdentityStore identityStore = identityStore(Store.class, EagerDataSourceLookup.class);
+
+        Assert.assertEquals(asList("primary"), lookups);
+        Assert.assertEquals(VALID, identityStore.validate(new UsernamePasswordCredential("reza", "secret1")).getStatus());
+        Assert.assertEquals(asList("primary"), lookups);
+    }
+
+    @Test
+    public void validate_looksUpDataSourceAgainAfterFailure() {
+        DatabaseIdentityStore identityStore = identityStore(Store.class, Store.class);
+
+        Assert.assertEquals(VALID, identityStore.validate(new UsernamePasswordCredential("reza", "secret1")).getStatus());
+
+        database("primary").failure = new SQLException("Connection reset");
+        try {
+            identityStore.validate(new UsernamePasswordCredential("reza", "secret1"));
+            Assert.fail("Expected failure");
+        }
+        catch (IdentityStoreConfigurationException e) {
+            // Expected
+        }
+
+        Assert.assertEquals(VALID, identityStore.validate(new UsernamePasswordCredential("reza", "secret1")).getStatus());
+        Assert.assertEquals(asList("primary", "primary"), lookups);
+    }
+
+    @Test
+    public void validate_queriesOnOneConnectionBeforeVerifying() {
+        DatabaseIdentityStore identityStore = identityStore(Store.class, SingleQuery.class);
+
+        List<Integer> openConnections = new CopyOnWriteArrayList<>();
+        List<Integer> inFlightQueries = new CopyOnWriteArrayList<>();
+        passwordHash.onVerify = () -> {
+            openConnections.add(database("primary").openConnections.get());
+            inFlightQueries.add(identityStore.getInFlightQueryCount());
+        };
+
+        CredentialValidationResult result = identityStore.validate(new UsernamePasswordCredential("reza", "secret1"));
+
+        Assert.assertEquals(VALID, result.getStatus());
+        Assert.assertEquals(new HashSet<>(asList("foo", "bar")), result.getCallerGroups());
+        Assert.assertEquals(asList(0), openConnections);
+        Assert.assertEquals(asList(0), inFlightQueries);
+
+        // The groups are queried on the same connection, right after the password
+        Assert.assertEquals(1, database("primary").connections.get());
+        Assert.assertEquals(2, database("primary").preparedStatements.get());
+        Assert.assertEquals(asList(50), database("primary").fetchSizes);
+        Assert.assertEquals(0, database("primary").openConnections.get());
+    }
+
+    @Test
+    public void validate_dropsGroupsOfWrongPassword() {
+        DatabaseIdentityStore identityStore = identityStore(Store.class, CachedGroups.class);
+
+        CredentialValidationResult result = identityStore.validate(new UsernamePasswordCredential("reza", "wrongpassword"));
+        Assert.assertEquals(INVALID, result.getStatus());
+        Assert.assertEquals(2, database("primary").executedQueries.get());
+
+        // Nothing was cached for the wrong password
+        Assert.assertEquals(VALID, identityStore.validate(new UsernamePasswordCredential("reza", "secret1")).getStatus());
+        Assert.assertEquals(4, database("primary").executedQueries.get());
+    }
+
+    @Test
+    public void validate_skipsGroupsQueryOfCachedGroups() {
+        DatabaseIdentityStore identityStore = identityStore(Store.class, CachedGroups.class);
+
+        Assert.assertEquals(VALID, identityStore.validate(new UsernamePasswordCredential("reza", "secret1")).getStatus());
+        Assert.assertEquals(2, database("primary").executedQueries.get());
+
+        CredentialValidationResult result = identityStore.validate(new UsernamePasswordCredential("reza", "secret1"));
+        Assert.assertEquals(VALID, result.getStatus());
+        Assert.assertEquals(new HashSet<>(asList("foo", "bar")), result.getCallerGroups());
+        Assert.assertEquals(3, database("primary").executedQueries.get());
+    }
+
+    @Test
+    public void validate_closesConnectionWhenClosingStatementFails() {
+        DatabaseIdentityStore identityStore = identityStore(Store.class, Store.class);
+
+        database("primary").closeFailure = new SQLException("Statement already closed");
+        try {
+            identityStore.validate(new UsernamePasswordCredential("reza", "secret1"));
+            Assert.fail("Expected failure");
+        }
+        catch (IdentityStoreRuntimeException e) {
+            Assert.assertEquals("Statement already closed", e.getCause().getMessage());
+        }
+
+        Assert.assertEquals(0, database("primary").openConnections.get());
+    }
+
+    @Test
+    public void getCallerGroups_reusesStatement() {
+        DatabaseIdentityStore identityStore = identityStore(Store.class, SingleQuery.class);
+
+        Map<String, Set<String>> groups = identityStore.getCallerGroups(asList("reza", "alex", "romo"));
+
+        Assert.assertEquals(new HashSet<>(asList("foo", "bar")), groups.get("reza"));
+        Assert.assertEquals(new HashSet<>(asList("foo")), groups.get("alex"));
+        Assert.assertEquals(new HashSet<>(), groups.get("romo"));
+
+        StubDatabase database = database("primary");
+        Assert.assertEquals(1, database.connections.get());
+        Assert.assertEquals(1, database.preparedStatements.get());
+        Assert.assertEquals(3, database.executedQueries.get());
+        Assert.assertEquals(asList(50, 50, 50), database.fetchSizes);
+        Assert.assertEquals(0, database.openConnections.get());
+    }
+
+    @Test
+    public void validate_callerAndGroupsQuery() {
+        DatabaseIdentityStore identityStore = identityStore(Store.class, CallerAndGroupsQuery.class);
+
+        CredentialValidationResult result = identityStore.validate(new UsernamePasswordCredential("reza", "secret1"));
+
+        Assert.assertEquals(VALID, result.getStatus());
+        Assert.assertEquals(new HashSet<>(asList("foo", "bar")), result.getCallerGroups());
+        Assert.assertEquals(INVALID, identityStore.validate(new UsernamePasswordCredential("reza", "wrongpassword")).getStatus());
+        Assert.assertEquals(INVALID, identityStore.validate(new UsernamePasswordCredential("romo", "secret1")).getStatus());
+
+        // Neither the caller query nor the groups query is used
+        Assert.assertEquals(3, database("primary").executedQueries.get());
+    }
+
+    @Test
+    public void validate_callerAndGroupsQueryWithoutGroups() {
+        DatabaseIdentityStore identityStore = identityStore(Store.class, CallerAndGroupsQuery.class);
+
+        // The outer join returns a single row without a group
+        CredentialValidationResult result = identityStore.validate(new UsernamePasswordCredential("arjan", "secret3"));
+
+        Assert.assertEquals(VALID, result.getStatus());
+        Assert.assertEquals(new HashSet<>(), result.getCallerGroups());
+    }
+
+    @Test
+    public void validate_callerAndGroupsQueryReplacesCachedGroups() {
+        DatabaseIdentityStore identityStore = identityStore(Store.class, CallerAndGroupsQuery.class);
+
+        CredentialValidationResult result = identityStore.validate(new UsernamePasswordCredential("reza", "secret1"));
+        Assert.assertEquals(new HashSet<>(asList("foo", "bar")), identityStore.getCallerGroups(result));
+
+        database("primary").groups.put("reza", asList("foo", "qux"));
+
+        result = identityStore.validate(new UsernamePasswordCredential("reza", "secret1"));
+        Assert.assertEquals(new HashSet<>(asList("foo", "qux")), result.getCallerGroups());
+
+        // Served from the cache, which holds the groups read by the last validation
+        int executedQueries = database("primary").executedQueries.get();
+        Assert.assertEquals(new HashSet<>(asList("foo", "qux")), identityStore.getCallerGroups(result));
+        Assert.assertEquals(executedQueries, database("primary").executedQueries.get());
+    }
+
+    @Test
+    public void getCallerGroups_bulkGroupsQuery() {
+        DatabaseIdentityStore identityStore = identityStore(Store.class, BulkGroupsQuery.class);
+
+        Map<String, Set<String>> groups = identityStore.getCallerGroups(asList("reza", "alex", "arjan", "romo", "kaz"));
+
+        Assert.assertEquals(new HashSet<>(asList("foo", "bar")), groups.get("reza"));
+        Assert.assertEquals(new HashSet<>(asList("foo")), groups.get("alex"));
+        Assert.assertEquals(new HashSet<>(), groups.get("arjan"));
+        Assert.assertEquals(new HashSet<>(), groups.get("romo"));
+        Assert.assertEquals(new HashSet<>(), groups.get("kaz"));
+
+        // Three chunks of two callers, the last one padded, all on the same statement
+        StubDatabase database = database("primary");
+        Assert.assertEquals(3, database.executedQueries.get());
+        Assert.assertEquals(1, database.preparedStatements.get());
+        Assert.assertEquals(database.lastParameters.get(0), database.lastParameters.get(1));
+    }
+
+    @Test
+    public void getCallerGroups_bulkGroupsQueryIgnoresCase() {
+        DatabaseIdentityStore identityStore = identityStore(Store.class, BulkGroupsQuery.class);
+
+        // The database compares names ignoring case, and returns them as stored
+        Map<String, Set<String>> groups = identityStore.getCallerGroups(asList("Alex", "ALEX", "reza", "REZA"));
+
+        Assert.assertEquals(new HashSet<>(asList("foo")), groups.get("Alex"));
+        Assert.assertEquals(new HashSet<>(asList("foo")), groups.get("ALEX"));
+
+        // The rows of "reza" can't be told apart from those of "REZA"
+        Assert.assertEquals(new HashSet<>(asList("foo", "bar")), groups.get("reza"));
+        Assert.assertEquals(new HashSet<>(asList("foo", "bar")), groups.get("REZA"));
+    }
+
+    @Test
+    public void getCallerGroups_bulkGroupsQueryUsesGroupCache() {
+        DatabaseIdentityStore identityStore = identityStore(Store.class, CachedBulkGroupsQuery.class);
+        StubDatabase database = database("primary");
+
+        identityStore.getCallerGroups(new CredentialValidationResult("reza"));
+        Assert.assertEquals(1, database.executedQueries.get());
+
+        // Only the callers whose groups aren't cached are queried, in a single chunk
+        Map<String, Set<String>> groups = identityStore.getCallerGroups(asList("reza", "alex", "arjan"));
+        Assert.assertEquals(new HashSet<>(asList("foo", "bar")), groups.get("reza"));
+        Assert.assertEquals(new HashSet<>(asList("foo")), groups.get("alex"));
+        Assert.assertEquals(new HashSet<>(), groups.get("arjan"));
+        Assert.assertEquals(2, database.executedQueries.get());
+        Assert.assertEquals(new HashSet<>(asList("alex", "arjan")), new HashSet<>(database.lastParameters));
+
+        // Both callers with groups are cached now
+        database.groups.put("alex", asList("qux"));
+        groups = identityStore.getCallerGroups(asList("reza", "alex"));
+        Assert.assertEquals(new HashSet<>(asList("foo")), groups.get("alex"));
+        Assert.assertEquals(2, database.executedQueries.get());
+    }
+
+    @Test(expected = IdentityStoreConfigurationException.class)
+    public void bulkGroupsQueryWithoutMarker() {
+        identityStore(Store.class, BulkGroupsQueryWithoutMarker.class);
+    }
+
+    @Test
+    public void validate_retriesOnlyQueryOnPrimary() {
+        DatabaseIdentityStore identityStore = identityStore(Store.class, Replica.class);
+
+        database("replica").failure = new SQLException("Connection reset");
+        CredentialValidationResult result = identityStore.validate(new UsernamePasswordCredential("reza", "secret1"));
+
+        Assert.assertEquals(VALID, result.getStatus());
+        Assert.assertEquals(new HashSet<>(asList("foo", "bar")), result.getCallerGroups());
+
+        // The password is verified once, after the query succeeded on the primary
+        Assert.assertEquals(1, passwordHash.verifications.get());
+        Assert.assertEquals(1, database("replica").executedQueries.get());
+        Assert.assertEquals(2, database("primary").executedQueries.get());
+    }
+
+    @Test
+    public void validate_queryTimeout() {
+        DatabaseIdentityStore identityStore = identityStore(Store.class, QueryTimeout.class);
+
+        Assert.assertEquals(VALID, identityStore.validate(new UsernamePasswordCredential("reza", "secret1")).getStatus());
+        Assert.assertEquals(asList(5, 5), database("primary").queryTimeouts);
+
+        database("primary").failure = new SQLTimeoutException("Query cancelled");
+        try {
+            identityStore.validate(new UsernamePasswordCredential("reza", "secret1"));
+            Assert.fail("Expected timeout");
+        }
+        catch (IdentityStoreRuntimeException e) {
+            // Expected
+        }
+        Assert.assertEquals(1, identityStore.getTimedOutQueryCount());
+
+        // A timeout says nothing about the data source, so it's kept
+        Assert.assertEquals(VALID, identityStore.validate(new UsernamePasswordCredential("reza", "secret1")).getStatus());
+        Assert.assertEquals(asList("primary"), lookups);
+    }
+
+    @Test
+    public void validate_rejectedWhenTooManyQueries() throws Exception {
+        DatabaseIdentityStore identityStore = identityStore(Store.class, NoQueryWait.class);
+
+        CountDownLatch queryStarted = new CountDownLatch(1);
+        CountDownLatch queryMayFinish = new CountDownLatch(1);
+        Query callerQuery = database("primary").queries.get(CALLER_QUERY);
+        database("primary").queries.put(CALLER_QUERY, parameters -> {
+            queryStarted.countDown();
+            try {
+                queryMayFinish.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return callerQuery.execute(parameters);
+        });
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<CredentialValidationResult> blocked = executor.submit(() ->
+                identityStore.validate(new UsernamePasswordCredential("reza", "secret1")));
+            Assert.assertTrue(queryStarted.await(5, SECONDS));
+            Assert.assertEquals(1, identityStore.getInFlightQueryCount());
+
+            // Left to other identity stores, rather than waiting for the database
+            Assert.assertEquals(NOT_VALIDATED, identityStore.validate(new UsernamePasswordCredential("alex", "secret2")).getStatus());
+            Assert.assertEquals(1, identityStore.getRejectedQueryCount());
+
+            queryMayFinish.countDown();
+            Assert.assertEquals(VALID, blocked.get(5, SECONDS).getStatus());
+            Assert.assertEquals(0, identityStore.getInFlightQueryCount());
+        }
+        finally {
+            queryMayFinish.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void hashingPoolDerivesKeyBlocksOnItsThread() {
+        identityStore(ParallelBlocksStore.class, Store.class);
+        Assert.assertEquals("true", passwordHash.parameters.get("Pbkdf2PasswordHash.ParallelBlocks"));
+
+        identityStore(ParallelBlocksStore.class, HashingPool.class);
+        Assert.assertEquals("false", passwordHash.parameters.get("Pbkdf2PasswordHash.ParallelBlocks"));
+    }
+
+    private DatabaseIdentityStore identityStore(Class<?> definitionClass, Class<?> optionsClass) {
+        return new DatabaseIdentityStore(
+            definitionClass.getAnnotation(DatabaseIdentityStoreDefinition.class),
+            optionsClass.getAnnotation(DatabaseIdentityStoreOptions.class),
+            passwordHash,
+            lookup -> {
+                lookups.add(lookup);
+                return database(lookup).dataSource();
+            });
+    }
+
+    private StubDatabase database(String name) {
+        return databases.computeIfAbsent(name, StubDatabase::new);
+    }
+
+    /**
+     * Stores passwords as they are, so that the test data can be read.
+     */
+    private static final class PlainTextHash implements PasswordHash {
+
+        final AtomicInteger verifications = new AtomicInteger();
+        volatile Runnable onVerify = () -> {};
+        volatile Map<String, String> parameters;
+
+        @Override
+        public void initialize(Map<String, String> parameters) {
+            this.parameters = parameters;
+        }
+
+        @Override
+        public String generate(char[] password) {
+            return new String(password);
+        }
+
+        @Override
+        public boolean verify(char[] password, String hashedPassword) {
+            verifications.incrementAndGet();
+            onVerify.run();
+            return new String(password).equals(hashedPassword);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Query {
+        List<String[]> execute(List<String> parameters) throws SQLException;
+    }
+
+    /**
+     * A database with the callers reza, alex and arjan, of which the data source hands out
+     * connections that answer the configured queries.
+     */
+    private static final class StubDatabase {
+
+        final String name;
+        final Map<String, Query> queries = new ConcurrentHashMap<>();
+        final Map<String, String> passwords = new ConcurrentHashMap<>();
+        final Map<String, List<String>> groups = new ConcurrentHashMap<>();
+
+        final AtomicInteger connections = new AtomicInteger();
+        final AtomicInteger openConnections = new AtomicInteger();
+        final AtomicInteger preparedStatements = new AtomicInteger();
+        final AtomicInteger executedQueries = new AtomicInteger();
+        final List<Integer> queryTimeouts = new CopyOnWriteArrayList<>();
+        final List<Integer> fetchSizes = new CopyOnWriteArrayList<>();
+        volatile List<String> lastParameters;
+
+        // Thrown by the next query, if set
+        volatile SQLException failure;
+
+        // Thrown by the next statement that is closed, if set
+        volatile SQLException closeFailure;
+
+        StubDatabase(String name) {
+            this.name = name;
+
+            passwords.put("reza", "secret1");
+            passwords.put("alex", "secret2");
+            passwords.put("arjan", "secret3");
+
+            groups.put("reza", asList("foo", "bar"));
+            groups.put("alex", asList("foo"));
+
+            queries.put(CALLER_QUERY, parameters -> {
+                String password = passwords.get(parameters.get(0));
+                return password != null ? rows(password) : rows();
+            });
+            queries.put(GROUPS_QUERY, parameters -> rows(groups.getOrDefault(parameters.get(0), asList()).toArray(new String[0])));
+            queries.put(CALLER_AND_GROUPS_QUERY, parameters -> {
+                String password = passwords.get(parameters.get(0));
+                List<String[]> rows = new ArrayList<>();
+                if (password != null) {
+                    List<String> callerGroups = groups.getOrDefault(parameters.get(0), asList());
+                    if (callerGroups.isEmpty()) {
+                        rows.add(new String[] { password, null });
+                    }
+                    for (String group : callerGroups) {
+                        rows.add(new String[] { password, group });
+                    }
+                }
+                return rows;
+            });
+            queries.put(BULK_GROUPS_QUERY, parameters -> {
+                // Like a database that compares names ignoring case
+                Set<String> callerNames = new LinkedHashSet<>();
+                for (String parameter : parameters) {
+                    for (String callerName : passwords.keySet()) {
+                        if (callerName.equalsIgnoreCase(parameter)) {
+                            callerNames.add(callerName);
+                        }
+                    }
+                }
+                List<String[]> rows = new ArrayList<>();
+                for (String callerName : callerNames) {
+                    for (String group : groups.getOrDefault(callerName, asList())) {
+                        rows.add(new String[] { callerName, group });
+                    }
+                }
+                return rows;
+            });
+        }
+
+        DataSource dataSource() {
+            return proxy(DataSource.class, (method, args) -> {
+                if (method.getName().equals("getConnection")) {
+                    connections.incrementAndGet();
+                    openConnections.incrementAndGet();
+                    return connection();
+                }
+                return null;
+            });
+        }
+
+        private Connection connection() {
+            return proxy(Connection.class, (method, args) -> {
+                if (method.getName().equals("prepareStatement")) {
+                    preparedStatements.incrementAndGet();
+                    return statement((String) args[0]);
+                }
+                if (method.getName().equals("close")) {
+                    openConnections.decrementAndGet();
+                }
+                return null;
+            });
+        }
+
+        private PreparedStatement statement(String sql) {
+            Map<Integer, String> parameters = new HashMap<>();
+            return proxy(PreparedStatement.class, (method, args) -> {
+                switch (method.getName()) {
+                    case "setString":
+                        parameters.put((Integer) args[0], (String) args[1]);
+                        return null;
+                    case "close":
+                        SQLException nextCloseFailure = closeFailure;
+                        if (nextCloseFailure != null) {
+                            closeFailure = null;
+                            throw nextCloseFailure;
+                        }
+                        return null;
+                    case "setQueryTimeout":
+                        queryTimeouts.add((Integer) args[0]);
+                        return null;
+                    case "setFetchSize":
+                        fetchSizes.add((Integer) args[0]);
+                        return null;
+                    case "executeQuery":
+                        executedQueries.incrementAndGet();
+                        SQLException nextFailure = failure;
+                        if (nextFailure != null) {
+                            failure = null;
+                            throw nextFailure;
+                        }
+                        List<String> parameterList = new ArrayList<>();
+                        for (int i = 1; i <= parameters.size(); i++) {
+                            parameterList.add(parameters.get(i));
+                        }
+                        lastParameters = parameterList;
+                        return resultSet(queries.get(sql).execute(parameterList));
+                    default:
+                        return null;
+                }
+            });
+        }
+
+        private static ResultSet resultSet(List<String[]> rows) {
+            AtomicInteger row = new AtomicInteger(-1);
+            return proxy(ResultSet.class, (method, args) -> {
+                switch (method.getName()) {
+                    case "next":
+                        return row.incrementAndGet() < rows.size();
+                    case "getString":
+                        return rows.get(row.get())[(Integer) args[0] - 1];
+                    default:
+                        return null;
+                }
+            });
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private static List<String[]> rows(String... singleColumnValues) {
+        List<String[]> rows = new ArrayList<>();
+        for (String value : singleColumnValues) {
+            rows.add(new String[] { value });
+        }
+        return rows;
+    }
+
+    @FunctionalInterface
+    private interface Handler {
+        Object invoke(Method method, Object[] args) throws Exception;
+    }
+
+    private static <T> T proxy(Class<T> type, Handler handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> {
+            if (method.getName().equals("toString")) {
+                return type.getSimpleName();
+            }
+            try {
+                Object result = handler.invoke(method, args);
+                if (result == null && method.getReturnType() == boolean.class) {
+                    return false;
+                }
+                if (result == null && method.getReturnType() == int.class) {
+                    return 0;
+                }
+                return result;
+            }
+            catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }));
+    }
+
+}
@@ -0,0 +1,177 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015-2017 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://oss.oracle.com/licenses/CDDL+GPL-1.1
+ * or LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.soteria.identitystores;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singleton;
+
+import java.lang.reflect.Proxy;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.glassfish.soteria.identitystores.annotation.DatabaseReplicas;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DatabaseReplicaSetTest {
+
+    @DatabaseReplicas(dataSourceLookups = { "replica1", "replica2" })
+    private static final class TwoReplicas {
+    }
+
+    @DatabaseReplicas(dataSourceLookups = { "replica1", "replica2" }, primaryReadsAfterChange = 60000)
+    private static final class PrimaryReadsAfterChange {
+    }
+
+    @DatabaseReplicas(dataSourceLookups = { "replica1", "replica2" }, primaryReadsAfterChange = 60000, changedCallersMaxSize = 1)
+    private static final class SingleChangedCaller {
+    }
+
+    @DatabaseReplicas
+    private static final class NoReplicas {
+    }
+
+    private final Map<String, DataSource> dataSources = new HashMap<>();
+
+    @Test
+    public void execute_roundRobin() {
+        DatabaseReplicaSet replicaSet = replicaSet(TwoReplicas.class);
+
+        List<String> used = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            used.add(execute(replicaSet, "reza", null));
+        }
+
+        Assert.assertEquals(asList("replica1", "replica2", "replica1", "replica2"), used);
+    }
+
+    @Test
+    public void execute_failsOverToPrimary() {
+        DatabaseReplicaSet replicaSet = replicaSet(TwoReplicas.class);
+
+        Assert.assertEquals("primary", execute(replicaSet, "reza", "replica1"));
+
+        // The failed replica is ejected, so only the other one is used
+        Assert.assertEquals("replica2", execute(replicaSet, "reza", "replica1"));
+        Assert.assertEquals("replica2", execute(replicaSet, "reza", "replica1"));
+    }
+
+    @Test
+    public void execute_doesNotRetryTimedOutQuery() {
+        DatabaseReplicaSet replicaSet = replicaSet(TwoReplicas.class);
+
+        List<String> used = new ArrayList<>();
+        try {
+            replicaSet.execute(singleton("reza"), () -> dataSource("primary"), dataSource -> {
+                used.add(dataSource.toString());
+                throw new IdentityStoreRuntimeException("Query timed out", new SQLTimeoutException());
+            });
+            Assert.fail("Expected timeout");
+        }
+        catch (IdentityStoreRuntimeException e) {
+            // Expected
+        }
+
+        // Not retried on the primary, and the replica is still used
+        Assert.assertEquals(asList("replica1"), used);
+        Assert.assertEquals("replica2", execute(replicaSet, "reza", null));
+        Assert.assertEquals("replica1", execute(replicaSet, "reza", null));
+    }
+
+    @Test
+    public void execute_readsChangedCallerFromPrimary() {
+        DatabaseReplicaSet replicaSet = replicaSet(PrimaryReadsAfterChange.class);
+
+        replicaSet.callerChanged("reza");
+
+        Assert.assertEquals("primary", execute(replicaSet, "reza", null));
+        Assert.assertEquals("replica1", execute(replicaSet, "alex", null));
+    }
+
+    @Test
+    public void execute_readsOnlyLastChangedCallersFromPrimary() {
+        DatabaseReplicaSet replicaSet = replicaSet(SingleChangedCaller.class);
+
+        replicaSet.callerChanged("reza");
+        replicaSet.callerChanged("alex");
+
+        Assert.assertEquals("primary", execute(replicaSet, "alex", null));
+        Assert.assertEquals("replica1", execute(replicaSet, "reza", null));
+    }
+
+    @Test
+    public void execute_withoutReplicas() {
+        DatabaseReplicaSet replicaSet = replicaSet(NoReplicas.class);
+
+        Assert.assertEquals("primary", execute(replicaSet, "reza", null));
+    }
+
+    private DatabaseReplicaSet replicaSet(Class<?> annotated) {
+        return new DatabaseReplicaSet(annotated.getAnnotation(DatabaseReplicas.class), this::dataSource);
+    }
+
+    private String execute(DatabaseReplicaSet replicaSet, String callerName, String failingDataSource) {
+        return replicaSet.execute(singleton(callerName), () -> dataSource("primary"), dataSource -> {
+            if (dataSource.toString().equals(failingDataSource)) {
+                throw new IdentityStoreConfigurationException("Failed query on " + dataSource);
+            }
+            return dataSource.toString();
+        });
+    }
+
+    private DataSource dataSource(String name) {
+        return dataSources.computeIfAbsent(name, key -> (DataSource) Proxy.newProxyInstance(
+            DataSource.class.getClassLoader(),
+            new Class<?>[] { DataSource.class },
+            (proxy, method, args) -> {
+                if (method.getName().equals("toString")) {
+                    return key;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }));
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015-2017 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://oss.oracle.com/licenses/CDDL+GPL-1.1
+ * or LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.soteria.identitystores;
+
+import static java.util.Arrays.asList;
+import static javax.security.enterprise.identitystore.CredentialValidationResult.Status.INVALID;
+import static javax.security.enterprise.identitystore.CredentialValidationResult.Status.VALID;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.security.enterprise.credential.UsernamePasswordCredential;
+import javax.security.enterprise.identitystore.CredentialValidationResult;
+
+import org.glassfish.soteria.identitystores.annotation.Credentials;
+import org.glassfish.soteria.identitystores.annotation.EmbeddedIdentityStoreDefinition;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class EmbeddedIdentityStoreTest {
+
+    @EmbeddedIdentityStoreDefinition({
+        @Credentials(callerName = "reza", password = "secret1", groups = { "foo", "bar" }),
+        @Credentials(callerName = "alex", password = "secret2", groups = { "foo" }),
+        @Credentials(callerName = "arjan", password = "secret3")
+    })
+    private static final class Store {
+    }
+
+    private final EmbeddedIdentityStore identityStore =
+        new EmbeddedIdentityStore(Store.class.getAnnotation(EmbeddedIdentityStoreDefinition.class));
+
+    @Test
+    public void validate() {
+        CredentialValidationResult result = identityStore.validate(new UsernamePasswordCredential("reza", "secret1"));
+
+        Assert.assertEquals(VALID, result.getStatus());
+        Assert.assertEquals(new HashSet<>(asList("foo", "bar")), result.getCallerGroups());
+        Assert.assertEquals(INVALID, identityStore.validate(new UsernamePasswordCredential("reza", "secret2")).getStatus());
+        Assert.assertEquals(INVALID, identityStore.validate(new UsernamePasswordCredential("romo", "secret1")).getStatus());
+    }
+
+    @Test
+    public void getCallerGroups_bulk() {
+        Map<String, Set<String>> groups = identityStore.getCallerGroups(asList("reza", "alex", "arjan", "romo"));
+
+        Assert.assertEquals(4, groups.size());
+        Assert.assertEquals(new HashSet<>(asList("foo", "bar")), groups.get("reza"));
+        Assert.assertEquals(new HashSet<>(asList("foo")), groups.get("alex"));
+        Assert.assertEquals(new HashSet<>(), groups.get("arjan"));
+        Assert.assertEquals(new HashSet<>(), groups.get("romo"));
+
+        // The sets can be merged with the groups from other stores
+        groups.get("romo").add("qux");
+        Assert.assertEquals(new HashSet<>(asList("foo", "bar")), identityStore.getCallerGroups(asList("reza")).get("reza"));
+    }
+
+}
@@ -0,0 +1,162 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015-2017 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://oss.oracle.com/licenses/CDDL+GPL-1.1
+ * or LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.soteria.identitystores;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ExpiringCacheTest {
+
+    @Test
+    public void getAndCount() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, 60000);
+
+        Assert.assertNull(cache.get("reza"));
+        cache.put("reza", "uid=reza,ou=caller,dc=jsr375,dc=net");
+        Assert.assertEquals("uid=reza,ou=caller,dc=jsr375,dc=net", cache.get("reza"));
+
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void loaderResultIsCached() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, 60000);
+
+        Assert.assertEquals("REZA", cache.get("reza", String::toUpperCase));
+        Assert.assertEquals("REZA", cache.get("reza", key -> { throw new AssertionError("Should not load again"); }));
+
+        // Null isn't cached
+        Assert.assertNull(cache.get("alex", key -> null));
+        Assert.assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void expires() throws InterruptedException {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, 20);
+
+        cache.put("reza", "foo");
+        Thread.sleep(50);
+
+        Assert.assertNull(cache.get("reza"));
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(2, 60000);
+
+        cache.put("reza", "foo");
+        cache.put("alex", "bar");
+        cache.get("reza");
+        cache.put("arjan", "kaz");
+
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals("foo", cache.get("reza"));
+        Assert.assertNull(cache.get("alex"));
+    }
+
+    @Test
+    public void cachesAbsentValues() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, 60000, 60000, 0, null);
+
+        Assert.assertNull(cache.get("romo", key -> null));
+        Assert.assertNull(cache.get("romo", key -> { throw new AssertionError("Should not load again"); }));
+        Assert.assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void refreshesAhead() throws InterruptedException {
+        List<Runnable> refreshes = new ArrayList<>();
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, 60000, 0, 59990, refreshes::add);
+
+        cache.put("reza", "foo");
+        Thread.sleep(20);
+
+        // Still returns the cached value, but schedules a single refresh
+        Assert.assertEquals("foo", cache.get("reza", key -> "bar"));
+        Assert.assertEquals("foo", cache.get("reza", key -> "bar"));
+        Assert.assertEquals(1, refreshes.size());
+
+        refreshes.get(0).run();
+        Assert.assertEquals("bar", cache.get("reza"));
+    }
+
+    @Test
+    public void refreshKeepsInvalidation() throws InterruptedException {
+        List<Runnable> refreshes = new ArrayList<>();
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, 60000, 0, 59990, refreshes::add);
+
+        cache.put("reza", "foo");
+        Thread.sleep(20);
+        cache.get("reza", key -> "bar");
+
+        // The refresh loaded its value before the invalidation, so it must not bring it back
+        cache.invalidate("reza");
+        refreshes.get(0).run();
+        Assert.assertNull(cache.get("reza"));
+
+        cache.put("reza", "baz");
+        Assert.assertEquals("baz", cache.get("reza"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refreshAheadMustBeShorterThanTimeToLive() {
+        new ExpiringCache<>(10, 60000, 0, 60000, Runnable::run);
+    }
+
+    @Test
+    public void invalidate() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, 60000);
+
+        cache.put("reza", "foo");
+        cache.put("alex", "bar");
+        cache.invalidate("reza");
+        Assert.assertNull(cache.get("reza"));
+
+        cache.invalidateAll();
+        Assert.assertEquals(0, cache.size());
+    }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015-2017 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://oss.oracle.com/licenses/CDDL+GPL-1.1
+ * or LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.soteria.identitystores;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HashingExecutorTest {
+
+    @Test
+    public void execute() {
+        HashingExecutor executor = new HashingExecutor(1, 0);
+
+        // Runs on a thread of the pool, not on the calling thread
+        Assert.assertNotEquals(Thread.currentThread().getName(), executor.execute(() -> Thread.currentThread().getName()));
+        Assert.assertTrue(executor.execute(() -> true));
+        Assert.assertEquals(0, executor.getRejectedCount());
+    }
+
+    @Test
+    public void execute_sequentialTasksNotRejected() {
+        HashingExecutor executor = new HashingExecutor(1, 0);
+
+        // The thread that ran a task may not be ready yet for the next one when its result comes in
+        for (int i = 0; i < 10000; i++) {
+            Assert.assertTrue(executor.execute(() -> true));
+        }
+        Assert.assertEquals(0, executor.getRejectedCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void execute_propagatesException() {
+        new HashingExecutor(1, 0).execute(() -> {
+            throw new IllegalArgumentException("Bad hash encoding");
+        });
+    }
+
+    @Test
+    public void execute_rejectsWhenSaturated() throws InterruptedException {
+        HashingExecutor executor = new HashingExecutor(1, 1);
+
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread busy = new Thread(() -> executor.execute(() -> {
+            started.countDown();
+            return await(release);
+        }));
+        Thread queued = new Thread(() -> executor.execute(() -> true));
+        busy.start();
+        try {
+            started.await();
+
+            // One task runs, the next one waits in the queue, and the one after that is rejected
+            queued.start();
+            awaitWaiting(queued);
+            try {
+                executor.execute(() -> true);
+                Assert.fail("Expected rejection");
+            }
+            catch (IdentityStoreUnavailableException e) {
+                // Expected
+            }
+            Assert.assertEquals(1, executor.getRejectedCount());
+        }
+        finally {
+            release.countDown();
+            busy.join();
+            queued.join();
+        }
+
+        Assert.assertTrue(executor.execute(() -> true));
+    }
+
+    private static void awaitWaiting(Thread thread) throws InterruptedException {
+        // The thread waits for the result of its task once the task is queued
+        for (int i = 0; i < 1000 && thread.getState() != Thread.State.WAITING; i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static boolean await(CountDownLatch latch) {
+        try {
+            return latch.await(10, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+}
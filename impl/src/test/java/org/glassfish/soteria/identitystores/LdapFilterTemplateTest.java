@@ -0,0 +1,89 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015-2017 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://oss.oracle.com/licenses/CDDL+GPL-1.1
+ * or LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.soteria.identitystores;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LdapFilterTemplateTest {
+
+    @Test
+    public void format() {
+        LdapFilterTemplate template = new LdapFilterTemplate("(&(uid=%s)(objectClass=person))");
+
+        Assert.assertEquals("(&(uid=reza)(objectClass=person))", template.format("reza"));
+    }
+
+    @Test
+    public void formatEscapes() {
+        LdapFilterTemplate template = new LdapFilterTemplate("(&(uid=%s)(objectClass=person))");
+
+        Assert.assertEquals("(&(uid=\\2a)(objectClass=person))", template.format("*"));
+        Assert.assertEquals("(&(uid=reza\\29\\28uid=\\2a)(objectClass=person))", template.format("reza)(uid=*"));
+        Assert.assertEquals("(&(uid=a\\5cb\\00)(objectClass=person))", template.format("a\\b\0"));
+    }
+
+    @Test
+    public void formatUnescaped() {
+        LdapFilterTemplate template = new LdapFilterTemplate("(&(uid=%s)(objectClass=person))");
+
+        Assert.assertEquals("(&(uid=*)(objectClass=person))", template.formatUnescaped("*"));
+    }
+
+    @Test
+    public void formatPlaceholders() {
+        Assert.assertEquals("(|(uid=reza)(mail=reza))", new LdapFilterTemplate("(|(uid=%s)(mail=%s))").format("reza"));
+        Assert.assertEquals("(description=100%)", new LdapFilterTemplate("(description=100%%)").format("reza"));
+        Assert.assertEquals("(objectClass=person)", new LdapFilterTemplate("(objectClass=person)").format("reza"));
+    }
+
+    @Test
+    public void isEqualityMatchOn() {
+        Assert.assertTrue(new LdapFilterTemplate("(&(uid=%s)(objectClass=person))").isEqualityMatchOn("uid"));
+        Assert.assertTrue(new LdapFilterTemplate("(&(UID=%s)(objectClass=person))").isEqualityMatchOn("uid"));
+
+        Assert.assertFalse(new LdapFilterTemplate("(&(mail=%s)(objectClass=person))").isEqualityMatchOn("uid"));
+        Assert.assertFalse(new LdapFilterTemplate("(|(uid=%s)(mail=%s))").isEqualityMatchOn("uid"));
+        Assert.assertFalse(new LdapFilterTemplate("(&(uid=%s*)(objectClass=person))").isEqualityMatchOn("uid"));
+        Assert.assertFalse(new LdapFilterTemplate("(objectClass=person)").isEqualityMatchOn("uid"));
+    }
+
+}
@@ -0,0 +1,1145 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015-2017 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://oss.oracle.com/licenses/CDDL+GPL-1.1
+ * or LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.soteria.identitystores;
+
+import static java.util.Arrays.asList;
+import static com.unboundid.ldap.sdk.ModificationType.ADD;
+import static com.unboundid.ldap.sdk.ModificationType.DELETE;
+import static java.util.Collections.emptySet;
+import static java.util.Collections.newSetFromMap;
+import static javax.naming.Context.INITIAL_CONTEXT_FACTORY;
+import static javax.naming.Context.PROVIDER_URL;
+import static javax.security.enterprise.identitystore.CredentialValidationResult.Status.INVALID;
+import static javax.security.enterprise.identitystore.CredentialValidationResult.Status.VALID;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import javax.naming.NamingException;
+import javax.naming.NoPermissionException;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+import javax.security.enterprise.credential.UsernamePasswordCredential;
+import javax.security.enterprise.identitystore.CredentialValidationResult;
+import javax.security.enterprise.identitystore.LdapIdentityStoreDefinition;
+
+import org.glassfish.soteria.identitystores.annotation.CachePolicy;
+import org.glassfish.soteria.identitystores.annotation.LdapConnectionPool;
+import org.glassfish.soteria.identitystores.annotation.LdapIdentityStoreOptions;
+import org.glassfish.soteria.identitystores.annotation.LdapLoadBalancing;
+import org.glassfish.soteria.identitystores.annotation.LdapLocalReplica;
+import org.glassfish.soteria.identitystores.annotation.LdapIdentityStoreOptions.NestedGroupStrategy;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryExtendedOperationHandler;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+import com.unboundid.ldap.listener.InMemoryRequestHandler;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchEntry;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSimpleBindRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
+import com.unboundid.ldap.sdk.ExtendedRequest;
+import com.unboundid.ldap.sdk.ExtendedResult;
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldif.LDIFReader;
+
+/**
+ * Tests the LDAP identity store against an embedded Unboundid LDAP server that is
+ * loaded with the same test directory as the LDAP sample applications use.
+ *
+ */
+public class LdapIdentityStoreTest {
+
+    private static final int PORT = 33390;
+    private static final int REPLICA_PORT = 33391;
+
+    @LdapIdentityStoreDefinition(
+        url = "ldap://localhost:33390/",
+        bindDn = "uid=ldap,ou=apps,dc=jsr375,dc=net",
+        bindDnPassword = "changeOnInstall",
+        callerSearchBase = "dc=jsr375,dc=net",
+        callerSearchFilter = "(&(uid=%s)(objectClass=person))",
+        groupSearchBase = "ou=group,dc=jsr375,dc=net",
+        groupSearchFilter = "(&(member=%s)(objectClass=groupOfNames))"
+    )
+    private static final class SearchingStore {
+    }
+
+    @LdapIdentityStoreDefinition(
+        url = "ldap://localhost:33390/",
+        bindDn = "uid=ldap,ou=apps,dc=jsr375,dc=net",
+        bindDnPassword = "changeOnInstall",
+        callerSearchBase = "dc=jsr375,dc=net",
+        callerSearchFilter = "(&(cn=%s)(objectClass=person))",
+        groupSearchBase = "ou=group,dc=jsr375,dc=net",
+        groupSearchFilter = "(&(member=%s)(objectClass=groupOfNames))"
+    )
+    private static final class CommonNameStore {
+    }
+
+    @LdapIdentityStoreDefinition(
+        url = "ldap://localhost:33390/",
+        bindDn = "uid=ldap,ou=apps,dc=jsr375,dc=net",
+        bindDnPassword = "changeOnInstall",
+        callerSearchBase = "dc=jsr375,dc=net",
+        callerSearchFilter = "(&(uid=%s)(objectClass=person))",
+        groupSearchBase = "ou=group,dc=jsr375,dc=net",
+        groupSearchFilter = "(&(member=%s)(objectClass=groupOfNames))",
+        maxResults = 1
+    )
+    @LdapIdentityStoreOptions(
+        groupSearchPageSize = 1
+    )
+    private static final class PagingStore {
+    }
+
+    @LdapIdentityStoreDefinition(
+        url = "ldap://localhost:33390/",
+        bindDn = "uid=ldap,ou=apps,dc=jsr375,dc=net",
+        bindDnPassword = "changeOnInstall",
+        callerSearchBase = "dc=jsr375,dc=net",
+        callerSearchFilter = "(&(uid=%s)(objectClass=person))",
+        groupSearchBase = "ou=group,dc=jsr375,dc=net",
+        groupSearchFilter = "(&(member=%s)(objectClass=groupOfNames))",
+        maxResults = 1
+    )
+    private static final class MaxOneResultStore {
+    }
+
+    // The group filter doesn't match on the group member attribute
+    @LdapIdentityStoreDefinition(
+        url = "ldap://localhost:33390/",
+        bindDn = "uid=ldap,ou=apps,dc=jsr375,dc=net",
+        bindDnPassword = "changeOnInstall",
+        callerSearchBase = "dc=jsr375,dc=net",
+        callerSearchFilter = "(&(uid=%s)(objectClass=person))",
+        groupSearchBase = "ou=group,dc=jsr375,dc=net",
+        groupSearchFilter = "(&(member=%s)(objectClass=groupOfNames))",
+        groupMemberAttribute = "uniqueMember"
+    )
+    private static final class OtherGroupFilterAttributeStore {
+    }
+
+    @LdapIdentityStoreDefinition(
+        url = "ldap://localhost:33390/",
+        bindDn = "uid=ldap,ou=apps,dc=jsr375,dc=net",
+        bindDnPassword = "changeOnInstall",
+        callerSearchBase = "dc=jsr375,dc=net",
+        callerSearchFilter = "(&(|(uid=%s)(uid=alex))(objectClass=person))"
+    )
+    @LdapIdentityStoreOptions(
+        minimalCallerSearch = true
+    )
+    private static final class AmbiguousCallerStore {
+    }
+
+    // The test directory has no memberOf attribute, seeAlso is used in its place
+    @LdapIdentityStoreDefinition(
+        url = "ldap://localhost:33390/",
+        bindDn = "uid=ldap,ou=apps,dc=jsr375,dc=net",
+        bindDnPassword = "changeOnInstall",
+        callerSearchBase = "dc=jsr375,dc=net",
+        callerSearchFilter = "(&(uid=%s)(objectClass=person))",
+        groupMemberOfAttribute = "seeAlso"
+    )
+    @LdapIdentityStoreOptions(
+        memberOfInCallerSearch = true
+    )
+    private static final class MemberOfStore {
+    }
+
+    @LdapIdentityStoreDefinition(
+        url = "ldap://localhost:33390/ ldap://localhost:33391/",
+        bindDn = "uid=ldap,ou=apps,dc=jsr375,dc=net",
+        bindDnPassword = "changeOnInstall",
+        callerSearchBase = "dc=jsr375,dc=net",
+        callerSearchFilter = "(&(uid=%s)(objectClass=person))",
+        groupSearchBase = "ou=group,dc=jsr375,dc=net",
+        groupSearchFilter = "(&(member=%s)(objectClass=groupOfNames))"
+    )
+    @LdapIdentityStoreOptions(
+        loadBalancing = @LdapLoadBalancing(healthCheckInterval = 0)
+    )
+    private static final class ReplicatedStore {
+    }
+
+    @LdapIdentityStoreDefinition(
+        url = "ldap://localhost:33390/ ldap://localhost:33391/",
+        bindDn = "uid=ldap,ou=apps,dc=jsr375,dc=net",
+        bindDnPassword = "changeOnInstall",
+        callerSearchBase = "dc=jsr375,dc=net",
+        callerSearchFilter = "(&(uid=%s)(objectClass=person))",
+        groupSearchBase = "ou=group,dc=jsr375,dc=net",
+        groupSearchFilter = "(&(member=%s)(objectClass=groupOfNames))",
+        readTimeout = 200
+    )
+    private static final class ReplicatedTimeoutStore {
+    }
+
+    @LdapIdentityStoreDefinition(
+        url = "ldap://localhost:33390/",
+        bindDn = "uid=ldap,ou=apps,dc=jsr375,dc=net",
+        bindDnPassword = "changeOnInstall",
+        callerSearchBase = "dc=jsr375,dc=net",
+        callerSearchFilter = "(&(uid=%s)(objectClass=person))",
+        groupSearchBase = "ou=group,dc=jsr375,dc=net",
+        groupSearchFilter = "(&(member=%s)(objectClass=groupOfNames))",
+        readTimeout = 200
+    )
+    @LdapIdentityStoreOptions(
+        connectTimeout = 200
+    )
+    private static final class TimeoutStore {
+    }
+
+    @LdapIdentityStoreOptions(
+        authenticationTimeout = 100
+    )
+    private static final class AuthenticationTimeout {
+    }
+
+    @LdapIdentityStoreOptions(
+        searchConnectionPool = @LdapConnectionPool(enabled = true, maxSize = 1, borrowTimeout = 100)
+    )
+    private static final class SingleConnectionPool {
+    }
+
+    @LdapIdentityStoreOptions(
+        searchConnectionPool = @LdapConnectionPool(enabled = true, validationInterval = 0)
+    )
+    private static final class ValidatedConnectionPool {
+    }
+
+    @LdapIdentityStoreOptions(
+        loadBalancing = @LdapLoadBalancing(healthCheckInterval = 0, slowResponseTime = 10)
+    )
+    private static final class SlowResponseWithoutHealthCheck {
+    }
+
+    @LdapIdentityStoreOptions(
+        loadBalancing = @LdapLoadBalancing(healthCheckInterval = 20, slowResponseTime = 10, ejectionTime = 60000)
+    )
+    private static final class SlowResponseHealthCheck {
+    }
+
+    @LdapIdentityStoreOptions(
+        callerConnectionPool = @LdapConnectionPool(enabled = true)
+    )
+    private static final class CallerConnectionPool {
+    }
+
+    @LdapIdentityStoreOptions(
+        callerConnectionPool = @LdapConnectionPool(enabled = true),
+        fastBind = true
+    )
+    private static final class FastBind {
+    }
+
+    @LdapIdentityStoreOptions(
+        searchConnectionPool = @LdapConnectionPool(enabled = true, minSize = 2, maxSize = 4)
+    )
+    private static final class MinimumConnectionPool {
+    }
+
+    @LdapIdentityStoreOptions(
+        callerDnCache = @CachePolicy(enabled = true),
+        groupCache = @CachePolicy(enabled = true)
+    )
+    private static final class CachingOptions {
+    }
+
+    @LdapIdentityStoreOptions(
+        localReplica = @LdapLocalReplica(enabled = true, reloadInterval = 200)
+    )
+    private static final class LocalReplica {
+    }
+
+    @LdapIdentityStoreOptions(
+        concurrentGroupLookup = true
+    )
+    private static final class ConcurrentGroupLookup {
+    }
+
+    @LdapIdentityStoreOptions(
+        nestedGroups = NestedGroupStrategy.GRAPH_WALK
+    )
+    private static final class NestedGroups {
+    }
+
+    @LdapIdentityStoreOptions(
+        nestedGroups = NestedGroupStrategy.GRAPH_WALK,
+        nestedGroupMaxDepth = 1
+    )
+    private static final class ShallowNestedGroups {
+    }
+
+    private static InMemoryDirectoryServer directoryServer;
+
+    // Connections on which callers (rather than the application) have been bound
+    private static final Set<Long> callerBindConnections = newSetFromMap(new ConcurrentHashMap<>());
+
+    // Connections that have been put in fast bind mode
+    private static final Set<Long> fastBindConnections = newSetFromMap(new ConcurrentHashMap<>());
+
+    private static final AtomicInteger groupSearches = new AtomicInteger();
+
+    private static final AtomicInteger callerEntryReads = new AtomicInteger();
+
+    private static final AtomicInteger callerSearchSizeLimit = new AtomicInteger();
+
+    private static final AtomicInteger rezaSearches = new AtomicInteger();
+
+    // Time in milliseconds that the server waits before handling a group search
+    private static volatile long groupSearchDelay;
+
+    private static final AtomicInteger callerEntryAttributes = new AtomicInteger();
+
+    @BeforeClass
+    public static void startDirectoryServer() throws Exception {
+        InMemoryDirectoryServerConfig config = directoryConfig(PORT);
+        config.addInMemoryOperationInterceptor(new InMemoryOperationInterceptor() {
+            @Override
+            public void processSimpleBindRequest(InMemoryInterceptedSimpleBindRequest request) {
+                if (request.getRequest().getBindDN().contains("ou=caller")) {
+                    callerBindConnections.add(request.getConnectionID());
+                }
+            }
+
+            @Override
+            public void processSearchRequest(InMemoryInterceptedSearchRequest request) {
+                if (request.getRequest().getBaseDN().startsWith("ou=group")) {
+                    groupSearches.incrementAndGet();
+                    sleep(groupSearchDelay);
+                }
+                if (request.getRequest().getBaseDN().startsWith("uid=")) {
+                    callerEntryReads.incrementAndGet();
+                }
+                if (request.getRequest().getFilter().toString().contains("uid=")) {
+                    callerSearchSizeLimit.set(request.getRequest().getSizeLimit());
+                }
+                if (request.getRequest().getFilter().toString().toLowerCase().contains("reza")) {
+                    rezaSearches.incrementAndGet();
+                }
+            }
+
+            @Override
+            public void processSearchEntry(InMemoryInterceptedSearchEntry entry) {
+                if (entry.getSearchEntry().getDN().contains("ou=caller")) {
+                    callerEntryAttributes.set(entry.getSearchEntry().getAttributes().size());
+                }
+            }
+        });
+
+        config.addExtendedOperationHandler(new InMemoryExtendedOperationHandler() {
+            @Override
+            public String getExtendedOperationHandlerName() {
+                return "Fast bind";
+            }
+
+            @Override
+            public List<String> getSupportedExtendedRequestOIDs() {
+                return asList(FastBindRequest.OID);
+            }
+
+            @Override
+            public ExtendedResult processExtendedOperation(InMemoryRequestHandler handler, int messageID, ExtendedRequest request) {
+                // Like Active Directory, only accept fast bind on a connection that hasn't been bound
+                if (!handler.getAuthenticatedDN().isNullDN()) {
+                    return new ExtendedResult(messageID, ResultCode.UNWILLING_TO_PERFORM, "Connection already bound", null, null, null, null, null);
+                }
+                fastBindConnections.add(handler.getClientConnection().getConnectionID());
+                return new ExtendedResult(messageID, ResultCode.SUCCESS, null, null, null, null, null, null);
+            }
+        });
+
+        directoryServer = startDirectoryServer(config);
+    }
+
+    @AfterClass
+    public static void stopDirectoryServer() {
+        directoryServer.shutDown(true);
+    }
+
+    @Test
+    public void validate() {
+        LdapIdentityStore identityStore = new LdapIdentityStore(definition(SearchingStore.class));
+        try {
+            // Repeat, so that pooled connections are reused
+            for (int i = 0; i < 3; i++) {
+                CredentialValidationResult result = identityStore.validate(new UsernamePasswordCredential("reza", "secret1"));
+
+                Assert.assertEquals(VALID, result.getStatus());
+                Assert.assertEquals("uid=reza,ou=caller,dc=jsr375,dc=net", result.getCallerDn());
+                Assert.assertEquals(new HashSet<>(asList("foo", "bar")), result.getCallerGroups());
+            }
+        }
+        finally {
+            identityStore.close();
+        }
+    }
+
+    @Test
+    public void validate_failure() {
+        LdapIdentityStore identityStore = new LdapIdentityStore(definition(SearchingStore.class));
+        try {
+            Assert.assertEquals(INVALID, identityStore.validate(new UsernamePasswordCredential("reza", "wrongpassword")).getStatus());
+            Assert.assertEquals(INVALID, identityStore.validate(new UsernamePasswordCredential("romo", "secret1")).getStatus());
+        }
+        finally {
+            identityStore.close();
+        }
+    }
+
+    @Test
+    public void validate_escapesCallerName() {
+        LdapIdentityStore identityStore = new LdapIdentityStore(definition(SearchingStore.class));
+        try {
+            // Would find reza if the wildcard ended up in the filter
+            Assert.assertEquals(INVALID, identityStore.validate(new UsernamePasswordCredential("rez*", "secret1")).getStatus());
+            Assert.assertEquals(INVALID, identityStore.validate(new UsernamePasswordCredential("reza)(uid=*", "secret1")).getStatus());
+        }
+        finally {
+            identityStore.close();
+        }
+    }
+
+    @Test
+    public void validate_rebindsCallerInPlace() {
+        LdapIdentityStore identityStore = new LdapIdentityStore(definition(SearchingStore.class), options(CallerConnectionPool.class));
+        try {
+            callerBindConnections.clear();
+
+            Assert.assertEquals(VALID, identityStore.validate(new UsernamePasswordCredential("reza", "secret1")).getStatus());
+            Assert.assertEquals(INVALID, identityStore.validate(new UsernamePasswordCredential("reza", "wrongpassword")).getStatus());
+            Assert.assertEquals(VALID, identityStore.validate(new UsernamePasswordCredential("alex", "secret2")).getStatus());
+
+            Assert.assertEquals(1, callerBindConnections.size());
+        }
+        finally {
+            identityStore.close();
+        }
+    }
+
+    @Test
+    public void validate_fastBind() {
+        LdapIdentityStore identityStore = new LdapIdentityStore(definition(SearchingStore.class), options(FastBind.class));
+        try {
+            callerBindConnections.clear();
+            fastBindConnections.clear();
+
+            Assert.assertEquals(VALID, identityStore.validate(new UsernamePasswordCredential("reza", "secret1")).getStatus());
+            Assert.assertEquals(INVALID, identityStore.validate(new UsernamePasswordCredential("reza", "wrongpassword")).getStatus());
+            Assert.assertEquals(VALID, identityStore.validate(new UsernamePasswordCredential("alex", "secret2")).getStatus());
+
+            // The caller binds were done on the connection in fast bind mode
+            Assert.assertEquals(1, fastBindConnections.size());
+            Assert.assertEquals(fastBindConnections, callerBindConnections);
+        }
+        finally {
+            identityStore.close();
+        }
+    }
+
+    @Test
+    public void validate_cachesCallerDn() {
+        LdapIdentityStore identityStore = new LdapIdentityStore(definition(SearchingStore.class), options(CachingOptions.class));
+        try {
+            Assert.assertEquals(VALID, identityStore.validate(new UsernamePasswordCredential("reza", "secret1")).getStatus());
+            Assert.assertEquals(VALID, identityStore.validate(new UsernamePasswordCredential("reza", "secret1")).getStatus());
+
+            Assert.assertEquals(1, identityStore.getCallerDnCacheMissCount());
+            Assert.assertEquals(1, identityStore.getCallerDnCacheHitCount());
+
+            // A failed bind removes the cached DN
+            Assert.assertEquals(INVALID, identityStore.validate(new UsernamePasswordCredential("reza", "wrongpassword")).getStatus());
+            Assert.assertEquals(VALID, identityStore.validate(new UsernamePasswordCredential("reza", "secret1")).getStatus());
+
+            Assert.assertEquals(2, identityStore.getCallerDnCacheMissCount());
+            Assert.assertEquals(2, identityStore.getCallerDnCacheHitCount());
+        }
+        finally {
+            identityStore.close();
+        }
+    }
+
+    @Test
+    public void validate_cachesGroups() throws Exception {
+        LdapIdentityStore identityStore = new LdapIdentityStore(definition(SearchingStore.class), options(CachingOptions.class));
+        try {
+            Assert.assertEquals(new HashSet<>(asList("foo", "bar")),
+                identityStore.validate(new UsernamePasswordCredential("reza", "secret1")).getCallerGroups());
+
+            directoryServer.modify("cn=bar,ou=group,dc=jsr375,dc=net",
+                new Modification(DELETE, "member", "uid=reza,ou=caller,dc=jsr375,dc=net"));
+            try {
+                Assert.assertEquals(new HashSet<>(asList("foo", "bar")),
+                    identityStore.validate(new UsernamePasswordCredential("reza", "secret1")).getCallerGroups());
+
+                identityStore.invalidateCallerGroups("uid=reza,ou=caller,dc=jsr375,dc=net");
+
+                Assert.assertEquals(new HashSet<>(asList("foo")),
+                    identityStore.validate(new UsernamePasswordCredential("reza", "secret1")).getCallerGroups());
+            }
+            finally {
+                directoryServer.modify("cn=bar,ou=group,dc=jsr375,dc=net",
+                    new Modification(ADD, "member", "uid=reza,ou=caller,dc=jsr375,dc=net"));
+            }
+        }
+        finally {
+            identityStore.close();
+        }
+    }
+
+    @Test
+    public void validate_readTimeout() {
+        LdapIdentityStore identityStore = new LdapIdentityStore(definition(TimeoutStore.class), options(TimeoutStore.class));
+        groupSearchDelay = 2000;
+        long start = System.currentTimeMillis();
+        try {
+            identityStore.validate(new UsernamePasswordCredential("reza", "secret1"));
+            Assert.fail("Group search should have timed out");
+        }
+        catch (IdentityStoreRuntimeException e) {
+            Assert.assertTrue(System.currentTimeMillis() - start < 1500);
+        }
+        finally {
+            groupSearchDelay = 0;
+            identityStore.close();
+        }
+    }
+
+    @Test
+    public void validate_authenticationTimeout() {
+        LdapIdentityStore identityStore = new LdapIdentityStore(definition(SearchingStore.class), options(AuthenticationTimeout.class));
+        try {
+            Assert.assertEquals(VALID, identityStore.validate(new UsernamePasswordCredential("reza", "secret1")).getStatus());
+
+            groupSearchDelay = 200;
+            identityStore.validate(new UsernamePasswordCredential("reza", "secret1"));
+            Assert.fail("Validation should have timed out");
+        }
+        catch (IdentityStoreRuntimeException e) {
+            Assert.assertTrue(e.getMessage().contains("timed out while retrieving the caller's groups"));
+        }
+        finally {
+            groupSearchDelay = 0;
+            identityStore.close();
+        }
+    }
+
+    @Test
+    public void validate_localReplica() throws Exception {
+        LdapIdentityStore identityStore = new LdapIdentityStore(definition(SearchingStore.class), options(LocalReplica.class));
+        try {
+            awaitLocalReplica(identityStore);
+
+            rezaSearches.set(0);
+            Assert.assertEquals(new HashSet<>(asList("foo", "bar")),
+                identityStore.validate(new UsernamePasswordCredential("reza", "secret1")).getCallerGroups());
+            Assert.assertEquals(INVALID, identityStore.validate(new UsernamePasswordCredential("reza", "wrongpassword")).getStatus());
+
+            // Caller names are matched ignoring case, like the directory does
+            Assert.assertEquals(VALID, identityStore.validate(new UsernamePasswordCredential("Reza", "secret1")).getStatus());
+
+            // Neither the caller nor the groups have been searched for
+            Assert.assertEquals(0, rezaSearches.get());
+
+            directoryServer.modify("cn=bar,ou=group,dc=jsr375,dc=net",
+                new Modification(DELETE, "member", "uid=reza,ou=caller,dc=jsr375,dc=net"));
+            try {
+                // Picked up by a reload, since the test server doesn't support persistent searches
+                long deadline = System.currentTimeMillis() + 5000;
+                Set<String> groups;
+                do {
+                    Thread.sleep(50);
+                    groups = identityStore.validate(new UsernamePasswordCredential("reza", "secret1")).getCallerGroups();
+                }
+                while (groups.contains("bar") && System.currentTimeMillis() < deadline);
+
+                Assert.assertEquals(new HashSet<>(asList("foo")), groups);
+            }
+            finally {
+                directoryServer.modify("cn=bar,ou=group,dc=jsr375,dc=net",
+                    new Modification(ADD, "member", "uid=reza,ou=caller,dc=jsr375,dc=net"));
+            }
+        }
+        finally {
+            identityStore.close();
+        }
+    }
+
+    @Test
+    public void validate_localReplicaSkipsUndecodableMemberOf() throws Exception {
+        // The leading RDN has no cn, so the group name can't be taken from the DN
+        directoryServer.modify("uid=alex,ou=caller,dc=jsr375,dc=net",
+            new Modification(ADD, "seeAlso", "ou=apps,dc=jsr375,dc=net"));
+
+        LdapIdentityStore identityStore = new LdapIdentityStore(definition(MemberOfStore.class), options(LocalReplica.class));
+        try {
+            awaitLocalReplica(identityStore);
+
+            rezaSearches.set(0);
+            Assert.assertEquals(new HashSet<>(asList("foo", "bar")),
+                identityStore.validate(new UsernamePasswordCredential("reza", "secret1")).getCallerGroups());
+            Assert.assertEquals(0, rezaSearches.get());
+        }
+        finally {
+            identityStore.close();
+            directoryServer.modify("uid=alex,ou=caller,dc=jsr375,dc=net",
+                new Modification(DELETE, "seeAlso", "ou=apps,dc=jsr375,dc=net"));
+        }
+    }
+
+    @Test
+    public void validate_localReplicaWithOtherCallerFilterAttribute() throws Exception {
+        LdapIdentityStore identityStore = new LdapIdentityStore(definition(CommonNameStore.class), options(LocalReplica.class));
+        try {
+            awaitLocalReplica(identityStore);
+
+            // Found by searching, the replica only knows callers by their uid
+            Assert.assertEquals(VALID, identityStore.validate(new UsernamePasswordCredential("Alex Kosowski", "secret2")).getStatus());
+            Assert.assertEquals(INVALID, identityStore.validate(new UsernamePasswordCredential("alex", "secret2")).getStatus());
+        }
+        finally {
+            identityStore.close();
+        }
+    }
+
+    @Test
+    public void validate_concurrentGroupLookup() {
+        LdapIdentityStore identityStore = new LdapIdentityStore(definition(SearchingStore.class), options(ConcurrentGroupLookup.class));
+        try {
+            for (int i = 0; i < 3; i++) {
+                Assert.assertEquals(new HashSet<>(asList("foo", "bar")),
+                    identityStore.validate(new UsernamePasswordCredential("reza", "secret1")).getCallerGroups());
+
+                CredentialValidationResult result = identityStore.validate(new UsernamePasswordCredential("reza", "wrongpassword"));
+                Assert.assertEquals(INVALID, result.getStatus());
+                Assert.assertTrue(result.getCallerGroups().isEmpty());
+            }
+        }
+        finally {
+            identityStore.close();
+        }
+    }
+
+    @Test
+    public void validate_pagesGroupSearch() {
+        LdapIdentityStore identityStore = new LdapIdentityStore(definition(PagingStore.class), options(PagingStore.class));
+        try {
+            groupSearches.set(0);
+
+            // Both groups are found, even though maxResults is 1
+            Assert.assertEquals(new HashSet<>(asList("foo", "bar")),
+                identityStore.validate(new UsernamePasswordCredential("reza", "secret1")).getCallerGroups());
+
+            // One search per page
+            Assert.assertTrue(groupSearches.get() >= 2);
+        }
+        finally {
+            identityStore.close();
+        }
+    }
+
+    @Test
+    public void getCallerGroups_bulk() {
+        LdapIdentityStore identityStore = new LdapIdentityStore(definition(SearchingStore.class));
+        try {
+            groupSearches.set(0);
+            Map<String, Set<String>> groups = identityStore.getCallerGroups(asList("reza", "alex", "arjan", "romo"));
+
+            Assert.assertEquals(new HashSet<>(asList("foo", "bar")), groups.get("reza"));
+            Assert.assertEquals(new HashSet<>(asList("bar", "kaz")), groups.get("alex"));
+            Assert.assertEquals(new HashSet<>(asList("foo")), groups.get("arjan"));
+            Assert.assertEquals(emptySet(), groups.get("romo"));
+
+            // The groups of all callers are found by a single search
+            Assert.assertEquals(1, groupSearches.get());
+        }
+        finally {
+            identityStore.close();
+        }
+    }
+
+    @Test
+    public void getCallerGroups_bulkNotLimitedByMaxResults() {
+        LdapIdentityStore identityStore = new LdapIdentityStore(definition(MaxOneResultStore.class));
+        try {
+            groupSearches.set(0);
+            Map<String, Set<String>> groups = identityStore.getCallerGroups(asList("reza", "alex", "arjan"));
+
+            Assert.assertEquals(new HashSet<>(asList("foo", "bar")), groups.get("reza"));
+            Assert.assertEquals(new HashSet<>(asList("bar", "kaz")), groups.get("alex"));
+            Assert.assertEquals(new HashSet<>(asList("foo")), groups.get("arjan"));
+
+            // Paged by maxResults
+            Assert.assertTrue(groupSearches.get() >= 2);
+        }
+        finally {
+            identityStore.close();
+        }
+    }
+
+    @Test
+    public void getCallerGroups_bulkWithOtherGroupFilterAttribute() {
+        LdapIdentityStore identityStore = new LdapIdentityStore(definition(OtherGroupFilterAttributeStore.class));
+        try {
+            groupSearches.set(0);
+            Map<String, Set<String>> groups = identityStore.getCallerGroups(asList("reza", "alex", "arjan"));
+
+            Assert.assertEquals(new HashSet<>(asList("foo", "bar")), groups.get("reza"));
+            Assert.assertEquals(new HashSet<>(asList("bar", "kaz")), groups.get("alex"));
+            Assert.assertEquals(new HashSet<>(asList("foo")), groups.get("arjan"));
+
+            // Found groups can't be attributed by their members, so each caller is searched for
+            Assert.assertEquals(3, groupSearches.get());
+        }
+        finally {
+            identityStore.close();
+        }
+    }
+
+    @Test
+    public void getCallerGroups_bulkCachesGroups() {
+        LdapIdentityStore identityStore = new LdapIdentityStore(definition(SearchingStore.class), options(CachingOptions.class));
+        try {
+            Assert.assertEquals(new HashSet<>(asList("foo", "bar")),
+                identityStore.validate(new UsernamePasswordCredential("reza", "secret1")).getCallerGroups());
+
+            // Only the callers that aren't cached yet are searched for
+            groupSearches.set(0);
+            Map<String, Set<String>> groups = identityStore.getCallerGroups(asList("reza", "alex"));
+            Assert.assertEquals(new HashSet<>(asList("foo", "bar")), groups.get("reza"));
+            Assert.assertEquals(new HashSet<>(asList("bar", "kaz")), groups.get("alex"));
+            Assert.assertEquals(1, groupSearches.get());
+
+            // And the groups found are cached
+            groupSearches.set(0);
+            Assert.assertEquals(new HashSet<>(asList("bar", "kaz")),
+                identityStore.validate(new UsernamePasswordCredential("alex", "secret2")).getCallerGroups());
+            Assert.assertEquals(new HashSet<>(asList("bar", "kaz")), identityStore.getCallerGroups(asList("alex")).get("alex"));
+            Assert.assertEquals(0, groupSearches.get());
+        }
+        finally {
+            identityStore.close();
+        }
+    }
+
+    @Test
+    public void validate_nestedGroups() {
+        LdapIdentityStore identityStore = new LdapIdentityStore(definition(SearchingStore.class), options(NestedGroups.class));
+        try {
+            for (int i = 0; i < 2; i++) {
+                Assert.assertEquals(new HashSet<>(asList("foo", "bar", "qux", "quux")),
+                    identityStore.validate(new UsernamePasswordCredential("reza", "secret1")).getCallerGroups());
+            }
+
+            // The parents of foo, qux and quux are known by now, only the caller's own groups are searched
+            groupSearches.set(0);
+            Assert.assertEquals(new HashSet<>(asList("foo", "qux", "quux")),
+                identityStore.validate(new UsernamePasswordCredential("arjan", "secret3")).getCallerGroups());
+            Assert.assertEquals(1, groupSearches.get());
+        }
+        finally {
+            identityStore.close();
+        }
+    }
+
+    @Test
+    public void validate_nestedGroupsMaxDepth() {
+        LdapIdentityStore identityStore = new LdapIdentityStore(definition(SearchingStore.class), options(ShallowNestedGroups.class));
+        try {
+            Assert.assertEquals(new HashSet<>(asList("foo", "bar", "qux")),
+                identityStore.validate(new UsernamePasswordCredential("reza", "secret1")).getCallerGroups());
+        }
+        finally {
+            identityStore.close();
+        }
+    }
+
+    @Test
+    public void validate_callerSearchReturnsNoAttributes() {
+        LdapIdentityStore identityStore = new LdapIdentityStore(definition(SearchingStore.class));
+        try {
+            callerEntryAttributes.set(-1);
+
+            Assert.assertEquals(VALID, identityStore.validate(new UsernamePasswordCredential("reza", "secret1")).getStatus());
+
+            Assert.assertEquals(0, callerEntryAttributes.get());
+        }
+        finally {
+            identityStore.close();
+        }
+    }
+
+    @Test
+    public void validate_minimalCallerSearch() {
+        LdapIdentityStore identityStore = new LdapIdentityStore(definition(AmbiguousCallerStore.class), options(AmbiguousCallerStore.class));
+        try {
+            // Matches both reza and alex
+            Assert.assertEquals(INVALID, identityStore.validate(new UsernamePasswordCredential("reza", "secret1")).getStatus());
+            Assert.assertEquals(2, callerSearchSizeLimit.get());
+
+            Assert.assertEquals(VALID, identityStore.validate(new UsernamePasswordCredential("alex", "secret2")).getStatus());
+        }
+        finally {
+            identityStore.close();
+        }
+    }
+
+    @Test
+    public void validate_memberOfInCallerSearch() {
+        LdapIdentityStore identityStore = new LdapIdentityStore(definition(MemberOfStore.class), options(MemberOfStore.class));
+        try {
+            callerEntryReads.set(0);
+
+            Assert.assertEquals(new HashSet<>(asList("foo", "bar")),
+                identityStore.validate(new UsernamePasswordCredential("reza", "secret1")).getCallerGroups());
+            Assert.assertEquals(emptySet(),
+                identityStore.validate(new UsernamePasswordCredential("alex", "secret2")).getCallerGroups());
+
+            Assert.assertEquals(0, callerEntryReads.get());
+        }
+        finally {
+            identityStore.close();
+        }
+
+        // Without the option, the caller's entry is read separately
+        identityStore = new LdapIdentityStore(definition(MemberOfStore.class));
+        try {
+            Assert.assertEquals(new HashSet<>(asList("foo", "bar")),
+                identityStore.validate(new UsernamePasswordCredential("reza", "secret1")).getCallerGroups());
+
+            Assert.assertEquals(1, callerEntryReads.get());
+        }
+        finally {
+            identityStore.close();
+        }
+    }
+
+    @Test
+    public void validate_balancesAndFailsOverReplicas() throws Exception {
+        AtomicInteger replicaSearches = new AtomicInteger();
+        InMemoryDirectoryServerConfig config = directoryConfig(REPLICA_PORT);
+        config.addInMemoryOperationInterceptor(new InMemoryOperationInterceptor() {
+            @Override
+            public void processSearchRequest(InMemoryInterceptedSearchRequest request) {
+                replicaSearches.incrementAndGet();
+            }
+        });
+        InMemoryDirectoryServer replica = startDirectoryServer(config);
+
+        LdapIdentityStore identityStore = new LdapIdentityStore(definition(ReplicatedStore.class), options(ReplicatedStore.class));
+        try {
+            groupSearches.set(0);
+            for (int i = 0; i < 4; i++) {
+                Assert.assertEquals(VALID, identityStore.validate(new UsernamePasswordCredential("reza", "secret1")).getStatus());
+            }
+
+            // Both servers have been used
+            Assert.assertTrue(groupSearches.get() > 0);
+            Assert.assertTrue(replicaSearches.get() > 0);
+
+            replica.shutDown(true);
+
+            for (int i = 0; i < 4; i++) {
+                Assert.assertEquals(VALID, identityStore.validate(new UsernamePasswordCredential("reza", "secret1")).getStatus());
+            }
+        }
+        finally {
+            identityStore.close();
+            replica.shutDown(true);
+        }
+    }
+
+    @Test
+    public void validate_failsOverOnReadTimeout() throws Exception {
+        AtomicInteger replicaSearches = new AtomicInteger();
+        InMemoryDirectoryServerConfig config = directoryConfig(REPLICA_PORT);
+        config.addInMemoryOperationInterceptor(new InMemoryOperationInterceptor() {
+            @Override
+            public void processSearchRequest(InMemoryInterceptedSearchRequest request) {
+                replicaSearches.incrementAndGet();
+            }
+        });
+        InMemoryDirectoryServer replica = startDirectoryServer(config);
+
+        LdapIdentityStore identityStore = new LdapIdentityStore(definition(ReplicatedTimeoutStore.class), options(ReplicatedStore.class));
+        try {
+            // Only the first server hangs on group searches
+            groupSearchDelay = 2000;
+            groupSearches.set(0);
+            for (int i = 0; i < 4; i++) {
+                Assert.assertEquals(VALID, identityStore.validate(new UsernamePasswordCredential("reza", "secret1")).getStatus());
+            }
+
+            // The hung server has been ejected after its first timeout
+            Assert.assertEquals(1, groupSearches.get());
+            Assert.assertTrue(replicaSearches.get() > 0);
+        }
+        finally {
+            groupSearchDelay = 0;
+            identityStore.close();
+            replica.shutDown(true);
+        }
+    }
+
+    @Test
+    public void serversNotEjectedForSlowOperations() {
+        LdapServerSet servers = serverSet(SlowResponseWithoutHealthCheck.class, server -> true);
+        try {
+            // An operation can be slow because of how much it does, which says nothing about the server
+            servers.execute(server -> { sleep(20); return server.getUrl(); });
+
+            Set<String> usedServers = new HashSet<>();
+            for (int i = 0; i < 4; i++) {
+                usedServers.add(servers.execute(LdapServer::getUrl));
+            }
+            Assert.assertEquals(2, usedServers.size());
+        }
+        finally {
+            servers.close();
+        }
+    }
+
+    @Test
+    public void serversEjectedForSlowHealthCheck() throws Exception {
+        LdapServerSet servers = serverSet(SlowResponseHealthCheck.class, server -> {
+            if (server.getUrl().equals("ldap://slow/")) {
+                sleep(30);
+            }
+            return true;
+        });
+        try {
+            Thread.sleep(200);
+
+            for (int i = 0; i < 4; i++) {
+                Assert.assertEquals("ldap://fast/", servers.execute(LdapServer::getUrl));
+            }
+        }
+        finally {
+            servers.close();
+        }
+    }
+
+    @Test
+    public void getLeadingRdnValue() {
+        Assert.assertEquals("foo", LdapIdentityStore.getLeadingRdnValue("cn=foo,ou=group,dc=jsr375,dc=net", "cn"));
+        Assert.assertEquals("foo bar", LdapIdentityStore.getLeadingRdnValue("CN = foo bar , ou=group", "cn"));
+        Assert.assertEquals("foo", LdapIdentityStore.getLeadingRdnValue("ou=group+cn=foo,dc=net", "cn"));
+
+        // Left to the full parser
+        Assert.assertNull(LdapIdentityStore.getLeadingRdnValue("cn=foo\\,bar,ou=group", "cn"));
+        Assert.assertNull(LdapIdentityStore.getLeadingRdnValue("cn=\"foo\",ou=group", "cn"));
+        Assert.assertNull(LdapIdentityStore.getLeadingRdnValue("ou=foo,cn=bar", "cn"));
+    }
+
+    @Test
+    public void poolReusesContexts() {
+        AtomicInteger created = new AtomicInteger();
+        LdapContextPool pool = new LdapContextPool(
+            () -> { created.incrementAndGet(); return searchContext(); },
+            options(SingleConnectionPool.class).searchConnectionPool(), ForkJoinPool.commonPool());
+
+        for (int i = 0; i < 3; i++) {
+            pool.release(pool.borrow());
+        }
+        pool.close();
+
+        Assert.assertEquals(1, created.get());
+    }
+
+    @Test
+    public void poolFillsToMinSize() throws Exception {
+        AtomicInteger created = new AtomicInteger();
+        LdapContextPool pool = new LdapContextPool(
+            () -> { created.incrementAndGet(); return searchContext(); },
+            options(MinimumConnectionPool.class).searchConnectionPool(), ForkJoinPool.commonPool());
+
+        try {
+            pool.fill();
+            Assert.assertEquals(2, created.get());
+
+            // Taken from the filled contexts
+            pool.release(pool.borrow());
+            Assert.assertEquals(2, created.get());
+
+            // The invalidated context is replaced in the background
+            pool.invalidate(pool.borrow());
+            long deadline = System.currentTimeMillis() + 5000;
+            while (pool.getIdleCount() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(2, pool.getIdleCount());
+            Assert.assertEquals(3, created.get());
+
+            LdapContext first = pool.borrow();
+            LdapContext second = pool.borrow();
+            pool.release(first);
+            pool.release(second);
+            Assert.assertEquals(3, created.get());
+        }
+        finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void poolDiscardsContextFailingValidation() {
+        AtomicInteger created = new AtomicInteger();
+        LdapContextPool pool = new LdapContextPool(
+            () -> {
+                created.incrementAndGet();
+                return (LdapContext) Proxy.newProxyInstance(
+                    LdapContext.class.getClassLoader(),
+                    new Class<?>[] { LdapContext.class },
+                    (proxy, method, args) -> {
+                        if (method.getName().equals("getAttributes")) {
+                            throw new NoPermissionException("Root DSE not readable");
+                        }
+                        return null;
+                    });
+            },
+            options(ValidatedConnectionPool.class).searchConnectionPool(), ForkJoinPool.commonPool());
+
+        pool.release(pool.borrow());
+        pool.release(pool.borrow());
+        pool.close();
+
+        Assert.assertEquals(2, created.get());
+    }
+
+    @Test(expected = IdentityStoreRuntimeException.class)
+    public void poolBorrowTimeout() {
+        LdapContextPool pool = new LdapContextPool(
+            LdapIdentityStoreTest::searchContext,
+            options(SingleConnectionPool.class).searchConnectionPool(), ForkJoinPool.commonPool());
+
+        LdapContext context = pool.borrow();
+        try {
+            pool.borrow();
+        }
+        finally {
+            pool.release(context);
+            pool.close();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void awaitLocalReplica(LdapIdentityStore identityStore) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!identityStore.isLocalReplicaLoaded() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(identityStore.isLocalReplicaLoaded());
+    }
+
+    private static InMemoryDirectoryServerConfig directoryConfig(int port) throws Exception {
+        InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig("dc=net");
+        config.setListenerConfigs(
+            new InMemoryListenerConfig("myListener", null, port, null, null, null));
+        return config;
+    }
+
+    private static InMemoryDirectoryServer startDirectoryServer(InMemoryDirectoryServerConfig config) throws Exception {
+        InMemoryDirectoryServer server = new InMemoryDirectoryServer(config);
+        server.importFromLDIF(true,
+            new LDIFReader(LdapIdentityStoreTest.class.getResourceAsStream("/test.ldif")));
+        server.startListening();
+        return server;
+    }
+
+    private static LdapIdentityStoreDefinition definition(Class<?> annotatedClass) {
+        return annotatedClass.getAnnotation(LdapIdentityStoreDefinition.class);
+    }
+
+    private static LdapIdentityStoreOptions options(Class<?> annotatedClass) {
+        return annotatedClass.getAnnotation(LdapIdentityStoreOptions.class);
+    }
+
+    private static LdapServerSet serverSet(Class<?> optionsClass, Predicate<LdapServer> healthCheck) {
+        LdapIdentityStoreOptions options = options(optionsClass);
+        List<LdapServer> servers = new ArrayList<>();
+        for (String url : asList("ldap://slow/", "ldap://fast/")) {
+            servers.add(new LdapServer(url,
+                new LdapContextPool(LdapIdentityStoreTest::searchContext, options.searchConnectionPool(), ForkJoinPool.commonPool()),
+                new LdapContextPool(LdapIdentityStoreTest::searchContext, options.callerConnectionPool(), ForkJoinPool.commonPool())));
+        }
+        return new LdapServerSet(servers, options.loadBalancing(), healthCheck);
+    }
+
+    private static LdapContext searchContext() {
+        Hashtable<String, String> environment = new Hashtable<>();
+        environment.put(INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
+        environment.put(PROVIDER_URL, "ldap://localhost:" + PORT + "/");
+
+        try {
+            return new InitialLdapContext(environment, null);
+        }
+        catch (NamingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
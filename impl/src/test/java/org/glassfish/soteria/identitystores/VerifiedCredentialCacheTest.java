@@ -0,0 +1,118 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015-2017 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://oss.oracle.com/licenses/CDDL+GPL-1.1
+ * or LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.soteria.identitystores;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.enterprise.identitystore.PasswordHash;
+
+import org.glassfish.soteria.identitystores.annotation.CachePolicy;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class VerifiedCredentialCacheTest {
+
+    @CachePolicy(enabled = true, timeToLive = 60000)
+    private static final class Enabled {
+    }
+
+    @CachePolicy
+    private static final class Disabled {
+    }
+
+    private final AtomicInteger verifications = new AtomicInteger();
+
+    // Stands in for a costly password hash, the stored hash is the reversed password
+    private final PasswordHash passwordHash = new PasswordHash() {
+
+        @Override
+        public String generate(char[] password) {
+            return new StringBuilder(new String(password)).reverse().toString();
+        }
+
+        @Override
+        public boolean verify(char[] password, String hashedPassword) {
+            verifications.incrementAndGet();
+            return generate(password).equals(hashedPassword);
+        }
+    };
+
+    @Test
+    public void verify_skipsPasswordHashOnRepeat() {
+        VerifiedCredentialCache cache = VerifiedCredentialCache.create(Enabled.class.getAnnotation(CachePolicy.class));
+
+        Assert.assertTrue(cache.verify("reza", "secret1".toCharArray(), "1terces", passwordHash::verify));
+        Assert.assertTrue(cache.verify("reza", "secret1".toCharArray(), "1terces", passwordHash::verify));
+
+        Assert.assertEquals(1, verifications.get());
+    }
+
+    @Test
+    public void verify_wrongPassword() {
+        VerifiedCredentialCache cache = VerifiedCredentialCache.create(Enabled.class.getAnnotation(CachePolicy.class));
+
+        Assert.assertTrue(cache.verify("reza", "secret1".toCharArray(), "1terces", passwordHash::verify));
+        Assert.assertFalse(cache.verify("reza", "wrong".toCharArray(), "1terces", passwordHash::verify));
+        Assert.assertFalse(cache.verify("reza", "wrong".toCharArray(), "1terces", passwordHash::verify));
+
+        // Failed verifications are never cached
+        Assert.assertEquals(3, verifications.get());
+    }
+
+    @Test
+    public void verify_changedPassword() {
+        VerifiedCredentialCache cache = VerifiedCredentialCache.create(Enabled.class.getAnnotation(CachePolicy.class));
+
+        Assert.assertTrue(cache.verify("reza", "secret1".toCharArray(), "1terces", passwordHash::verify));
+
+        // The old password no longer matches once the stored hash has changed
+        Assert.assertFalse(cache.verify("reza", "secret1".toCharArray(), "2terces", passwordHash::verify));
+        Assert.assertTrue(cache.verify("reza", "secret2".toCharArray(), "2terces", passwordHash::verify));
+
+        Assert.assertEquals(3, verifications.get());
+    }
+
+    @Test
+    public void create_disabled() {
+        Assert.assertNull(VerifiedCredentialCache.create(Disabled.class.getAnnotation(CachePolicy.class)));
+    }
+
+}
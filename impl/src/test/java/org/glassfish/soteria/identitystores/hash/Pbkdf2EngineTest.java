@@ -0,0 +1,151 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015-2017 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://oss.oracle.com/licenses/CDDL+GPL-1.1
+ * or LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.soteria.identitystores.hash;
+
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class Pbkdf2EngineTest {
+
+    private static final String[] ALGORITHMS = {
+        "PBKDF2WithHmacSHA224", "PBKDF2WithHmacSHA256", "PBKDF2WithHmacSHA384", "PBKDF2WithHmacSHA512"
+    };
+
+    private static final String[] PASSWORDS = {
+        "Soteria",
+        "p\u00e4ssw\u00f6rd \u20ac \ud83d\udd11",
+        // Longer than a SHA-512 block, so the password is hashed to get the HMAC key
+        "correct horse battery staple correct horse battery staple correct horse battery staple correct horse battery staple correct horse"
+    };
+
+    private final Random random = new Random(375);
+
+    @Test
+    public void derive_sameAsJce() {
+        for (String algorithm : ALGORITHMS) {
+            for (String password : PASSWORDS) {
+                for (int saltSize : new int[] { 1, 16, 55, 56, 64, 119, 120, 200 }) {
+                    byte[] salt = randomBytes(saltSize);
+
+                    assertSameAsJce(algorithm, password, salt, 1, 32);
+                    assertSameAsJce(algorithm, password, salt, 2, 32);
+                    assertSameAsJce(algorithm, password, salt, 1000, 32);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void derive_keySizes() {
+        byte[] salt = randomBytes(32);
+
+        for (String algorithm : ALGORITHMS) {
+            // Truncated, one block, and several blocks ending in a partial block
+            for (int keySize : new int[] { 1, 16, 28, 32, 48, 64, 65, 200 }) {
+                assertSameAsJce(algorithm, "Soteria", salt, 100, keySize);
+            }
+        }
+    }
+
+    @Test
+    public void derive_parallelBlocks() {
+        byte[] salt = randomBytes(32);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (String algorithm : ALGORITHMS) {
+                for (int keySize : new int[] { 16, 64, 65, 200 }) {
+                    Assert.assertArrayEquals(
+                        jce(algorithm, "Soteria".toCharArray(), salt, 100, keySize),
+                        Pbkdf2Engine.derive(algorithm, "Soteria".toCharArray(), salt, 100, keySize, executor));
+                }
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void derive_invalidIterations() {
+        Pbkdf2Engine.derive("PBKDF2WithHmacSHA256", "Soteria".toCharArray(), randomBytes(32), -1, 32);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void derive_emptySalt() {
+        Pbkdf2Engine.derive("PBKDF2WithHmacSHA256", "Soteria".toCharArray(), new byte[0], 1024, 32);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void derive_unsupportedAlgorithm() {
+        Pbkdf2Engine.derive("PBKDF2WithHmacSHA1", "Soteria".toCharArray(), randomBytes(32), 1024, 32);
+    }
+
+    private void assertSameAsJce(String algorithm, String password, byte[] salt, int iterations, int keySizeBytes) {
+        Assert.assertArrayEquals(
+            algorithm + " with " + salt.length + " byte salt, " + iterations + " iterations, " + keySizeBytes + " byte key",
+            jce(algorithm, password.toCharArray(), salt, iterations, keySizeBytes),
+            Pbkdf2Engine.derive(algorithm, password.toCharArray(), salt, iterations, keySizeBytes));
+    }
+
+    private byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] jce(String algorithm, char[] password, byte[] salt, int iterations, int keySizeBytes) {
+        try {
+            return SecretKeyFactory.getInstance(algorithm).generateSecret(
+                    new PBEKeySpec(password, salt, iterations, keySizeBytes * 8)).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -50,6 +50,10 @@ import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
 import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.util.Collections.singletonMap;
 
 /**
  *
@@ -103,6 +107,83 @@ public class Pbkdf2PasswordHashImplTest {
         Assert.assertFalse(hashImpl.verify("SomethingElse".toCharArray(), encodedPassword(encodedHash1, salt1, "PBKDF2WithHmacSHA256", 16)));
     }
 
+    @Test
+    public void verify_internalEngine() {
+        Pbkdf2PasswordHashImpl internalHashImpl = new Pbkdf2PasswordHashImpl();
+        internalHashImpl.initialize(singletonMap("Pbkdf2PasswordHash.Engine", "Internal"));
+
+        Assert.assertTrue(internalHashImpl.verify("Soteria".toCharArray(), encodedPassword(encodedHash1, salt1, "PBKDF2WithHmacSHA256", 16)));
+        Assert.assertTrue(internalHashImpl.verify("Soteria".toCharArray(), encodedPassword(encodedHash2, salt2, "PBKDF2WithHmacSHA512", 1024)));
+        Assert.assertFalse(internalHashImpl.verify("SomethingElse".toCharArray(), encodedPassword(encodedHash1, salt1, "PBKDF2WithHmacSHA256", 16)));
+
+        // Hashes generated with either engine verify with the other
+        Assert.assertTrue(hashImpl.verify("Soteria".toCharArray(), internalHashImpl.generate("Soteria".toCharArray())));
+        Assert.assertTrue(internalHashImpl.verify("Soteria".toCharArray(), hashImpl.generate("Soteria".toCharArray())));
+    }
+
+    @Test
+    public void generate_parallelBlocks() {
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("Pbkdf2PasswordHash.Engine", "Internal");
+        parameters.put("Pbkdf2PasswordHash.ParallelBlocks", "true");
+        parameters.put("Pbkdf2PasswordHash.KeySizeBytes", "96");
+
+        Pbkdf2PasswordHashImpl parallelHashImpl = new Pbkdf2PasswordHashImpl();
+        parallelHashImpl.initialize(parameters);
+
+        // The encoded hash is the same as without parallel blocks
+        String encoded = parallelHashImpl.generate("Soteria".toCharArray());
+        Assert.assertTrue(hashImpl.verify("Soteria".toCharArray(), encoded));
+        Assert.assertTrue(parallelHashImpl.verify("Soteria".toCharArray(), encoded));
+        Assert.assertFalse(parallelHashImpl.verify("SomethingElse".toCharArray(), encoded));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void initialize_parallelBlocksWithJce() {
+        new Pbkdf2PasswordHashImpl().initialize(singletonMap("Pbkdf2PasswordHash.ParallelBlocks", "true"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void verify_internalEngine_wrongIterations() {
+        Pbkdf2PasswordHashImpl internalHashImpl = new Pbkdf2PasswordHashImpl();
+        internalHashImpl.initialize(singletonMap("Pbkdf2PasswordHash.Engine", "Internal"));
+
+        internalHashImpl.verify("Soteria".toCharArray(), encodedPassword(encodedHash1, salt1, "PBKDF2WithHmacSHA256", -1));
+    }
+
+    @Test
+    public void verify_repeated() {
+        // The second verifications use the cached decoding of the stored hash
+        String encodedPassword = encodedPassword(encodedHash1, salt1, "PBKDF2WithHmacSHA256", 16);
+        for (int i = 0; i < 2; i++) {
+            Assert.assertTrue(hashImpl.verify("Soteria".toCharArray(), encodedPassword));
+            Assert.assertFalse(hashImpl.verify("SomethingElse".toCharArray(), encodedPassword));
+        }
+    }
+
+    @Test
+    public void verify_withoutParsedHashCache() {
+        Pbkdf2PasswordHashImpl uncachedHashImpl = new Pbkdf2PasswordHashImpl();
+        uncachedHashImpl.initialize(singletonMap("Pbkdf2PasswordHash.ParsedHashCacheSize", "0"));
+
+        Assert.assertTrue(uncachedHashImpl.verify("Soteria".toCharArray(), encodedPassword(encodedHash2, salt2, "PBKDF2WithHmacSHA512", 1024)));
+        Assert.assertFalse(uncachedHashImpl.verify("Soteria".toCharArray(), encodedPassword(encodedHash3, salt1, "PBKDF2WithHmacSHA512", 1024)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void verify_wrongRepeated() {
+        // A bad encoding isn't cached, so it's rejected every time
+        String encodedPassword = encodedPassword(encodedHash1, salt1, "PBKDF2WithHmacSHA1", 64);
+        try {
+            hashImpl.verify("Soteria".toCharArray(), encodedPassword);
+            Assert.fail("Expected bad hash encoding");
+        }
+        catch (IllegalArgumentException e) {
+            // Expected
+        }
+        hashImpl.verify("Soteria".toCharArray(), encodedPassword);
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void verify_wrong1() {
         // Not supported algo